@@ -0,0 +1,56 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzURLBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building the URL of the authorization page.
+ */
+@State(Scope.Benchmark)
+public class AuthzURLBenchmark {
+
+    private URL endpoint;
+    private final List<String> scopes = Arrays.asList("openid", "profile", "https://www.googleapis.com/auth/drive.file");
+    private final List<Map.Entry<String, String>> params = Collections.<Map.Entry<String, String>>singletonList(
+            new AbstractMap.SimpleImmutableEntry<String, String>("prompt", "consent"));
+
+    @Setup
+    public void setUp() throws MalformedURLException {
+        endpoint = new URL("https://accounts.example.com/o/oauth2/auth");
+    }
+
+    @Benchmark
+    public URL build() throws UnsupportedEncodingException, MalformedURLException {
+        return OAuth2AuthzURLBuilder.build(endpoint, "org.example.app:/oauth2redirect", scopes, "mobile-client",
+                "af0ifjsldkj", params);
+    }
+
+}
@@ -0,0 +1,52 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2.benchmark;
+
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2Metrics;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2MetricsRecorder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * The cost the default recorder adds to every store access and exchange,
+ * alone and with threads recording into the same histogram.
+ */
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private final OAuth2MetricsRecorder recorder = new OAuth2MetricsRecorder();
+    private long nanos = 123456;
+
+    @Benchmark
+    public void record() {
+        recorder.record(OAuth2Metrics.Timer.STORE_READ, nanos);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        recorder.record(OAuth2Metrics.Timer.STORE_READ, nanos);
+    }
+
+    @Benchmark
+    public void increment() {
+        recorder.increment(OAuth2Metrics.Counter.CACHE_HIT);
+    }
+
+}
@@ -0,0 +1,49 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2.benchmark;
+
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2Tokens;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The checks every request makes on its token, and the header it sends.
+ */
+@State(Scope.Benchmark)
+public class TokenExpiryBenchmark {
+
+    private long expiresOn = System.currentTimeMillis() + 60 * 60 * 1000;
+    private long expiresIn = 3600;
+    private String accessToken = "2YotnFZFEjr1zCsicMWpAA";
+
+    @Benchmark
+    public boolean isNotExpired() {
+        return OAuth2Tokens.isNotExpiredAt(expiresOn, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public long expiresOn() {
+        return OAuth2Tokens.expiresOn(System.currentTimeMillis(), expiresIn);
+    }
+
+    @Benchmark
+    public String authorizationHeader() {
+        return OAuth2Tokens.authorizationHeader(accessToken);
+    }
+
+}
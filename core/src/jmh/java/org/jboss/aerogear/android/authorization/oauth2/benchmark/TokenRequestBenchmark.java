@@ -0,0 +1,90 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2TokenRequestBodies;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building the bodies of code exchanges and refreshes. legacyRefreshBody
+ * builds a refresh body from scratch, the way the service did before the
+ * bodies were compiled, as a baseline for refreshBody.
+ */
+@State(Scope.Benchmark)
+public class TokenRequestBenchmark {
+
+    private static final String CLIENT_ID = "mobile-client";
+
+    private OAuth2TokenRequestBodies bodies;
+
+    @Setup
+    public void setUp() {
+        Map.Entry<String, String> audience = new AbstractMap.SimpleImmutableEntry<String, String>("audience", "https://api.example.com");
+        bodies = new OAuth2TokenRequestBodies(CLIENT_ID, "s3cr3t", "org.example.app:/oauth2redirect", Collections.singletonList(audience));
+    }
+
+    @Benchmark
+    public byte[] refreshBody() {
+        return bodies.refreshBody(CLIENT_ID, "8xLOxBtZp8.refresh/token+with=reserved&chars");
+    }
+
+    @Benchmark
+    public byte[] legacyRefreshBody() throws UnsupportedEncodingException {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put("refresh_token", "8xLOxBtZp8.refresh/token+with=reserved&chars");
+        data.put("grant_type", "refresh_token");
+        data.put("client_id", CLIENT_ID);
+        data.put("client_secret", "s3cr3t");
+        data.put(URLEncoder.encode("audience", "UTF-8"), "https://api.example.com");
+
+        StringBuilder body = new StringBuilder();
+        String amp = "";
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            body.append(amp);
+            body.append(String.format("%s=%s", entry.getKey(), URLEncoder.encode(entry.getValue(), "UTF-8")));
+            amp = "&";
+        }
+        return body.toString().getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public byte[] refreshBodyForOtherClient() {
+        return bodies.refreshBody("other-client", "8xLOxBtZp8.refresh/token+with=reserved&chars");
+    }
+
+    @Benchmark
+    public byte[] codeExchangeBody() {
+        return bodies.codeExchangeBody(CLIENT_ID, "SplxlOBeZQQYbYS6WxSbIA");
+    }
+
+    @Benchmark
+    public OAuth2TokenRequestBodies compile() {
+        return new OAuth2TokenRequestBodies(CLIENT_ID, "s3cr3t", "org.example.app:/oauth2redirect",
+                Collections.<Map.Entry<String, String>>emptyList());
+    }
+
+}
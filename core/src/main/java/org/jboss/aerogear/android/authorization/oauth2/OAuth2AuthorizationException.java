@@ -22,7 +22,7 @@ package org.jboss.aerogear.android.authorization.oauth2;
 public class OAuth2AuthorizationException extends Exception {
 
     public enum Error {
-        INVALID_REQUEST, INVALID_CLIENT, INVALID_GRANT, UNAUTHORIZED_CLIENT, UNSUPPORTED_GRANT_TYPE, INVALID_SCOPE, OTHER;
+        INVALID_REQUEST, INVALID_CLIENT, INVALID_GRANT, UNAUTHORIZED_CLIENT, UNSUPPORTED_GRANT_TYPE, INVALID_SCOPE, TEMPORARILY_UNAVAILABLE, OTHER;
 
         public static Error getErrorEnum(String inError) {
             for (Error error : values()) {
@@ -0,0 +1,82 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Map;
+
+/**
+ * Builds the URL of the authorization page an app sends its user to.
+ */
+public final class OAuth2AuthzURLBuilder {
+
+    private static final String UTF_8 = "UTF-8";
+
+    private OAuth2AuthzURLBuilder() {
+    }
+
+    /**
+     * @param authzEndpoint the authorization endpoint
+     * @param redirectURL the URL the page redirects to with the code
+     * @param scopes the scopes to request
+     * @param clientId the client ID
+     * @param state the state echoed back with the code
+     * @param additionalParams further query parameters, may be null
+     * @return the URL of the authorization page
+     * @throws UnsupportedEncodingException never; UTF-8 is always supported
+     * @throws MalformedURLException if the parts do not form a URL
+     */
+    public static URL build(URL authzEndpoint, String redirectURL, Iterable<String> scopes, String clientId, String state,
+            Iterable<? extends Map.Entry<String, String>> additionalParams) throws UnsupportedEncodingException, MalformedURLException {
+        StringBuilder url = new StringBuilder(authzEndpoint.toString());
+        url.append("?scope=").append(formatScopes(scopes))
+                .append("&redirect_uri=").append(URLEncoder.encode(redirectURL, UTF_8))
+                .append("&client_id=").append(clientId)
+                .append("&state=").append(state)
+                .append("&response_type=code");
+
+        if (additionalParams != null) {
+            for (Map.Entry<String, String> param : additionalParams) {
+                url.append('&').append(URLEncoder.encode(param.getKey(), UTF_8))
+                        .append('=').append(URLEncoder.encode(param.getValue(), UTF_8));
+            }
+        }
+
+        return new URL(url.toString());
+    }
+
+    /**
+     * @param scopes the scopes to request
+     * @return the encoded scopes, separated by '+'
+     * @throws UnsupportedEncodingException never; UTF-8 is always supported
+     */
+    public static String formatScopes(Iterable<String> scopes) throws UnsupportedEncodingException {
+        StringBuilder scopeValue = new StringBuilder();
+        String append = "";
+        for (String scope : scopes) {
+            scopeValue.append(append);
+            scopeValue.append(URLEncoder.encode(scope, UTF_8));
+            append = "+";
+        }
+
+        return scopeValue.toString();
+    }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The circuit breaker of one token endpoint. See {@link OAuth2RetryPolicy}
+ * for how it opens and closes.
+ *
+ * The state is a handful of atomics, so callers never block on it.
+ */
+final class OAuth2CircuitBreaker {
+
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicBoolean trialInFlight = new AtomicBoolean();
+    private volatile long openUntil = 0;
+
+    /**
+     * @param now the current time in milliseconds
+     * @return true if a request may be sent. While the circuit is half open
+     *         only the first caller gets true, until it reports its outcome.
+     */
+    boolean allowRequest(long now) {
+        long until = openUntil;
+        if (until == 0) {
+            return true;
+        }
+        if (now < until) {
+            return false;
+        }
+        return trialInFlight.compareAndSet(false, true);
+    }
+
+    /**
+     * Closes the circuit.
+     */
+    void onSuccess() {
+        failures.set(0);
+        openUntil = 0;
+        trialInFlight.set(false);
+    }
+
+    /**
+     * Counts a failed request and opens the circuit once policy says so, or
+     * again if the request was the trial of a half open circuit.
+     *
+     * @param now the current time in milliseconds
+     * @param policy the policy of the request
+     */
+    void onFailure(long now, OAuth2RetryPolicy policy) {
+        int failed = failures.incrementAndGet();
+        if (trialInFlight.get() || failed >= policy.getCircuitBreakerThreshold()) {
+            openFor(now, policy.getCircuitBreakerOpenTime());
+        }
+    }
+
+    /**
+     * Lets another request through a half open circuit after one whose
+     * outcome says nothing about the endpoint.
+     */
+    void endTrial() {
+        trialInFlight.set(false);
+    }
+
+    /**
+     * Opens the circuit for at least duration milliseconds, for instance
+     * because the endpoint asked for that with Retry-After.
+     *
+     * @param now the current time in milliseconds
+     * @param duration how long to fail requests
+     */
+    void openFor(long now, long duration) {
+        long until = now + duration;
+        if (until > openUntil) {
+            openUntil = until;
+        }
+        trialInFlight.set(false);
+    }
+
+    /**
+     * @param now the current time in milliseconds
+     * @return true if requests fail without being sent
+     */
+    boolean isOpen(long now) {
+        return now < openUntil;
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+/**
+ * Receives timings and counts from the authorization stack.
+ *
+ * The token engine, its session store and the OAuth2AuthzModules report
+ * into the metrics set with OAuth2TokenEngine.setMetrics. The default is an
+ * {@link OAuth2MetricsRecorder}. To feed an app's own telemetry, implement
+ * this interface and forward the two calls.
+ *
+ * Both methods are called on the hot paths of the stack, from any thread,
+ * so implementations must be thread safe and should return quickly.
+ */
+public interface OAuth2Metrics {
+
+    /**
+     * Things which take time.
+     */
+    enum Timer {
+        /**
+         * Reading a session or account IDs from the session store.
+         */
+        STORE_READ,
+        /**
+         * Saving or removing sessions in the session store.
+         */
+        STORE_WRITE,
+        /**
+         * A token request with an authorization code grant.
+         */
+        EXCHANGE_AUTHORIZATION_CODE,
+        /**
+         * A token request with a refresh token grant.
+         */
+        EXCHANGE_REFRESH_TOKEN,
+        /**
+         * A blocking token call made on the main thread.
+         */
+        MAIN_THREAD
+    }
+
+    /**
+     * Things which happen.
+     */
+    enum Counter {
+        /**
+         * A refresh token grant was sent.
+         */
+        REFRESH,
+        /**
+         * A refresh token grant was sent because a server rejected the
+         * access token. These are also counted as {@link #REFRESH}.
+         */
+        REFRESH_REJECTED,
+        /**
+         * A token request failed.
+         */
+        EXCHANGE_FAILED,
+        /**
+         * A token request was sent again after a server or I/O error.
+         */
+        EXCHANGE_RETRIED,
+        /**
+         * A token request failed at once because the circuit breaker of its
+         * endpoint was open.
+         */
+        CIRCUIT_OPEN,
+        /**
+         * A token request failed at once because the device was offline.
+         */
+        OFFLINE,
+        /**
+         * An expired token was handed out within the offline grace period.
+         */
+        OFFLINE_GRACE,
+        /**
+         * handleError was passed an error which is not a 401 or 403.
+         */
+        ERROR_IGNORED,
+        /**
+         * handleError found the rejected token already replaced.
+         */
+        ERROR_REPLAYED,
+        /**
+         * handleError refreshed the rejected token.
+         */
+        ERROR_REFRESHED,
+        /**
+         * handleError could not provide a valid token.
+         */
+        ERROR_FAILED,
+        /**
+         * A session was read from the session cache.
+         */
+        CACHE_HIT,
+        /**
+         * A session was not in the session cache.
+         */
+        CACHE_MISS
+    }
+
+    /**
+     * @param timer what took the time
+     * @param nanos how long it took, in nanoseconds
+     */
+    void record(Timer timer, long nanos);
+
+    /**
+     * @param counter what happened
+     */
+    void increment(Counter counter);
+
+}
@@ -0,0 +1,105 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The default {@link OAuth2Metrics}: keeps an {@link OAuth2Histogram} per
+ * timer and a count per counter, in memory and without locks.
+ */
+public final class OAuth2MetricsRecorder implements OAuth2Metrics {
+
+    private final OAuth2Histogram[] timers = new OAuth2Histogram[Timer.values().length];
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+    public OAuth2MetricsRecorder() {
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new OAuth2Histogram();
+        }
+    }
+
+    @Override
+    public void record(Timer timer, long nanos) {
+        timers[timer.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    /**
+     * @param timer a timer
+     * @return the histogram of timer, in nanoseconds
+     */
+    public OAuth2Histogram getHistogram(Timer timer) {
+        return timers[timer.ordinal()];
+    }
+
+    /**
+     * @param counter a counter
+     * @return the count of counter
+     */
+    public long getCount(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    /**
+     * @return the share of session lookups served by the session cache, or 0
+     *         if there were none
+     */
+    public double getCacheHitRatio() {
+        long hits = getCount(Counter.CACHE_HIT);
+        long lookups = hits + getCount(Counter.CACHE_MISS);
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Drops every recorded timing and count.
+     */
+    public void reset() {
+        for (OAuth2Histogram timer : timers) {
+            timer.reset();
+        }
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("OAuth2MetricsRecorder{");
+        for (Timer timer : Timer.values()) {
+            OAuth2Histogram histogram = getHistogram(timer);
+            if (histogram.getCount() > 0) {
+                text.append(timer).append("=[n=").append(histogram.getCount())
+                        .append(" p50=").append(histogram.getPercentile(50) / 1000).append("us")
+                        .append(" p99=").append(histogram.getPercentile(99) / 1000).append("us")
+                        .append(" max=").append(histogram.getMax() / 1000).append("us], ");
+            }
+        }
+        for (Counter counter : Counter.values()) {
+            long count = getCount(counter);
+            if (count > 0) {
+                text.append(counter).append('=').append(count).append(", ");
+            }
+        }
+        return text.append("cacheHitRatio=").append(getCacheHitRatio()).append('}').toString();
+    }
+
+}
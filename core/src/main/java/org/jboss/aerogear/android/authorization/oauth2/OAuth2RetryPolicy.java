@@ -0,0 +1,241 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Says how often and how fast a token request which failed with a server
+ * error or an I/O error is sent again, and when the token endpoint is given
+ * a rest.
+ *
+ * Retries wait an exponentially growing backoff with full jitter: the n-th
+ * retry waits a random time between 0 and initialBackoff * 2^(n-1), capped
+ * at maxBackoff. A Retry-After header sent by the server replaces the
+ * backoff; if it asks for more than maxBackoff the request is not retried
+ * and the endpoint is not called again before that time.
+ *
+ * Every token endpoint has a circuit breaker. After
+ * circuitBreakerThreshold failures in a row it opens, and for
+ * circuitBreakerOpenTime token requests to that endpoint fail at once
+ * without being sent. Then a single request is let through; if it
+ * succeeds the circuit closes, otherwise it stays open for another
+ * circuitBreakerOpenTime.
+ *
+ * Client errors such as invalid_grant are never retried and count as a
+ * healthy endpoint.
+ */
+public class OAuth2RetryPolicy {
+
+    private static final String HTTP_DATE = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private int maxAttempts = 3;
+    private long initialBackoff = 500;
+    private long maxBackoff = 30 * 1000;
+    private int circuitBreakerThreshold = 5;
+    private long circuitBreakerOpenTime = 30 * 1000;
+
+    /**
+     * The number of times a token request is sent at most, the first one
+     * included.
+     *
+     * Defaults to 3.
+     *
+     * @return the current maxAttempts
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * The number of times a token request is sent at most, the first one
+     * included. 1 disables retries.
+     *
+     * Defaults to 3.
+     *
+     * @param maxAttempts a new number of attempts
+     * @return the current policy
+     */
+    public OAuth2RetryPolicy setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * The longest wait in milliseconds before the first retry.
+     *
+     * Defaults to 500.
+     *
+     * @return the current initialBackoff
+     */
+    public long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * The longest wait in milliseconds before the first retry. It doubles
+     * with every further retry.
+     *
+     * Defaults to 500.
+     *
+     * @param initialBackoff a new backoff in milliseconds
+     * @return the current policy
+     */
+    public OAuth2RetryPolicy setInitialBackoff(long initialBackoff) {
+        if (initialBackoff < 0) {
+            throw new IllegalArgumentException("initialBackoff may not be negative");
+        }
+        this.initialBackoff = initialBackoff;
+        return this;
+    }
+
+    /**
+     * The longest wait in milliseconds before any retry, including one asked
+     * for with Retry-After.
+     *
+     * Defaults to 30 seconds.
+     *
+     * @return the current maxBackoff
+     */
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * The longest wait in milliseconds before any retry, including one asked
+     * for with Retry-After.
+     *
+     * Defaults to 30 seconds.
+     *
+     * @param maxBackoff a new backoff in milliseconds
+     * @return the current policy
+     */
+    public OAuth2RetryPolicy setMaxBackoff(long maxBackoff) {
+        if (maxBackoff < 0) {
+            throw new IllegalArgumentException("maxBackoff may not be negative");
+        }
+        this.maxBackoff = maxBackoff;
+        return this;
+    }
+
+    /**
+     * The number of failed token requests in a row which open the circuit
+     * breaker of a token endpoint.
+     *
+     * Defaults to 5.
+     *
+     * @return the current circuitBreakerThreshold
+     */
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    /**
+     * The number of failed token requests in a row which open the circuit
+     * breaker of a token endpoint. Every attempt counts, retries included.
+     *
+     * Defaults to 5.
+     *
+     * @param circuitBreakerThreshold a new number of failures
+     * @return the current policy
+     */
+    public OAuth2RetryPolicy setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        if (circuitBreakerThreshold < 1) {
+            throw new IllegalArgumentException("circuitBreakerThreshold must be at least 1");
+        }
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+        return this;
+    }
+
+    /**
+     * How many milliseconds an open circuit breaker fails token requests
+     * before it lets one through.
+     *
+     * Defaults to 30 seconds.
+     *
+     * @return the current circuitBreakerOpenTime
+     */
+    public long getCircuitBreakerOpenTime() {
+        return circuitBreakerOpenTime;
+    }
+
+    /**
+     * How many milliseconds an open circuit breaker fails token requests
+     * before it lets one through.
+     *
+     * Defaults to 30 seconds.
+     *
+     * @param circuitBreakerOpenTime a new time in milliseconds
+     * @return the current policy
+     */
+    public OAuth2RetryPolicy setCircuitBreakerOpenTime(long circuitBreakerOpenTime) {
+        if (circuitBreakerOpenTime < 0) {
+            throw new IllegalArgumentException("circuitBreakerOpenTime may not be negative");
+        }
+        this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+        return this;
+    }
+
+    /**
+     * @param retry the number of the retry, starting at 1
+     * @param random the source of the jitter
+     * @return how many milliseconds to wait before retry
+     */
+    public long backoff(int retry, Random random) {
+        long ceiling = maxBackoff;
+        if (retry - 1 < 62 && initialBackoff <= maxBackoff >> (retry - 1)) {
+            ceiling = initialBackoff << (retry - 1);
+        }
+        return (long) (random.nextDouble() * ceiling);
+    }
+
+    /**
+     * Reads a Retry-After header, which is either a number of seconds or an
+     * HTTP date.
+     *
+     * @param retryAfter the value of the header, may be null
+     * @param now the current time in milliseconds since the epoch
+     * @return the milliseconds to wait, or -1 if retryAfter is missing or
+     *         malformed
+     */
+    public static long parseRetryAfter(String retryAfter, long now) {
+        if (retryAfter == null) {
+            return -1;
+        }
+        retryAfter = retryAfter.trim();
+        try {
+            long seconds = Long.parseLong(retryAfter);
+            return seconds < 0 ? -1 : seconds * 1000;
+        } catch (NumberFormatException notSeconds) {
+            SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                return Math.max(0, format.parse(retryAfter).getTime() - now);
+            } catch (ParseException notDate) {
+                return -1;
+            }
+        }
+    }
+
+}
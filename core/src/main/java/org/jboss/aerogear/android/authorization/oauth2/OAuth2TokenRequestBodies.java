@@ -0,0 +1,131 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Map;
+
+/**
+ * Builds the form encoded bodies of token requests.
+ *
+ * Every parameter which does not change between requests is encoded once
+ * into a body prefix. Building a request then only encodes the
+ * authorization code or refresh token and appends it to the prefix.
+ *
+ * Instances are immutable.
+ */
+public final class OAuth2TokenRequestBodies {
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final String clientId;
+
+    private final byte[] codePrefix;
+    private final byte[] codePrefixWithClientId;
+    private final byte[] refreshPrefix;
+    private final byte[] refreshPrefixWithClientId;
+
+    /**
+     * @param clientId the client ID most requests are made for, may be null
+     * @param clientSecret the client secret, may be null
+     * @param redirectURL the redirect URL of code exchanges, may be null
+     * @param additionalParams further parameters sent with every request
+     */
+    public OAuth2TokenRequestBodies(String clientId, String clientSecret, String redirectURL,
+            Iterable<? extends Map.Entry<String, String>> additionalParams) {
+        this.clientId = clientId;
+
+        StringBuilder staticParams = new StringBuilder();
+        if (clientSecret != null) {
+            appendParam(staticParams, "client_secret", clientSecret);
+        }
+        for (Map.Entry<String, String> param : additionalParams) {
+            appendParam(staticParams, param.getKey(), param.getValue());
+        }
+
+        StringBuilder code = new StringBuilder("grant_type=authorization_code");
+        if (redirectURL != null) {
+            appendParam(code, "redirect_uri", redirectURL);
+        }
+        code.append(staticParams).append("&client_id=");
+        this.codePrefix = ascii(code);
+        this.codePrefixWithClientId = ascii(clientId == null ? code : code.append(encode(clientId)).append("&code="));
+
+        StringBuilder refresh = new StringBuilder("grant_type=refresh_token");
+        refresh.append(staticParams).append("&client_id=");
+        this.refreshPrefix = ascii(refresh);
+        this.refreshPrefixWithClientId = ascii(clientId == null ? refresh : refresh.append(encode(clientId)).append("&refresh_token="));
+    }
+
+    /**
+     * @param requestClientId the client ID the code was issued to
+     * @param authorizationCode the code to exchange
+     * @return the form encoded body of the code exchange
+     */
+    public byte[] codeExchangeBody(String requestClientId, String authorizationCode) {
+        return body(codePrefix, codePrefixWithClientId, requestClientId, "&code=", authorizationCode);
+    }
+
+    /**
+     * @param requestClientId the client ID the refresh token was issued to
+     * @param refreshToken the refresh token
+     * @return the form encoded body of the refresh
+     */
+    public byte[] refreshBody(String requestClientId, String refreshToken) {
+        return body(refreshPrefix, refreshPrefixWithClientId, requestClientId, "&refresh_token=", refreshToken);
+    }
+
+    private byte[] body(byte[] prefix, byte[] prefixWithClientId, String requestClientId, String name, String value) {
+        // The client id is almost always the configured one, in which case
+        // it is already part of the prefix.
+        if (clientId != null && clientId.equals(requestClientId)) {
+            return append(prefixWithClientId, encode(value));
+        }
+        return append(prefix, encode(requestClientId) + name + encode(value));
+    }
+
+    private static void appendParam(StringBuilder builder, String name, String value) {
+        builder.append('&').append(encode(name)).append('=').append(encode(value));
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * URLEncoder only produces ASCII, so the encoded text is copied one char
+     * to one byte.
+     */
+    private static byte[] append(byte[] prefix, String encoded) {
+        byte[] body = new byte[prefix.length + encoded.length()];
+        System.arraycopy(prefix, 0, body, 0, prefix.length);
+        for (int i = 0; i < encoded.length(); i++) {
+            body[prefix.length + i] = (byte) encoded.charAt(i);
+        }
+        return body;
+    }
+
+    private static byte[] ascii(CharSequence encoded) {
+        return append(new byte[0], encoded.toString());
+    }
+
+}
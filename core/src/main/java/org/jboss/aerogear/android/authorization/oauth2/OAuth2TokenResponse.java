@@ -0,0 +1,78 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+/**
+ * The fields of a token endpoint response which the authorization service
+ * uses. Fields which were not in the response are null, or -1 for
+ * expiresIn.
+ *
+ * @see OAuth2TokenResponseParser
+ */
+public final class OAuth2TokenResponse {
+
+    private final String accessToken;
+    private final long expiresIn;
+    private final String refreshToken;
+    private final String error;
+
+    public OAuth2TokenResponse(String accessToken, long expiresIn, String refreshToken, String error) {
+        this.accessToken = accessToken;
+        this.expiresIn = expiresIn;
+        this.refreshToken = refreshToken;
+        this.error = error;
+    }
+
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    /**
+     * @return the lifetime of the access token in seconds or -1 if the
+     *         response did not include one
+     */
+    public long getExpiresIn() {
+        return expiresIn;
+    }
+
+    public String getRefreshToken() {
+        return refreshToken;
+    }
+
+    /**
+     * If error was a JSON object or array this is its JSON text.
+     *
+     * @return the error returned by the token endpoint or null
+     */
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "OAuth2TokenResponse{" + "accessToken=" + redact(accessToken) + ", expiresIn=" + expiresIn
+                + ", refreshToken=" + redact(refreshToken) + ", error=" + error + '}';
+    }
+
+    /**
+     * Keeps credentials out of logs and exception messages.
+     */
+    private static String redact(String token) {
+        return token == null ? null : "<redacted>";
+    }
+
+}
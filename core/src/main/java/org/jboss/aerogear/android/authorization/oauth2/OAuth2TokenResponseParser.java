@@ -0,0 +1,221 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Reads token endpoint responses in a single pass over the response bytes.
+ *
+ * JSON bodies are read with a streaming {@link JsonReader} and form encoded
+ * bodies are scanned for their keys without splitting the body into
+ * strings. The encoding is taken from the Content-Type header, or from the
+ * first byte of the body when the header does not name one.
+ */
+public final class OAuth2TokenResponseParser {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] ACCESS_TOKEN = "access_token".getBytes(UTF_8);
+    private static final byte[] EXPIRES_IN = "expires_in".getBytes(UTF_8);
+    private static final byte[] REFRESH_TOKEN = "refresh_token".getBytes(UTF_8);
+    private static final byte[] ERROR = "error".getBytes(UTF_8);
+
+    private OAuth2TokenResponseParser() {
+    }
+
+    /**
+     * Parses a token endpoint response.
+     *
+     * @param body the response body
+     * @param contentType the Content-Type header of the response, may be null
+     * @return the fields of the response
+     * @throws OAuth2AuthorizationException if the body can not be parsed. The
+     *             error of the exception is the body text.
+     */
+    public static OAuth2TokenResponse parse(byte[] body, String contentType) throws OAuth2AuthorizationException {
+        if (body == null) {
+            body = new byte[0];
+        }
+
+        try {
+            if (isJson(body, contentType)) {
+                return parseJson(body);
+            } else {
+                return parseForm(body);
+            }
+        } catch (IOException ex) {
+            throw unparseable(body, ex);
+        } catch (IllegalStateException ex) {
+            throw unparseable(body, ex);
+        } catch (NumberFormatException ex) {
+            throw unparseable(body, ex);
+        } catch (JsonParseException ex) {
+            // Thrown by JsonParser for a malformed object or array error
+            throw unparseable(body, ex);
+        }
+    }
+
+    private static boolean isJson(byte[] body, String contentType) {
+        if (contentType != null) {
+            String type = contentType.toLowerCase(Locale.US);
+            if (type.contains("json")) {
+                return true;
+            } else if (type.contains("x-www-form-urlencoded")) {
+                return false;
+            }
+        }
+
+        for (byte b : body) {
+            if (!isWhitespace(b)) {
+                return b == '{';
+            }
+        }
+        return false;
+    }
+
+    private static OAuth2TokenResponse parseJson(byte[] body) throws IOException {
+        String accessToken = null;
+        long expiresIn = -1;
+        String refreshToken = null;
+        String error = null;
+
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(body), UTF_8));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("access_token".equals(name)) {
+                    accessToken = nextString(reader);
+                } else if ("expires_in".equals(name)) {
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                    } else {
+                        expiresIn = reader.nextLong();
+                    }
+                } else if ("refresh_token".equals(name)) {
+                    refreshToken = nextString(reader);
+                } else if ("error".equals(name)) {
+                    JsonToken token = reader.peek();
+                    if (token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY) {
+                        error = new JsonParser().parse(reader).toString();
+                    } else {
+                        error = nextString(reader);
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+
+        return new OAuth2TokenResponse(accessToken, expiresIn, refreshToken, error);
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        } else if (token == JsonToken.BOOLEAN) {
+            return String.valueOf(reader.nextBoolean());
+        }
+        return reader.nextString();
+    }
+
+    private static OAuth2TokenResponse parseForm(byte[] body) throws IOException {
+        String accessToken = null;
+        long expiresIn = -1;
+        String refreshToken = null;
+        String error = null;
+
+        int length = body.length;
+        while (length > 0 && isWhitespace(body[length - 1])) {
+            length--;
+        }
+
+        int start = 0;
+        while (start < length) {
+            int end = indexOf(body, (byte) '&', start, length);
+            int equals = indexOf(body, (byte) '=', start, end);
+
+            if (equals < end) {
+                if (keyEquals(body, start, equals, ACCESS_TOKEN)) {
+                    accessToken = decode(body, equals + 1, end);
+                } else if (keyEquals(body, start, equals, EXPIRES_IN)) {
+                    expiresIn = Long.parseLong(decode(body, equals + 1, end));
+                } else if (keyEquals(body, start, equals, REFRESH_TOKEN)) {
+                    refreshToken = decode(body, equals + 1, end);
+                } else if (keyEquals(body, start, equals, ERROR)) {
+                    error = decode(body, equals + 1, end);
+                }
+            }
+
+            start = end + 1;
+        }
+
+        return new OAuth2TokenResponse(accessToken, expiresIn, refreshToken, error);
+    }
+
+    private static int indexOf(byte[] body, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (body[i] == value) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static boolean keyEquals(byte[] body, int from, int to, byte[] key) {
+        if (to - from != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (body[from + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(byte[] body, int from, int to) throws IOException {
+        return URLDecoder.decode(new String(body, from, to - from, UTF_8), "UTF-8");
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static OAuth2AuthorizationException unparseable(byte[] body, Exception cause) {
+        OAuth2AuthorizationException exception = new OAuth2AuthorizationException(new String(body, UTF_8));
+        exception.initCause(cause);
+        return exception;
+    }
+
+}
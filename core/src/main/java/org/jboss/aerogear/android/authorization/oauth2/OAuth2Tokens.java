@@ -0,0 +1,56 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+/**
+ * Expiry checks and header values for bearer tokens.
+ */
+public final class OAuth2Tokens {
+
+    private static final String BEARER = "Bearer ";
+
+    private OAuth2Tokens() {
+    }
+
+    /**
+     * @param accessToken an access token
+     * @return the value of the Authorization header for accessToken
+     */
+    public static String authorizationHeader(String accessToken) {
+        return BEARER + accessToken;
+    }
+
+    /**
+     * @param issuedAt when the token was issued, in milliseconds since the
+     *            epoch
+     * @param expiresIn the lifetime the token endpoint gave, in seconds
+     * @return when the token expires, in milliseconds since the epoch
+     */
+    public static long expiresOn(long issuedAt, long expiresIn) {
+        return issuedAt + expiresIn * 1000;
+    }
+
+    /**
+     * @param expiresOn when the token expires, or 0 if it does not
+     * @param time a time in milliseconds since the epoch
+     * @return true if the token has no expiry or expires after time
+     */
+    public static boolean isNotExpiredAt(long expiresOn, long time) {
+        return expiresOn == 0 || expiresOn > time;
+    }
+
+}
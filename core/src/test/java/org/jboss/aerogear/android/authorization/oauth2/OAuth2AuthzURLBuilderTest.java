@@ -0,0 +1,53 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import java.net.URL;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the {@link OAuth2AuthzURLBuilder} class.
+ */
+public class OAuth2AuthzURLBuilderTest {
+
+    @Test
+    public void testBuildEncodesEveryPart() throws Exception {
+        Map.Entry<String, String> prompt = new AbstractMap.SimpleImmutableEntry<String, String>("login hint", "a@b.c");
+
+        URL url = OAuth2AuthzURLBuilder.build(new URL("https://example.com/auth"), "app:/redirect",
+                Arrays.asList("openid", "a b"), "client", "state", Collections.singletonList(prompt));
+
+        Assert.assertEquals("https://example.com/auth?scope=openid+a+b&redirect_uri=app%3A%2Fredirect&client_id=client"
+                + "&state=state&response_type=code&login+hint=a%40b.c", url.toString());
+    }
+
+    @Test
+    public void testNoAdditionalParams() throws Exception {
+        URL url = OAuth2AuthzURLBuilder.build(new URL("https://example.com/auth"), "app:/redirect",
+                Collections.<String>emptyList(), "client", "state", null);
+
+        Assert.assertEquals("https://example.com/auth?scope=&redirect_uri=app%3A%2Fredirect&client_id=client"
+                + "&state=state&response_type=code", url.toString());
+    }
+
+}
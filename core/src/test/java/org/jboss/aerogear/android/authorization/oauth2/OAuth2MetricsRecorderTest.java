@@ -0,0 +1,106 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the {@link OAuth2MetricsRecorder} and {@link OAuth2Histogram}
+ * classes.
+ */
+public class OAuth2MetricsRecorderTest {
+
+    @Test
+    public void testSmallValuesHaveTheirOwnBucket() {
+        for (long value = 0; value < OAuth2Histogram.SUB_BUCKETS; value++) {
+            Assert.assertEquals(value, OAuth2Histogram.upperBoundOf(OAuth2Histogram.bucketOf(value)));
+        }
+    }
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        long[] values = {16, 17, 31, 32, 1000, 999999, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = OAuth2Histogram.bucketOf(value);
+            long upperBound = OAuth2Histogram.upperBoundOf(bucket);
+            Assert.assertTrue(value + " above its bucket", value <= upperBound);
+            Assert.assertTrue(value + " below its bucket", bucket == 0 || value > OAuth2Histogram.upperBoundOf(bucket - 1));
+            Assert.assertTrue(value + " too far from its bound", upperBound - value <= value / OAuth2Histogram.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        OAuth2Histogram histogram = new OAuth2Histogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000000, histogram.getMax());
+        Assert.assertEquals(500500, histogram.getMean(), 0.1);
+        Assert.assertEquals(500000, histogram.getPercentile(50), 500000 / OAuth2Histogram.SUB_BUCKETS);
+        Assert.assertEquals(990000, histogram.getPercentile(99), 990000 / OAuth2Histogram.SUB_BUCKETS);
+        Assert.assertEquals(1000000, histogram.getPercentile(100));
+        Assert.assertEquals(1000, histogram.getPercentile(0), 1000 / OAuth2Histogram.SUB_BUCKETS);
+    }
+
+    @Test
+    public void testConcurrentRecordsAreAllCounted() throws InterruptedException {
+        final OAuth2MetricsRecorder recorder = new OAuth2MetricsRecorder();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        recorder.record(OAuth2Metrics.Timer.STORE_READ, j);
+                        recorder.increment(OAuth2Metrics.Counter.CACHE_HIT);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(40000, recorder.getHistogram(OAuth2Metrics.Timer.STORE_READ).getCount());
+        Assert.assertEquals(9999, recorder.getHistogram(OAuth2Metrics.Timer.STORE_READ).getMax());
+        Assert.assertEquals(40000, recorder.getCount(OAuth2Metrics.Counter.CACHE_HIT));
+        Assert.assertEquals(0, recorder.getCount(OAuth2Metrics.Counter.CACHE_MISS));
+    }
+
+    @Test
+    public void testCacheHitRatioAndReset() {
+        OAuth2MetricsRecorder recorder = new OAuth2MetricsRecorder();
+        Assert.assertEquals(0, recorder.getCacheHitRatio(), 0);
+
+        recorder.increment(OAuth2Metrics.Counter.CACHE_HIT);
+        recorder.increment(OAuth2Metrics.Counter.CACHE_HIT);
+        recorder.increment(OAuth2Metrics.Counter.CACHE_HIT);
+        recorder.increment(OAuth2Metrics.Counter.CACHE_MISS);
+        recorder.record(OAuth2Metrics.Timer.MAIN_THREAD, 5000);
+        Assert.assertEquals(0.75, recorder.getCacheHitRatio(), 0);
+
+        recorder.reset();
+        Assert.assertEquals(0, recorder.getCount(OAuth2Metrics.Counter.CACHE_HIT));
+        Assert.assertEquals(0, recorder.getHistogram(OAuth2Metrics.Timer.MAIN_THREAD).getCount());
+    }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the {@link OAuth2RetryPolicy} and {@link OAuth2CircuitBreaker}
+ * classes.
+ */
+public class OAuth2RetryPolicyTest {
+
+    @Test
+    public void testBackoffGrowsUpToItsCap() {
+        OAuth2RetryPolicy policy = new OAuth2RetryPolicy().setInitialBackoff(100).setMaxBackoff(1000);
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(policy.backoff(1, random) < 100);
+            Assert.assertTrue(policy.backoff(3, random) < 400);
+            Assert.assertTrue(policy.backoff(10, random) < 1000);
+            Assert.assertTrue(policy.backoff(100, random) < 1000);
+        }
+    }
+
+    @Test
+    public void testBackoffIsJittered() {
+        OAuth2RetryPolicy policy = new OAuth2RetryPolicy().setInitialBackoff(1000);
+        Random random = new Random(42);
+        long first = policy.backoff(1, random);
+        boolean varies = false;
+        for (int i = 0; i < 10; i++) {
+            varies |= policy.backoff(1, random) != first;
+        }
+        Assert.assertTrue(varies);
+    }
+
+    @Test
+    public void testRetryAfter() {
+        Assert.assertEquals(120000, OAuth2RetryPolicy.parseRetryAfter("120", 0));
+        Assert.assertEquals(-1, OAuth2RetryPolicy.parseRetryAfter(null, 0));
+        Assert.assertEquals(-1, OAuth2RetryPolicy.parseRetryAfter("soon", 0));
+        Assert.assertEquals(-1, OAuth2RetryPolicy.parseRetryAfter("-5", 0));
+        // Sun, 06 Nov 1994 08:49:37 GMT is 784111777000 ms after the epoch
+        Assert.assertEquals(7000, OAuth2RetryPolicy.parseRetryAfter("Sun, 06 Nov 1994 08:49:37 GMT", 784111770000L));
+        Assert.assertEquals(0, OAuth2RetryPolicy.parseRetryAfter("Sun, 06 Nov 1994 08:49:37 GMT", 784111780000L));
+    }
+
+    @Test
+    public void testCircuitOpensAfterThresholdAndLetsOneTrialThrough() {
+        OAuth2RetryPolicy policy = new OAuth2RetryPolicy().setCircuitBreakerThreshold(3).setCircuitBreakerOpenTime(1000);
+        OAuth2CircuitBreaker breaker = new OAuth2CircuitBreaker();
+
+        breaker.onFailure(0, policy);
+        breaker.onFailure(0, policy);
+        Assert.assertTrue(breaker.allowRequest(0));
+        breaker.onFailure(0, policy);
+        Assert.assertFalse(breaker.allowRequest(999));
+
+        Assert.assertTrue(breaker.allowRequest(1000));
+        Assert.assertFalse(breaker.allowRequest(1000));
+        breaker.onFailure(1000, policy);
+        Assert.assertFalse(breaker.allowRequest(1999));
+
+        Assert.assertTrue(breaker.allowRequest(2000));
+        breaker.onSuccess();
+        Assert.assertTrue(breaker.allowRequest(2000));
+        Assert.assertTrue(breaker.allowRequest(2000));
+        Assert.assertFalse(breaker.isOpen(2000));
+    }
+
+    @Test
+    public void testSuccessResetsFailureCount() {
+        OAuth2RetryPolicy policy = new OAuth2RetryPolicy().setCircuitBreakerThreshold(2);
+        OAuth2CircuitBreaker breaker = new OAuth2CircuitBreaker();
+
+        breaker.onFailure(0, policy);
+        breaker.onSuccess();
+        breaker.onFailure(0, policy);
+        Assert.assertTrue(breaker.allowRequest(0));
+    }
+
+}
@@ -0,0 +1,44 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the {@link OAuth2Tokens} class.
+ */
+public class OAuth2TokensTest {
+
+    @Test
+    public void testTokenWithoutExpiryNeverExpires() {
+        Assert.assertTrue(OAuth2Tokens.isNotExpiredAt(0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testTokenExpiresAtItsExpiry() {
+        Assert.assertTrue(OAuth2Tokens.isNotExpiredAt(1001, 1000));
+        Assert.assertFalse(OAuth2Tokens.isNotExpiredAt(1000, 1000));
+    }
+
+    @Test
+    public void testExpiresInIsSeconds() {
+        Assert.assertEquals(3601000, OAuth2Tokens.expiresOn(1000, 3600));
+        Assert.assertEquals("Bearer abc", OAuth2Tokens.authorizationHeader("abc"));
+    }
+
+}
@@ -0,0 +1,141 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.test.oauth2;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthorizationException;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzSession;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2MemorySessionStore;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2Properties;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2TokenEngine;
+import org.jboss.aerogear.android.authorization.test.util.LocalTokenServer;
+import org.jboss.aerogear.android.authorization.test.util.TokenLoadHarness;
+import org.jboss.aerogear.android.authorization.test.util.UnitTestUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Runs the {@link OAuth2TokenEngine} against a {@link LocalTokenServer} over
+ * real HTTP.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AuthzServiceLoadTest {
+
+    private static final String TAG = AuthzServiceLoadTest.class.getSimpleName();
+
+    private LocalTokenServer server;
+    private OAuth2TokenEngine engine;
+    private OAuth2Properties config;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalTokenServer();
+        engine = new OAuth2TokenEngine();
+        UnitTestUtils.setPrivateField(engine, "sessionStore", OAuth2MemorySessionStore.FACTORY.open(null));
+
+        config = new OAuth2Properties(server.getBaseURL(), "load");
+        config.setAccessTokenEndpoint("/token");
+        config.setRefreshEndpoint("/token");
+        config.setClientId("load-client");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        UnitTestUtils.callMethod(engine, "shutdown");
+        server.close();
+    }
+
+    @Test
+    public void testConcurrentCallersShareEachRefresh() throws Exception {
+        server.setLatency(5, 20);
+        server.setExpiresIn(1);
+        server.setRotateRefreshTokens(true);
+
+        TokenLoadHarness.Report report = new TokenLoadHarness(engine, config, server).run(16, 8, 2500);
+        Log.i(TAG, "rotating refresh tokens: " + report);
+
+        Assert.assertEquals(0, report.getFailures());
+        Assert.assertEquals(0, server.getInvalidGrantCount());
+        Assert.assertTrue(report.getRefreshes() >= 8);
+        // A second exchange for the same expiry would have been rejected by
+        // the rotation, so every exchange produced a token a caller got
+        Assert.assertEquals(report.getExchanges(), report.getRefreshes());
+    }
+
+    @Test
+    public void testFormEncodedResponses() throws Exception {
+        server.setFormEncoded(true);
+
+        TokenLoadHarness.Report report = new TokenLoadHarness(engine, config, server).run(4, 4, 300);
+        Log.i(TAG, "form encoded: " + report);
+
+        Assert.assertEquals(0, report.getFailures());
+        Assert.assertEquals(4, report.getExchanges());
+        Assert.assertTrue(engine.getAccount("load-0").getAccessToken().startsWith("at-"));
+    }
+
+    @Test
+    public void testServerErrorsFailCallsWithoutCorruptingSessions() throws Exception {
+        server.setServerErrorRate(0.5);
+        server.setExpiresIn(1);
+
+        TokenLoadHarness.Report report = new TokenLoadHarness(engine, config, server).run(8, 4, 1500);
+        Log.i(TAG, "50% server errors: " + report);
+
+        Assert.assertTrue(server.getServerErrorCount() > 0);
+        Assert.assertTrue(report.getFailures() > 0);
+        Assert.assertTrue(report.getRefreshes() > 0);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertNotNull(engine.getAccount("load-" + i).getRefreshToken());
+        }
+    }
+
+    @Test
+    public void testRevokedRefreshTokenIsInvalidGrant() throws Exception {
+        OAuth2AuthzSession session = new OAuth2AuthzSession();
+        session.setAccountId("revoked");
+        session.setClientId("load-client");
+        session.setAccessToken("expired");
+        session.setExpires_on(1);
+        session.setRefreshToken(server.issueRefreshToken());
+        engine.addAccount(session);
+        server.revoke(session.getRefreshToken());
+
+        try {
+            engine.fetchAccessToken("revoked", config);
+            Assert.fail("Expected invalid_grant");
+        } catch (OAuth2AuthorizationException ex) {
+            Assert.assertEquals("invalid_grant", ex.error);
+        }
+        Assert.assertEquals(1, server.getInvalidGrantCount());
+    }
+
+    @Test
+    public void testAuthorizationCodeExchange() throws Exception {
+        OAuth2AuthzSession session = engine.exchangeAuthorizationCode("coded", "load-client", server.issueAuthorizationCode(), config);
+
+        Assert.assertTrue(session.getAccessToken().startsWith("at-"));
+        Assert.assertTrue(session.getRefreshToken().startsWith("rt-"));
+        Assert.assertEquals(1, server.getCodeExchangeCount());
+    }
+
+}
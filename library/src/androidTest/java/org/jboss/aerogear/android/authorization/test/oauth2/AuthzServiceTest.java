@@ -16,38 +16,73 @@
  */
 package org.jboss.aerogear.android.authorization.test.oauth2;
 
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.support.test.runner.AndroidJUnit4;
+import android.util.Pair;
 
 import com.google.gson.JsonObject;
 
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthorizationException;
-import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzService;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzSession;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2Metrics;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2MetricsRecorder;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2Properties;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2RefreshResult;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2RetryPolicy;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2SessionStore;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2TokenEngine;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2TokenTransport;
 import org.jboss.aerogear.android.authorization.test.util.UnitTestUtils;
 import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
 import org.jboss.aerogear.android.pipe.http.HttpException;
 import org.jboss.aerogear.android.pipe.http.HttpProvider;
-import org.jboss.aerogear.android.store.Store;
-import org.jboss.aerogear.android.store.sql.SQLStore;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static java.util.Calendar.HOUR;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(AndroidJUnit4.class)
@@ -56,8 +91,8 @@ public class AuthzServiceTest {
     @Rule
     public ExpectedException expectedEx = ExpectedException.none();
 
-    private OAuth2AuthzService service;
-    private Store mockStore;
+    private OAuth2TokenEngine engine;
+    private OAuth2SessionStore mockStore;
     private OAuth2AuthzSession account;
     private URL baseUrl;
     private HttpProvider mockProvider;
@@ -65,17 +100,18 @@ public class AuthzServiceTest {
 
     @Before
     public void setUp() throws Exception {
-        mockStore = mock(SQLStore.class);
+        mockStore = mock(OAuth2SessionStore.class);
         mockProvider = mock(HttpProvider.class);
-        service = new OAuth2AuthzService() {
+        engine = new OAuth2TokenEngine();
+        engine.setTokenTransport(new OAuth2TokenTransport() {
 
             @Override
-            protected HttpProvider getHttpProvider(URL url) {
-                return mockProvider;
+            public HeaderAndBody post(URL endpoint, byte[] formBody) {
+                return mockProvider.post(formBody);
             }
 
-        };
-        UnitTestUtils.setPrivateField(service, "sessionStore", mockStore);
+        });
+        UnitTestUtils.setPrivateField(engine, "sessionStore", mockStore);
 
         account = new OAuth2AuthzSession();
         account.setAccessToken("testToken");
@@ -90,7 +126,7 @@ public class AuthzServiceTest {
 
     @Test
     public void testFetchTokenReturnsNullForNoAccount() throws OAuth2AuthorizationException {
-        Assert.assertEquals(null, service.fetchAccessToken("testAccount", new OAuth2Properties(null, null)));
+        Assert.assertEquals(null, engine.fetchAccessToken("testAccount", new OAuth2Properties(null, null)));
     }
 
     @Test
@@ -98,7 +134,7 @@ public class AuthzServiceTest {
         account.setExpires_on(hourFromNow());
         when(mockStore.read(eq("testAccountId"))).thenReturn(account);
 
-        Assert.assertEquals("testToken", service.fetchAccessToken("testAccountId", new OAuth2Properties(null, null)));
+        Assert.assertEquals("testToken", engine.fetchAccessToken("testAccountId", new OAuth2Properties(null, null)));
     }
 
  
@@ -109,7 +145,7 @@ public class AuthzServiceTest {
 
         when(mockProvider.post((byte[]) any())).thenThrow(new HttpException("{\"error\":{\"message\":\"this is a message\"}}".getBytes(), HttpURLConnection.HTTP_BAD_REQUEST));
         try {
-            service.fetchAccessToken("testAccountId", new OAuth2Properties(baseUrl, null));
+            engine.fetchAccessToken("testAccountId", new OAuth2Properties(baseUrl, null));
         } catch (OAuth2AuthorizationException exception) {
             //I'm not using the test annotation or an exception rule here
             // because for some reason the android libs miss one of the classes
@@ -129,7 +165,7 @@ public class AuthzServiceTest {
 
         when(mockProvider.post((byte[]) any())).thenThrow(new HttpException("{\"error\":\"this is a message\"}".getBytes(), HttpURLConnection.HTTP_BAD_REQUEST));
         try {
-            service.fetchAccessToken("testAccountId", new OAuth2Properties(baseUrl, null));
+            engine.fetchAccessToken("testAccountId", new OAuth2Properties(baseUrl, null));
         } catch (OAuth2AuthorizationException exception) {
             //I'm not using the test annotation or an exception rule here
             // because for some reason the android libs miss one of the classes
@@ -162,7 +198,767 @@ public class AuthzServiceTest {
             }
         });
 
-        Assert.assertEquals("testRefreshedAccessToken", service.fetchAccessToken("testAccountId", new OAuth2Properties(baseUrl, null)));
+        Assert.assertEquals("testRefreshedAccessToken", engine.fetchAccessToken("testAccountId", new OAuth2Properties(baseUrl, null)));
+    }
+
+    @Test
+    public void testRefreshTokenFormResponse() throws OAuth2AuthorizationException {
+        account.setExpires_on(hourAgo());
+        when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+
+        when(mockProvider.post((byte[]) any())).thenAnswer(new Answer<HeaderAndBody>() {
+
+            @Override
+            public HeaderAndBody answer(InvocationOnMock invocation) throws Throwable {
+                HashMap<String, Object> headers = new HashMap<String, Object>();
+                headers.put("Content-Type", "application/x-www-form-urlencoded");
+                return new HeaderAndBody("access_token=testRefreshedAccessToken&expires_in=3600&refresh_token=testRotatedRefreshToken".getBytes(), headers);
+            }
+        });
+
+        Assert.assertEquals("testRefreshedAccessToken", engine.fetchAccessToken("testAccountId", new OAuth2Properties(baseUrl, null)));
+        Assert.assertEquals("testRotatedRefreshToken", engine.getAccount("testAccountId").getRefreshToken());
+        Assert.assertTrue(engine.getAccount("testAccountId").tokenIsNotExpired());
+    }
+
+    @Test
+    public void testRefreshFollowsChangedProperties() throws Exception {
+        account.setExpires_on(hourAgo());
+        when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+        when(mockProvider.post((byte[]) any())).thenThrow(new HttpException("{\"error\":\"invalid_grant\"}".getBytes(), HttpURLConnection.HTTP_BAD_REQUEST));
+
+        OAuth2Properties config = new OAuth2Properties(baseUrl, null);
+        config.setClientId("testClientId");
+        config.setClientSecret("firstSecret");
+        fetchExpectingInvalidGrant(config);
+
+        config.setClientSecret("secondSecret");
+        config.getAdditionalAccessParams().add(new Pair<String, String>("audience", "api"));
+        fetchExpectingInvalidGrant(config);
+
+        ArgumentCaptor<byte[]> bodies = ArgumentCaptor.forClass(byte[].class);
+        verify(mockProvider, times(2)).post(bodies.capture());
+        String first = new String(bodies.getAllValues().get(0), "UTF-8");
+        String second = new String(bodies.getAllValues().get(1), "UTF-8");
+
+        Assert.assertTrue(first.contains("client_secret=firstSecret"));
+        Assert.assertFalse(first.contains("audience"));
+        Assert.assertTrue(second.contains("client_secret=secondSecret"));
+        Assert.assertTrue(second.contains("&audience=api"));
+        Assert.assertTrue(second.contains("&refresh_token=testRefreshToken"));
+    }
+
+    @Test
+    public void testRejectedTokenIsRefreshedBeforeItExpires() throws OAuth2AuthorizationException {
+        account.setExpires_on(hourFromNow());
+        when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+        when(mockProvider.post((byte[]) any())).thenAnswer(new Answer<HeaderAndBody>() {
+
+            @Override
+            public HeaderAndBody answer(InvocationOnMock invocation) throws Throwable {
+                JsonObject object = new JsonObject();
+                object.addProperty("access_token", "testReplacedToken");
+                object.addProperty("expires_in", 3600);
+                return new HeaderAndBody(object.toString().getBytes(), new HashMap<String, Object>());
+            }
+        });
+
+        OAuth2Properties config = new OAuth2Properties(baseUrl, null);
+        Assert.assertEquals("testToken", engine.fetchAccessToken("testAccountId", config));
+        Assert.assertEquals("testReplacedToken", engine.refreshRejectedAccessToken("testAccountId", "testToken", config));
+
+        // A second rejection of the old token finds it already replaced
+        Assert.assertEquals("testReplacedToken", engine.refreshRejectedAccessToken("testAccountId", "testToken", config));
+        verify(mockProvider, times(1)).post((byte[]) any());
+    }
+
+    @Test
+    public void testExchangeAuthorizationCodeWritesSessionOnce() throws OAuth2AuthorizationException {
+        when(mockProvider.post((byte[]) any())).thenAnswer(new Answer<HeaderAndBody>() {
+
+            @Override
+            public HeaderAndBody answer(InvocationOnMock invocation) throws Throwable {
+
+                JsonObject object = new JsonObject();
+                object.addProperty("access_token", "testExchangedAccessToken");
+                object.addProperty("expires_in", 3600);
+                object.addProperty("refresh_token", "testRefreshToken");
+
+                return new HeaderAndBody(object.toString().getBytes(), new HashMap<String, Object>());
+            }
+        });
+
+        OAuth2AuthzSession session = engine.exchangeAuthorizationCode("testAccountId", "testClientId", "testCode", new OAuth2Properties(baseUrl, null));
+
+        Assert.assertEquals("testExchangedAccessToken", session.getAccessToken());
+        Assert.assertEquals("testRefreshToken", session.getRefreshToken());
+        Assert.assertEquals("", session.getAuthorizationCode());
+        Assert.assertEquals("testExchangedAccessToken", engine.getAccount("testAccountId").getAccessToken());
+
+        verify(mockStore, times(1)).save(eq(session));
+        verify(mockStore, never()).remove(any(String.class));
+
+        session.setAccessToken("changedToken");
+        Assert.assertEquals("testExchangedAccessToken", engine.getAccount("testAccountId").getAccessToken());
+        verify(mockStore, never()).read(any(String.class));
+    }
+
+    @Test
+    public void testFailedCodeExchangeStoresNothing() {
+        when(mockProvider.post((byte[]) any())).thenThrow(new HttpException("{\"error\":\"invalid_grant\"}".getBytes(), HttpURLConnection.HTTP_BAD_REQUEST));
+
+        try {
+            engine.exchangeAuthorizationCode("testAccountId", "testClientId", "testCode", new OAuth2Properties(baseUrl, null));
+            Assert.fail("Exception not thrown");
+        } catch (OAuth2AuthorizationException exception) {
+            Assert.assertEquals("invalid_grant", exception.error);
+        }
+
+        verify(mockStore, never()).remove(any(String.class));
+        verify(mockStore, never()).save(any(OAuth2AuthzSession.class));
+    }
+
+    @Test
+    public void testServerErrorsAreRetried() throws OAuth2AuthorizationException {
+        account.setExpires_on(hourAgo());
+        when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+        Map<String, String> retryNow = new HashMap<String, String>();
+        retryNow.put("Retry-After", "0");
+        when(mockProvider.post((byte[]) any()))
+                .thenThrow(new HttpException(new byte[0], HttpURLConnection.HTTP_UNAVAILABLE))
+                .thenThrow(new HttpException(new byte[0], HttpURLConnection.HTTP_BAD_GATEWAY, retryNow))
+                .thenReturn(new HeaderAndBody("{\"access_token\":\"testRefreshedAccessToken\",\"expires_in\":3600}".getBytes(), new HashMap<String, Object>()));
+
+        OAuth2Properties config = new OAuth2Properties(baseUrl, null);
+        config.setRetryPolicy(new OAuth2RetryPolicy().setInitialBackoff(10));
+
+        Assert.assertEquals("testRefreshedAccessToken", engine.fetchAccessToken("testAccountId", config));
+        verify(mockProvider, times(3)).post((byte[]) any());
+    }
+
+    @Test
+    public void testClientErrorsAreNotRetried() {
+        when(mockProvider.post((byte[]) any())).thenThrow(new HttpException("{\"error\":\"invalid_grant\"}".getBytes(), HttpURLConnection.HTTP_BAD_REQUEST));
+        OAuth2Properties config = new OAuth2Properties(baseUrl, null);
+        config.setRetryPolicy(new OAuth2RetryPolicy().setInitialBackoff(10).setCircuitBreakerThreshold(1));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                engine.exchangeAuthorizationCode("testAccountId", "testClientId", "testCode", config);
+                Assert.fail("Exception not thrown");
+            } catch (OAuth2AuthorizationException exception) {
+                Assert.assertEquals("invalid_grant", exception.error);
+            }
+        }
+        verify(mockProvider, times(2)).post((byte[]) any());
+    }
+
+    @Test
+    public void testOpenCircuitFailsFast() throws Exception {
+        account.setExpires_on(hourAgo());
+        when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+        when(mockProvider.post((byte[]) any())).thenThrow(new HttpException(new byte[0], HttpURLConnection.HTTP_UNAVAILABLE));
+
+        OAuth2Properties config = new OAuth2Properties(baseUrl, null);
+        config.setRefreshEndpoint("/token");
+        config.setRetryPolicy(new OAuth2RetryPolicy().setMaxAttempts(2).setInitialBackoff(1).setCircuitBreakerThreshold(2)
+                .setCircuitBreakerOpenTime(60 * 1000));
+
+        try {
+            engine.fetchAccessToken("testAccountId", config);
+            Assert.fail("Exception not thrown");
+        } catch (HttpException exception) {
+            Assert.assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, exception.getStatusCode());
+        }
+        Assert.assertTrue(engine.isCircuitOpen(new URL("http://example.com/token")));
+
+        try {
+            engine.fetchAccessToken("testAccountId", config);
+            Assert.fail("Exception not thrown");
+        } catch (OAuth2AuthorizationException exception) {
+            Assert.assertEquals(OAuth2AuthorizationException.Error.TEMPORARILY_UNAVAILABLE, exception.getType());
+        }
+        verify(mockProvider, times(2)).post((byte[]) any());
+    }
+
+    @Test
+    public void testLongRetryAfterOpensCircuit() throws Exception {
+        Map<String, String> retryLater = new HashMap<String, String>();
+        retryLater.put("Retry-After", "3600");
+        when(mockProvider.post((byte[]) any())).thenThrow(new HttpException(new byte[0], 429, retryLater));
+
+        OAuth2Properties config = new OAuth2Properties(baseUrl, null);
+        config.setAccessTokenEndpoint("/token");
+        config.setRetryPolicy(new OAuth2RetryPolicy());
+
+        try {
+            engine.exchangeAuthorizationCode("testAccountId", "testClientId", "testCode", config);
+            Assert.fail("Exception not thrown");
+        } catch (HttpException exception) {
+            Assert.assertEquals(429, exception.getStatusCode());
+        } catch (OAuth2AuthorizationException exception) {
+            Assert.fail("Sent more than once");
+        }
+        Assert.assertTrue(engine.isCircuitOpen(new URL("http://example.com/token")));
+        verify(mockProvider, times(1)).post((byte[]) any());
+    }
+
+    @Test
+    public void testOfflineRefreshFailsFastAndResumesWhenOnline() throws Exception {
+        NetworkInfo network = mock(NetworkInfo.class);
+        Context context = offlineContext(network);
+        account.setExpires_on(hourAgo());
+        when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+        when(mockProvider.post((byte[]) any())).thenReturn(new HeaderAndBody(
+                "{\"access_token\":\"testRefreshedAccessToken\",\"expires_in\":3600}".getBytes(), new HashMap<String, Object>()));
+
+        OAuth2Properties config = new OAuth2Properties(baseUrl, null);
+        config.setOfflineMode(true);
+        config.setExchangeExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        try {
+            engine.fetchAccessToken("testAccountId", config);
+            Assert.fail("Exception not thrown");
+        } catch (OAuth2AuthorizationException exception) {
+            Assert.assertEquals(OAuth2AuthorizationException.Error.TEMPORARILY_UNAVAILABLE, exception.getType());
+        }
+        verify(mockProvider, never()).post((byte[]) any());
+
+        ArgumentCaptor<BroadcastReceiver> receiver = ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(context).registerReceiver(receiver.capture(), any(IntentFilter.class));
+        when(network.isConnected()).thenReturn(true);
+        receiver.getValue().onReceive(context, new Intent());
+
+        verify(mockProvider, times(1)).post((byte[]) any());
+        verify(context).unregisterReceiver(receiver.getValue());
+        Assert.assertEquals("testRefreshedAccessToken", engine.fetchAccessToken("testAccountId", config));
+    }
+
+    @Test
+    public void testOfflineGracePeriodServesLastToken() throws Exception {
+        offlineContext(mock(NetworkInfo.class));
+        account.setExpires_on(System.currentTimeMillis() - 60 * 1000);
+        when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+
+        OAuth2Properties config = new OAuth2Properties(baseUrl, null);
+        config.setOfflineMode(true);
+        config.setOfflineGracePeriod(10 * 60 * 1000);
+        Assert.assertEquals("testToken", engine.fetchAccessToken("testAccountId", config));
+
+        config.setOfflineGracePeriod(30 * 1000);
+        try {
+            engine.fetchAccessToken("testAccountId", config);
+            Assert.fail("Exception not thrown");
+        } catch (OAuth2AuthorizationException exception) {
+            Assert.assertEquals(OAuth2AuthorizationException.Error.TEMPORARILY_UNAVAILABLE, exception.getType());
+        }
+        verify(mockProvider, never()).post((byte[]) any());
+    }
+
+    @Test
+    public void testValidTokenIsServedFromSessionCache() throws OAuth2AuthorizationException {
+        OAuth2MetricsRecorder metrics = new OAuth2MetricsRecorder();
+        OAuth2Metrics previous = OAuth2TokenEngine.getMetrics();
+        OAuth2TokenEngine.setMetrics(metrics);
+        try {
+            account.setExpires_on(hourFromNow());
+            when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+
+            OAuth2Properties config = new OAuth2Properties(null, null);
+            Assert.assertTrue(engine.hasAccount("testAccountId"));
+            Assert.assertEquals("testToken", engine.fetchAccessToken("testAccountId", config));
+            Assert.assertEquals("testToken", engine.getAccount("testAccountId").getAccessToken());
+
+            verify(mockStore, times(1)).read(eq("testAccountId"));
+            Assert.assertEquals(1, engine.getSessionCache().size());
+            Assert.assertEquals(1, metrics.getCount(OAuth2Metrics.Counter.CACHE_MISS));
+            Assert.assertEquals(2, metrics.getCount(OAuth2Metrics.Counter.CACHE_HIT));
+        } finally {
+            OAuth2TokenEngine.setMetrics(previous);
+        }
+    }
+
+    @Test
+    public void testRefreshIsReportedToMetrics() throws OAuth2AuthorizationException {
+        OAuth2MetricsRecorder metrics = new OAuth2MetricsRecorder();
+        OAuth2Metrics previous = OAuth2TokenEngine.getMetrics();
+        OAuth2TokenEngine.setMetrics(metrics);
+        try {
+            account.setExpires_on(hourAgo());
+            when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+            when(mockProvider.post((byte[]) any())).thenReturn(new HeaderAndBody(
+                    "{\"access_token\":\"testRefreshedAccessToken\",\"expires_in\":3600}".getBytes(), new HashMap<String, Object>()));
+
+            OAuth2Properties config = new OAuth2Properties(baseUrl, null);
+            Assert.assertEquals("testRefreshedAccessToken", engine.fetchAccessToken("testAccountId", config));
+            Assert.assertEquals("testRefreshedAccessToken", engine.fetchAccessToken("testAccountId", config));
+
+            Assert.assertEquals(1, metrics.getCount(OAuth2Metrics.Counter.REFRESH));
+            Assert.assertEquals(0, metrics.getCount(OAuth2Metrics.Counter.EXCHANGE_FAILED));
+            Assert.assertEquals(1, metrics.getHistogram(OAuth2Metrics.Timer.EXCHANGE_REFRESH_TOKEN).getCount());
+            Assert.assertEquals(0, metrics.getHistogram(OAuth2Metrics.Timer.EXCHANGE_AUTHORIZATION_CODE).getCount());
+            Assert.assertEquals(1, metrics.getHistogram(OAuth2Metrics.Timer.STORE_READ).getCount());
+            Assert.assertEquals(1, metrics.getHistogram(OAuth2Metrics.Timer.STORE_WRITE).getCount());
+            Assert.assertEquals(1, metrics.getCount(OAuth2Metrics.Counter.CACHE_MISS));
+            Assert.assertEquals(2, metrics.getCount(OAuth2Metrics.Counter.CACHE_HIT));
+            Assert.assertEquals(0, metrics.getHistogram(OAuth2Metrics.Timer.MAIN_THREAD).getCount());
+        } finally {
+            OAuth2TokenEngine.setMetrics(previous);
+        }
+    }
+
+    @Test
+    public void testFailedExchangeIsReportedToMetrics() {
+        OAuth2MetricsRecorder metrics = new OAuth2MetricsRecorder();
+        OAuth2Metrics previous = OAuth2TokenEngine.getMetrics();
+        OAuth2TokenEngine.setMetrics(metrics);
+        try {
+            when(mockProvider.post((byte[]) any())).thenThrow(new HttpException("{\"error\":\"invalid_grant\"}".getBytes(), HttpURLConnection.HTTP_BAD_REQUEST));
+            try {
+                engine.exchangeAuthorizationCode("testAccountId", "testClientId", "testCode", new OAuth2Properties(baseUrl, null));
+                Assert.fail("Exception not thrown");
+            } catch (OAuth2AuthorizationException expected) {
+            }
+
+            Assert.assertEquals(1, metrics.getCount(OAuth2Metrics.Counter.EXCHANGE_FAILED));
+            Assert.assertEquals(1, metrics.getHistogram(OAuth2Metrics.Timer.EXCHANGE_AUTHORIZATION_CODE).getCount());
+            Assert.assertEquals(0, metrics.getHistogram(OAuth2Metrics.Timer.STORE_WRITE).getCount());
+        } finally {
+            OAuth2TokenEngine.setMetrics(previous);
+        }
+    }
+
+    @Test
+    public void testRemoveAccountInvalidatesSessionCache() throws OAuth2AuthorizationException {
+        account.setExpires_on(hourFromNow());
+        when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+
+        Assert.assertTrue(engine.hasAccount("testAccountId"));
+        engine.removeAccount("testAccountId");
+        when(mockStore.read(eq("testAccountId"))).thenReturn(null);
+
+        Assert.assertFalse(engine.hasAccount("testAccountId"));
+        Assert.assertNull(engine.fetchAccessToken("testAccountId", new OAuth2Properties(null, null)));
+        verify(mockStore, times(1)).remove(eq("testAccountId"));
+    }
+
+    @Test
+    public void testChangingReturnedSessionLeavesSessionCache() throws OAuth2AuthorizationException {
+        account.setExpires_on(hourFromNow());
+        when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+
+        engine.getAccount("testAccountId").setAccessToken("changedToken");
+
+        Assert.assertEquals("testToken", engine.getAccount("testAccountId").getAccessToken());
+        Assert.assertEquals("testToken", engine.fetchAccessToken("testAccountId", new OAuth2Properties(baseUrl, null)));
+        verify(mockStore, times(1)).read(eq("testAccountId"));
+    }
+
+    @Test
+    public void testRefreshWritesThroughSessionCache() throws OAuth2AuthorizationException {
+        account.setExpires_on(hourAgo());
+        when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+
+        when(mockProvider.post((byte[]) any())).thenAnswer(new Answer<HeaderAndBody>() {
+
+            @Override
+            public HeaderAndBody answer(InvocationOnMock invocation) throws Throwable {
+
+                JsonObject object = new JsonObject();
+                object.addProperty("access_token", "testRefreshedAccessToken");
+                object.addProperty("expires_in", 3600);
+
+                return new HeaderAndBody(object.toString().getBytes(), new HashMap<String, Object>());
+            }
+        });
+
+        engine.fetchAccessToken("testAccountId", new OAuth2Properties(baseUrl, null));
+
+        ArgumentCaptor<OAuth2AuthzSession> savedSession = ArgumentCaptor.forClass(OAuth2AuthzSession.class);
+        verify(mockStore, times(1)).save(savedSession.capture());
+        Assert.assertEquals("testRefreshedAccessToken", savedSession.getValue().getAccessToken());
+        Assert.assertEquals("testRefreshedAccessToken", engine.getAccount("testAccountId").getAccessToken());
+        Assert.assertEquals("testToken", account.getAccessToken());
+    }
+
+    @Test
+    public void testTokenIsRefreshedAheadOfExpiry() throws OAuth2AuthorizationException {
+        account.setExpires_on(System.currentTimeMillis() + 1500);
+        when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+
+        when(mockProvider.post((byte[]) any())).thenAnswer(new Answer<HeaderAndBody>() {
+
+            @Override
+            public HeaderAndBody answer(InvocationOnMock invocation) throws Throwable {
+
+                JsonObject object = new JsonObject();
+                object.addProperty("access_token", "testRefreshedAccessToken");
+                object.addProperty("expires_in", 3600);
+
+                return new HeaderAndBody(object.toString().getBytes(), new HashMap<String, Object>());
+            }
+        });
+
+        OAuth2Properties config = new OAuth2Properties(baseUrl, null);
+        config.setRefreshAheadMargin(1000);
+        config.setRefreshAheadJitter(200);
+
+        try {
+            Assert.assertEquals("testToken", engine.fetchAccessToken("testAccountId", config));
+
+            verify(mockProvider, timeout(5000).times(1)).post((byte[]) any());
+            verify(mockStore, timeout(5000).times(1)).save(any(OAuth2AuthzSession.class));
+            Assert.assertEquals("testRefreshedAccessToken", engine.fetchAccessToken("testAccountId", config));
+        } finally {
+            UnitTestUtils.callMethod(engine, "shutdown");
+        }
+    }
+
+    @Test
+    public void testRefreshAheadRunsWithinMarginAndJitterOfExpiry() throws Exception {
+        final long expiresOn = System.currentTimeMillis() + 5000;
+        final AtomicLong refreshedAt = new AtomicLong();
+        account.setExpires_on(expiresOn);
+        when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+
+        when(mockProvider.post((byte[]) any())).thenAnswer(new Answer<HeaderAndBody>() {
+
+            @Override
+            public HeaderAndBody answer(InvocationOnMock invocation) throws Throwable {
+                refreshedAt.compareAndSet(0, System.currentTimeMillis());
+
+                JsonObject object = new JsonObject();
+                object.addProperty("access_token", "testRefreshedAccessToken");
+                object.addProperty("expires_in", 3600);
+
+                return new HeaderAndBody(object.toString().getBytes(), new HashMap<String, Object>());
+            }
+        });
+
+        OAuth2Properties config = new OAuth2Properties(baseUrl, null);
+        config.setRefreshAheadMargin(1500);
+        config.setRefreshAheadJitter(500);
+
+        try {
+            Assert.assertEquals("testToken", engine.fetchAccessToken("testAccountId", config));
+
+            verify(mockProvider, timeout(10000).times(1)).post((byte[]) any());
+            long lead = expiresOn - refreshedAt.get();
+            // The worker may wake a little late, never early
+            Assert.assertTrue("Refreshed " + lead + "ms before expiry", lead <= 1500 + 500);
+            Assert.assertTrue("Refreshed " + lead + "ms before expiry", lead >= 1500 - 250);
+        } finally {
+            UnitTestUtils.callMethod(engine, "shutdown");
+        }
+    }
+
+    @Test
+    public void testConcurrentFetchesShareOneRefresh() throws Exception {
+        final int callers = 8;
+        final AtomicInteger exchanges = new AtomicInteger();
+        final CountDownLatch allCallersStarted = new CountDownLatch(callers);
+        final AtomicReference<OAuth2AuthzSession> storedAccount = new AtomicReference<OAuth2AuthzSession>(account);
+
+        account.setExpires_on(hourAgo());
+        when(mockStore.read(eq("testAccountId"))).thenAnswer(new Answer<OAuth2AuthzSession>() {
+            @Override
+            public OAuth2AuthzSession answer(InvocationOnMock invocation) throws Throwable {
+                return storedAccount.get();
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                storedAccount.set((OAuth2AuthzSession) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(mockStore).save(any(OAuth2AuthzSession.class));
+
+        when(mockProvider.post((byte[]) any())).thenAnswer(new Answer<HeaderAndBody>() {
+
+            @Override
+            public HeaderAndBody answer(InvocationOnMock invocation) throws Throwable {
+                // Hold the exchange open until every caller is waiting on it
+                allCallersStarted.await(10, TimeUnit.SECONDS);
+                Thread.sleep(100);
+
+                JsonObject object = new JsonObject();
+                object.addProperty("access_token", "testRefreshedAccessToken" + exchanges.incrementAndGet());
+                object.addProperty("expires_in", 3600);
+                object.addProperty("refresh_token", "testRotatedRefreshToken");
+
+                return new HeaderAndBody(object.toString().getBytes(), new HashMap<String, Object>());
+            }
+        });
+
+        final OAuth2Properties config = new OAuth2Properties(baseUrl, null);
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        List<Future<String>> tokens = new ArrayList<Future<String>>();
+        for (int i = 0; i < callers; i++) {
+            tokens.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    allCallersStarted.countDown();
+                    return engine.fetchAccessToken("testAccountId", config);
+                }
+            }));
+        }
+
+        for (Future<String> token : tokens) {
+            Assert.assertEquals("testRefreshedAccessToken1", token.get(10, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(1, exchanges.get());
+        verify(mockProvider, times(1)).post((byte[]) any());
+        Assert.assertEquals("testRotatedRefreshToken", storedAccount.get().getRefreshToken());
+    }
+
+    @Test
+    public void testRefreshAccountsRunsExchangesConcurrently() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final CountDownLatch twoInFlight = new CountDownLatch(2);
+
+        List<String> accountIds = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            OAuth2AuthzSession session = new OAuth2AuthzSession();
+            session.setAccountId("account" + i);
+            session.setClientId("testClientId");
+            session.setAccessToken("expiredToken");
+            session.setExpires_on(hourAgo());
+            session.setRefreshToken(i == 4 ? "revokedRefreshToken" : "refreshToken" + i);
+            when(mockStore.read(eq("account" + i))).thenReturn(session);
+            accountIds.add("account" + i);
+        }
+        accountIds.add("missingAccount");
+
+        when(mockProvider.post((byte[]) any())).thenAnswer(new Answer<HeaderAndBody>() {
+
+            @Override
+            public HeaderAndBody answer(InvocationOnMock invocation) throws Throwable {
+                int current = inFlight.incrementAndGet();
+                while (true) {
+                    int max = maxInFlight.get();
+                    if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                        break;
+                    }
+                }
+                try {
+                    twoInFlight.countDown();
+                    twoInFlight.await(10, TimeUnit.SECONDS);
+                    Thread.sleep(50);
+
+                    String body = new String((byte[]) invocation.getArguments()[0], "UTF-8");
+                    if (body.contains("revokedRefreshToken")) {
+                        throw new HttpException("{\"error\":\"invalid_grant\"}".getBytes(), HttpURLConnection.HTTP_BAD_REQUEST);
+                    }
+                    String refreshToken = body.substring(body.indexOf("refresh_token=") + "refresh_token=".length());
+
+                    JsonObject object = new JsonObject();
+                    object.addProperty("access_token", "accessFor-" + refreshToken);
+                    object.addProperty("expires_in", 3600);
+                    return new HeaderAndBody(object.toString().getBytes(), new HashMap<String, Object>());
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        });
+
+        Map<String, OAuth2RefreshResult> results = engine.refreshAccounts(accountIds, new OAuth2Properties(baseUrl, null));
+
+        Assert.assertEquals(accountIds, new ArrayList<String>(results.keySet()));
+        for (int i = 0; i < 4; i++) {
+            OAuth2RefreshResult result = results.get("account" + i);
+            Assert.assertTrue(result.isSuccess());
+            Assert.assertEquals("accessFor-refreshToken" + i, result.getAccessToken());
+            Assert.assertEquals(result.getAccessToken(), engine.getAccount("account" + i).getAccessToken());
+        }
+        Assert.assertFalse(results.get("account4").isSuccess());
+        Assert.assertEquals("invalid_grant", ((OAuth2AuthorizationException) results.get("account4").getFailure()).error);
+        Assert.assertTrue(results.get("missingAccount").isSuccess());
+        Assert.assertNull(results.get("missingAccount").getSession());
+
+        Assert.assertEquals(OAuth2TokenEngine.MAX_BATCH_REFRESHES_PER_HOST, maxInFlight.get());
+        ArgumentCaptor<Collection> saved = ArgumentCaptor.forClass(Collection.class);
+        verify(mockStore, times(1)).save(saved.capture());
+        Assert.assertEquals(4, saved.getValue().size());
+        verify(mockStore, never()).save(any(OAuth2AuthzSession.class));
+        UnitTestUtils.callMethod(engine, "shutdown");
+    }
+
+    @Test
+    public void testRefreshAccountsDoesNotBlockThreadsOnBusyHost() throws Exception {
+        final CountDownLatch otherHostDone = new CountDownLatch(2);
+        final AtomicInteger timeouts = new AtomicInteger();
+
+        Map<String, OAuth2Properties> accounts = new LinkedHashMap<String, OAuth2Properties>();
+        for (int i = 0; i < 8; i++) {
+            String host = i < 6 ? "busy.example.com" : "other.example.com";
+            OAuth2AuthzSession session = new OAuth2AuthzSession();
+            session.setAccountId("account" + i);
+            session.setClientId("testClientId");
+            session.setAccessToken("expiredToken");
+            session.setExpires_on(hourAgo());
+            session.setRefreshToken("refreshToken" + i);
+            when(mockStore.read(eq("account" + i))).thenReturn(session);
+            accounts.put("account" + i, new OAuth2Properties(new URL("http://" + host), null));
+        }
+
+        engine.setTokenTransport(new OAuth2TokenTransport() {
+
+            @Override
+            public HeaderAndBody post(URL endpoint, byte[] formBody) {
+                try {
+                    if (endpoint.getHost().startsWith("busy")) {
+                        // The busy host answers only once the other host has
+                        // been served, which needs a free thread
+                        if (!otherHostDone.await(5, TimeUnit.SECONDS)) {
+                            timeouts.incrementAndGet();
+                        }
+                    }
+                    JsonObject object = new JsonObject();
+                    object.addProperty("access_token", "refreshedToken");
+                    object.addProperty("expires_in", 3600);
+                    return new HeaderAndBody(object.toString().getBytes(), new HashMap<String, Object>());
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                } finally {
+                    if (endpoint.getHost().startsWith("other")) {
+                        otherHostDone.countDown();
+                    }
+                }
+            }
+
+        });
+
+        Map<String, OAuth2RefreshResult> results = engine.refreshAccounts(accounts);
+
+        Assert.assertEquals(0, timeouts.get());
+        Assert.assertEquals(8, results.size());
+        for (OAuth2RefreshResult result : results.values()) {
+            Assert.assertTrue(result.isSuccess());
+            Assert.assertEquals("refreshedToken", result.getAccessToken());
+        }
+        UnitTestUtils.callMethod(engine, "shutdown");
+    }
+
+    @Test
+    public void testStoreAccessWaitsForSessionStore() throws Exception {
+        account.setExpires_on(hourFromNow());
+        when(mockStore.read(eq("testAccountId"))).thenReturn(account);
+
+        FutureTask<OAuth2SessionStore> opening = new FutureTask<OAuth2SessionStore>(new Callable<OAuth2SessionStore>() {
+            @Override
+            public OAuth2SessionStore call() throws Exception {
+                return mockStore;
+            }
+        });
+        UnitTestUtils.setPrivateField(engine, "sessionStore", null);
+        UnitTestUtils.setPrivateField(engine, "sessionStoreReady", opening);
+        Assert.assertFalse(engine.getSessionStoreReady().isDone());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<OAuth2AuthzSession> read = executor.submit(new Callable<OAuth2AuthzSession>() {
+            @Override
+            public OAuth2AuthzSession call() throws Exception {
+                return engine.getAccount("testAccountId");
+            }
+        });
+
+        Thread.sleep(100);
+        Assert.assertFalse(read.isDone());
+
+        opening.run();
+        Assert.assertEquals("testToken", read.get(5, TimeUnit.SECONDS).getAccessToken());
+        Assert.assertTrue(engine.getSessionStoreReady().isDone());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testWhenSessionStoreReadyRunsOnThreadWithoutLooper() throws Exception {
+        FutureTask<OAuth2SessionStore> opening = new FutureTask<OAuth2SessionStore>(new Callable<OAuth2SessionStore>() {
+            @Override
+            public OAuth2SessionStore call() throws Exception {
+                return mockStore;
+            }
+        });
+        UnitTestUtils.setPrivateField(engine, "sessionStore", null);
+        UnitTestUtils.setPrivateField(engine, "sessionStoreReady", opening);
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        final AtomicReference<String> actionThread = new AtomicReference<String>();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    engine.whenSessionStoreReady(new Runnable() {
+                        @Override
+                        public void run() {
+                            actionThread.set(Thread.currentThread().getName());
+                            ran.countDown();
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    failure.set(ex);
+                }
+            }
+        });
+        worker.start();
+        worker.join(5000);
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(1, ran.getCount());
+
+        opening.run();
+        Assert.assertTrue(ran.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(actionThread.get().startsWith("OAuth2Exchange-"));
+    }
+
+    @Test
+    public void testGetAccountsReadsOnlyIds() {
+        when(mockStore.readAccountIds()).thenReturn(Arrays.asList("a", "b", "c"));
+
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), engine.getAccounts());
+        verify(mockStore, never()).read(any(String.class));
+    }
+
+    @Test
+    public void testGetSessionsReadsPageByPage() {
+        when(mockStore.readAccountIds(null, 2)).thenReturn(Arrays.asList("a", "b"));
+        when(mockStore.readAccountIds("b", 2)).thenReturn(Arrays.asList("c", "d"));
+        when(mockStore.readAccountIds("d", 2)).thenReturn(Arrays.asList("e"));
+        when(mockStore.read(any(String.class))).thenAnswer(new Answer<OAuth2AuthzSession>() {
+            @Override
+            public OAuth2AuthzSession answer(InvocationOnMock invocation) throws Throwable {
+                String accountId = (String) invocation.getArguments()[0];
+                if ("c".equals(accountId)) {
+                    // Removed while iterating
+                    return null;
+                }
+                OAuth2AuthzSession session = new OAuth2AuthzSession();
+                session.setAccountId(accountId);
+                return session;
+            }
+        });
+
+        Iterator<OAuth2AuthzSession> sessions = engine.getSessions(2).iterator();
+        Assert.assertEquals("a", sessions.next().getAccountId());
+        Assert.assertEquals("b", sessions.next().getAccountId());
+        verify(mockStore, never()).readAccountIds("b", 2);
+        verify(mockStore, never()).read(eq("d"));
+
+        List<String> rest = new ArrayList<String>();
+        while (sessions.hasNext()) {
+            rest.add(sessions.next().getAccountId());
+        }
+        Assert.assertEquals(Arrays.asList("d", "e"), rest);
+        verify(mockStore, never()).readAccountIds();
     }
 
     private long hourFromNow() {
@@ -171,6 +967,28 @@ public class AuthzServiceTest {
         return hourFromNow.getTimeInMillis();
     }
 
+    private void fetchExpectingInvalidGrant(OAuth2Properties config) {
+        try {
+            engine.fetchAccessToken("testAccountId", config);
+            Assert.fail("Exception not thrown");
+        } catch (OAuth2AuthorizationException expected) {
+            Assert.assertEquals("invalid_grant", expected.error);
+        }
+    }
+
+    /**
+     * Gives the engine a context whose active network is network, which is
+     * not connected until the test says so.
+     */
+    private Context offlineContext(NetworkInfo network) throws Exception {
+        ConnectivityManager connectivity = mock(ConnectivityManager.class);
+        when(connectivity.getActiveNetworkInfo()).thenReturn(network);
+        Context context = mock(Context.class);
+        when(context.getSystemService(Context.CONNECTIVITY_SERVICE)).thenReturn(connectivity);
+        UnitTestUtils.setPrivateField(engine, "applicationContext", context);
+        return context;
+    }
+
     private long hourAgo() {
         Calendar hourFromNow = Calendar.getInstance();
         hourFromNow.set(HOUR, hourFromNow.get(HOUR) - 1);
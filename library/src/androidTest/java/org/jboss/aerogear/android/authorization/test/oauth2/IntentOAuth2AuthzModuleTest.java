@@ -22,9 +22,9 @@ import android.support.test.runner.AndroidJUnit4;
 import org.jboss.aerogear.android.authorization.AuthorizationManager;
 import org.jboss.aerogear.android.authorization.AuthzModule;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthorizationConfiguration;
-import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzService;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzSession;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2Properties;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2TokenEngine;
 import org.jboss.aerogear.android.authorization.oauth2.intent.OAuth2IntentAuthzModule;
 import org.jboss.aerogear.android.authorization.test.util.UnitTestUtils;
 import org.jboss.aerogear.android.core.Callback;
@@ -88,19 +88,18 @@ public class IntentOAuth2AuthzModuleTest {
         AuthzModule module = config.asModule();
         Assert.assertNull(UnitTestUtils.getSuperPrivateField(module, "account"));
 
-        Method doRequestAccessMethod = OAuth2IntentAuthzModule.class.getDeclaredMethod("doRequestAccess", String.class, Activity.class, Callback.class, OAuth2AuthzService.AGAuthzServiceConnection.class);
-        OAuth2AuthzService.AGAuthzServiceConnection mockConnection = mock(OAuth2AuthzService.AGAuthzServiceConnection.class);
-        OAuth2AuthzService mockService = mock(OAuth2AuthzService.class);
+        Method doRequestAccessMethod = OAuth2IntentAuthzModule.class.getDeclaredMethod("doRequestAccess", String.class, Activity.class, Callback.class);
+        OAuth2TokenEngine mockEngine = mock(OAuth2TokenEngine.class);
         
-        Mockito.doReturn(mock(OAuth2AuthzSession.class)).when(mockService).getAccount(any(String.class));
-        Mockito.doReturn(true).when(mockService).hasAccount(any(String.class));
-        Mockito.doReturn("testToken").when(mockService).fetchAccessToken(any(String.class), any(OAuth2Properties.class));
+        Mockito.doReturn(mock(OAuth2AuthzSession.class)).when(mockEngine).getAccount(any(String.class));
+        Mockito.doReturn(true).when(mockEngine).hasAccount(any(String.class));
+        Mockito.doReturn("testToken").when(mockEngine).fetchAccessToken(any(String.class), any(OAuth2Properties.class));
         
-        Mockito.doReturn(mockService).when(mockConnection).getService();
+        UnitTestUtils.setPrivateField(module, "engine", mockEngine);
         Looper.prepare();
         
         doRequestAccessMethod.setAccessible(true);
-        doRequestAccessMethod.invoke(module, "ignore", mock(Activity.class), mock(Callback.class), mockConnection);
+        doRequestAccessMethod.invoke(module, "ignore", mock(Activity.class), mock(Callback.class));
         Assert.assertNotNull(UnitTestUtils.getSuperPrivateField(module, "account"));
         
     }
@@ -17,42 +17,80 @@
 package org.jboss.aerogear.android.authorization.test.oauth2;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.support.test.annotation.UiThreadTest;
 import android.support.test.runner.AndroidJUnit4;
 
 import org.jboss.aerogear.android.authorization.AuthorizationManager;
+import org.jboss.aerogear.android.authorization.TokenEvent;
+import org.jboss.aerogear.android.authorization.TokenListener;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthorizationConfiguration;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthorizationException;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzModule;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzService;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzSession;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2Future;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2MemorySessionStore;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2Metrics;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2MetricsRecorder;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2Properties;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2TokenEngine;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2TokenSnapshot;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2TokenTransport;
 import org.jboss.aerogear.android.authorization.oauth2.webview.OAuth2WebViewAuthzModule;
 import org.jboss.aerogear.android.authorization.test.util.UnitTestUtils;
 import org.jboss.aerogear.android.authorization.test.util.VoidCallback;
 import org.jboss.aerogear.android.core.Callback;
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.jboss.aerogear.android.pipe.http.HttpException;
+import org.jboss.aerogear.android.pipe.module.ModuleFields;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.matches;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.when;
 
 @RunWith(AndroidJUnit4.class)
 public class OAuth2AuthzModuleTest {
 
+    private OAuth2TokenEngine rejectingEngine;
+
     private static final URL BASE_URL;
 
     static {
@@ -73,6 +111,12 @@ public class OAuth2AuthzModuleTest {
 
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeOfflineGracePeriod() {
+        OAuth2AuthorizationConfiguration config = AuthorizationManager.config("name", OAuth2AuthorizationConfiguration.class);
+        config.setOfflineGracePeriod(-1);
+    }
+
     @Test
     public void testCreation() throws MalformedURLException {
         OAuth2AuthorizationConfiguration config = AuthorizationManager.config("name", OAuth2AuthorizationConfiguration.class);
@@ -102,7 +146,151 @@ public class OAuth2AuthzModuleTest {
     }
 
     @Test
-    public void testGetAccessTokens() throws NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
+    public void testInProcessModulesNeverBindService() throws Exception {
+        Context mockContext = mock(Context.class);
+        when(mockContext.getApplicationContext()).thenReturn(mockContext);
+
+        OAuth2AuthorizationConfiguration config = AuthorizationManager.config("name", OAuth2AuthorizationConfiguration.class);
+        config.setBaseURL(BASE_URL);
+        config.setInProcessContext(mockContext);
+        OAuth2AuthzModule first = (OAuth2AuthzModule) config.asModule();
+        OAuth2AuthzModule second = (OAuth2AuthzModule) config.asModule();
+
+        OAuth2TokenEngine engine = (OAuth2TokenEngine) UnitTestUtils.getSuperPrivateField(first, "engine");
+        Assert.assertNotNull(engine);
+        Assert.assertSame(engine, UnitTestUtils.getSuperPrivateField(second, "engine"));
+        Assert.assertFalse(first.refreshAccess());
+
+        Mockito.verify(mockContext, never()).bindService(any(Intent.class), any(ServiceConnection.class), any(Integer.class));
+    }
+
+    @Test
+    public void testInProcessRequestAccessFromWorkerThread() throws Exception {
+        Context mockContext = mock(Context.class);
+        when(mockContext.getApplicationContext()).thenReturn(mockContext);
+
+        OAuth2AuthorizationConfiguration config = AuthorizationManager.config("name", OAuth2AuthorizationConfiguration.class);
+        config.setAccountId("testAccountId");
+        config.setBaseURL(BASE_URL);
+        config.setInProcessContext(mockContext);
+        final OAuth2AuthzModule module = (OAuth2AuthzModule) config.asModule();
+
+        OAuth2TokenEngine engine = new OAuth2TokenEngine();
+        UnitTestUtils.setPrivateField(engine, "sessionStore", OAuth2MemorySessionStore.FACTORY.open(null));
+        OAuth2AuthzSession stored = session(1, System.currentTimeMillis() + 60 * 60 * 1000);
+        stored.setAccountId("testAccountId");
+        engine.addAccount(stored);
+        UnitTestUtils.setPrivateField(module, "engine", engine);
+
+        final Activity mockActivity = mock(Activity.class);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    module.requestAccess(mockActivity, new Callback<String>() {
+                        @Override
+                        public void onSuccess(String accessToken) {
+                            result.set(accessToken);
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            result.set(e);
+                            done.countDown();
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    result.set(ex);
+                    done.countDown();
+                }
+            }
+        });
+        worker.start();
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("token-1", result.get());
+        Assert.assertTrue(module.isAuthorized());
+        Mockito.verify(mockActivity, never()).bindService(any(Intent.class), any(ServiceConnection.class), any(Integer.class));
+    }
+
+    @Test
+    public void testBoundAndInProcessModulesShareOneEngine() throws Exception {
+        Context mockContext = mock(Context.class);
+        when(mockContext.getApplicationContext()).thenReturn(mockContext);
+
+        OAuth2AuthorizationConfiguration config = AuthorizationManager.config("name", OAuth2AuthorizationConfiguration.class);
+        config.setAccountId("testAccountId");
+        config.setBaseURL(BASE_URL);
+        config.setInProcessContext(mockContext);
+        OAuth2AuthzModule module = (OAuth2AuthzModule) config.asModule();
+        final OAuth2TokenEngine engine = (OAuth2TokenEngine) UnitTestUtils.getSuperPrivateField(module, "engine");
+
+        final OAuth2AuthzService service = Mockito.spy(new OAuth2AuthzService());
+        Mockito.doReturn(mockContext).when(service).getApplicationContext();
+        service.onCreate();
+        Assert.assertSame(engine, service.getEngine());
+
+        OAuth2AuthzSession stored = session(1, System.currentTimeMillis() - 1000);
+        stored.setAccountId("testAccountId");
+        stored.setClientId("testClientId");
+        stored.setRefreshToken("testRefreshToken");
+        UnitTestUtils.setPrivateField(engine, "sessionStore", OAuth2MemorySessionStore.FACTORY.open(null));
+        engine.addAccount(stored);
+
+        final AtomicInteger exchanges = new AtomicInteger();
+        final CountDownLatch exchanging = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        engine.setTokenTransport(new OAuth2TokenTransport() {
+            @Override
+            public HeaderAndBody post(URL endpoint, byte[] formBody) {
+                exchanges.incrementAndGet();
+                exchanging.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return new HeaderAndBody("{\"access_token\":\"token-2\",\"expires_in\":3600}".getBytes(), new HashMap<String, Object>());
+            }
+        });
+
+        final OAuth2Properties properties = new OAuth2Properties(BASE_URL, "name");
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> inProcess = callers.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return engine.fetchAccessToken("testAccountId", properties);
+                }
+            });
+            Assert.assertTrue(exchanging.await(5, TimeUnit.SECONDS));
+            Future<String> bound = callers.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return service.fetchAccessToken("testAccountId", properties);
+                }
+            });
+            Thread.sleep(100);
+            release.countDown();
+
+            Assert.assertEquals("token-2", inProcess.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals("token-2", bound.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, exchanges.get());
+        } finally {
+            callers.shutdown();
+        }
+
+        // Destroying the service leaves the engine to the in process modules
+        service.onDestroy();
+        Assert.assertSame(engine, UnitTestUtils.getSuperPrivateField(config.asModule(), "engine"));
+        Assert.assertEquals("token-2", engine.fetchAccessToken("testAccountId", properties));
+    }
+
+    @Test
+    public void testGetAccessTokens() throws Exception {
 
         OAuth2AuthorizationConfiguration config = AuthorizationManager.config("name", OAuth2AuthorizationConfiguration.class);
         config.setBaseURL(BASE_URL);
@@ -111,21 +299,498 @@ public class OAuth2AuthzModuleTest {
         OAuth2AuthzSession account = new OAuth2AuthzSession();
         account.setAccessToken("testToken");
 
-        UnitTestUtils.setPrivateField(module, "account", account);
+        setAccount(module, account);
 
         Assert.assertEquals("Bearer testToken", module.getAuthorizationFields(null, null, null).getHeaders().get(0).second);
         Assert.assertEquals("Authorization", module.getAuthorizationFields(null, null, null).getHeaders().get(0).first);
     }
 
+    @Test
+    public void testLoadModuleSeesConsistentTokenWhileRotating() throws Exception {
+        OAuth2AuthorizationConfiguration config = AuthorizationManager.config("name", OAuth2AuthorizationConfiguration.class);
+        config.setBaseURL(BASE_URL);
+        final OAuth2AuthzModule module = (OAuth2AuthzModule) config.asModule();
+        final Method setAccount = OAuth2AuthzModule.class.getDeclaredMethod("setAccount", OAuth2AuthzSession.class);
+        setAccount.setAccessible(true);
+
+        final int rotations = 20000;
+        final int readers = 4;
+        final long expiresOn = System.currentTimeMillis() + 60 * 60 * 1000;
+        final AtomicBoolean rotating = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final CountDownLatch started = new CountDownLatch(readers + 1);
+
+        setAccount.invoke(module, session(0, expiresOn));
+
+        ExecutorService executor = Executors.newFixedThreadPool(readers + 1);
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        tasks.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                started.countDown();
+                started.await();
+                try {
+                    for (int i = 1; i <= rotations; i++) {
+                        setAccount.invoke(module, session(i, expiresOn + i));
+                    }
+                } finally {
+                    rotating.set(false);
+                }
+                return null;
+            }
+        }));
+
+        for (int reader = 0; reader < readers; reader++) {
+            tasks.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    started.countDown();
+                    started.await();
+                    int lastSeen = 0;
+                    while (rotating.get() && failure.get() == null) {
+                        ModuleFields fields = module.loadModule(null, "GET", null);
+                        String header = fields.getHeaders().get(0).second;
+                        if (!header.startsWith("Bearer token-")) {
+                            failure.compareAndSet(null, "Torn header " + header);
+                        }
+                        int generation = Integer.parseInt(header.substring("Bearer token-".length()));
+                        if (generation < lastSeen) {
+                            failure.compareAndSet(null, "Token went back from " + lastSeen + " to " + generation);
+                        }
+                        lastSeen = generation;
+
+                        OAuth2TokenSnapshot snapshot = module.getTokenSnapshot();
+                        if (snapshot.getExpiresOn() - expiresOn != Integer.parseInt(snapshot.getAccessToken().substring("token-".length()))) {
+                            failure.compareAndSet(null, "Expiry does not match " + snapshot.getAccessToken());
+                        }
+                        if (!snapshot.getAuthorizationHeader().equals("Bearer " + snapshot.getAccessToken())) {
+                            failure.compareAndSet(null, "Header does not match " + snapshot.getAccessToken());
+                        }
+                        if (!module.isAuthorized() || !module.hasCredentials()) {
+                            failure.compareAndSet(null, "Module lost its token");
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<?> task : tasks) {
+            task.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        Assert.assertNull(failure.get(), failure.get());
+        Assert.assertEquals("Bearer token-" + rotations, module.getTokenSnapshot().getAuthorizationHeader());
+    }
+
+    /**
+     * Pipes call loadModule for every request, so it hands out the fields
+     * built for the current token instead of building new ones. The
+     * allocation rate of the read path is measured by the core JMH suite.
+     */
+    @Test
+    public void testLoadModuleSharesFieldsUntilTokenChanges() throws Exception {
+        OAuth2AuthorizationConfiguration config = AuthorizationManager.config("name", OAuth2AuthorizationConfiguration.class);
+        config.setBaseURL(BASE_URL);
+        OAuth2AuthzModule module = (OAuth2AuthzModule) config.asModule();
+        setAccount(module, session(1, System.currentTimeMillis() + 60 * 60 * 1000));
+
+        URI requestUri = new URI("https://example.com/resource");
+        ModuleFields first = module.loadModule(requestUri, "GET", null);
+        Assert.assertSame(first, module.loadModule(requestUri, "GET", null));
+        Assert.assertEquals("Bearer token-1", first.getHeaders().get(0).second);
+
+        setAccount(module, session(2, System.currentTimeMillis() + 60 * 60 * 1000));
+        Assert.assertEquals("Bearer token-2", module.loadModule(requestUri, "GET", null).getHeaders().get(0).second);
+    }
+
+    @Test
+    public void testRejectionBurstRefreshesOnce() throws Exception {
+        final OAuth2AuthzModule module = rejectingModule();
+        final int requests = 8;
+        final CountDownLatch allLoaded = new CountDownLatch(requests);
+
+        ExecutorService executor = Executors.newFixedThreadPool(requests);
+        List<Future<String>> replays = new ArrayList<Future<String>>();
+        for (int i = 0; i < requests; i++) {
+            replays.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    module.getAuthorizationFields(null, "GET", null);
+                    allLoaded.countDown();
+                    allLoaded.await(5, TimeUnit.SECONDS);
+                    Assert.assertTrue(module.handleError(new HttpException(new byte[0], HttpURLConnection.HTTP_UNAUTHORIZED)));
+                    return module.getAuthorizationFields(null, "GET", null).getHeaders().get(0).second;
+                }
+            }));
+        }
+
+        for (Future<String> replay : replays) {
+            Assert.assertEquals("Bearer token-2", replay.get(5, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        Mockito.verify(rejectingEngine, times(1)).refreshRejectedAccessToken(eq("testAccountId"), eq("token-1"), any(OAuth2Properties.class));
+    }
+
+    @Test
+    public void testRejectionOfOlderTokenReplaysWithoutRefresh() throws Exception {
+        OAuth2AuthzModule module = rejectingModule();
+        module.getAuthorizationFields(null, "GET", null);
+        long issued = module.getTokenSnapshot().getGeneration();
+
+        setAccount(module, session(2, System.currentTimeMillis() + 60 * 60 * 1000));
+        Assert.assertTrue(module.getTokenSnapshot().getGeneration() > issued);
+
+        Assert.assertTrue(module.handleError(new HttpException(new byte[0], HttpURLConnection.HTTP_UNAUTHORIZED)));
+        Mockito.verify(rejectingEngine, never()).refreshRejectedAccessToken(any(String.class), any(String.class), any(OAuth2Properties.class));
+    }
+
+    @Test
+    public void testHandleErrorOutcomesAreReportedToMetrics() throws Exception {
+        OAuth2MetricsRecorder metrics = new OAuth2MetricsRecorder();
+        OAuth2Metrics previous = OAuth2TokenEngine.getMetrics();
+        OAuth2TokenEngine.setMetrics(metrics);
+        try {
+            OAuth2AuthzModule module = rejectingModule();
+            module.getAuthorizationFields(null, "GET", null);
+
+            Assert.assertFalse(module.handleError(new HttpException(new byte[0], HttpURLConnection.HTTP_INTERNAL_ERROR)));
+            Assert.assertTrue(module.handleError(new HttpException(new byte[0], HttpURLConnection.HTTP_UNAUTHORIZED)));
+            Assert.assertTrue(module.handleError(new HttpException(new byte[0], HttpURLConnection.HTTP_UNAUTHORIZED)));
+
+            Assert.assertEquals(1, metrics.getCount(OAuth2Metrics.Counter.ERROR_IGNORED));
+            Assert.assertEquals(1, metrics.getCount(OAuth2Metrics.Counter.ERROR_REFRESHED));
+            Assert.assertEquals(1, metrics.getCount(OAuth2Metrics.Counter.ERROR_REPLAYED));
+            Assert.assertEquals(0, metrics.getCount(OAuth2Metrics.Counter.ERROR_FAILED));
+        } finally {
+            OAuth2TokenEngine.setMetrics(previous);
+        }
+    }
+
+    @Test
+    public void testSameTokenKeepsGeneration() throws Exception {
+        OAuth2AuthzModule module = rejectingModule();
+        long generation = module.getTokenSnapshot().getGeneration();
+
+        setAccount(module, session(1, System.currentTimeMillis() + 2 * 60 * 60 * 1000));
+
+        Assert.assertEquals(generation, module.getTokenSnapshot().getGeneration());
+    }
+
+    @Test
+    public void testConcurrentSessionUpdatesKeepTokenAndAccountInStep() throws Exception {
+        OAuth2AuthorizationConfiguration config = AuthorizationManager.config("name", OAuth2AuthorizationConfiguration.class);
+        config.setBaseURL(BASE_URL);
+        final OAuth2AuthzModule module = (OAuth2AuthzModule) config.asModule();
+        final long expiresOn = System.currentTimeMillis() + 60 * 60 * 1000;
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        for (int i = 0; i < 2000; i++) {
+            setAccount(module, session(0, expiresOn));
+            long staleGeneration = module.getTokenSnapshot().getGeneration();
+
+            // The fetching thread stores the token it read while the engine
+            // forwards the token which replaced it
+            Future<?> fetching = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    barrier.await(5, TimeUnit.SECONDS);
+                    setAccount(module, session(0, expiresOn));
+                    return null;
+                }
+            });
+            Future<?> forwarded = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    barrier.await(5, TimeUnit.SECONDS);
+                    setAccount(module, session(1, expiresOn + 1));
+                    return null;
+                }
+            });
+            fetching.get(5, TimeUnit.SECONDS);
+            forwarded.get(5, TimeUnit.SECONDS);
+
+            OAuth2TokenSnapshot snapshot = module.getTokenSnapshot();
+            OAuth2AuthzSession account = (OAuth2AuthzSession) UnitTestUtils.getSuperPrivateField(module, "account");
+            Assert.assertEquals(snapshot.getAccessToken(), account.getAccessToken());
+            if (snapshot.getAccessToken().equals("token-0")) {
+                // Only a token-0 stored after token-1 may win, and it is a
+                // new generation for requests which carried token-1
+                Assert.assertTrue(snapshot.getGeneration() > staleGeneration);
+            }
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * handleError relies on the pipe reporting a rejection on the thread
+     * which loaded the fields of the request. On any other thread the
+     * rejection is taken to be of the current token, which costs a refresh
+     * the token did not need but never leaves the module without one.
+     */
+    @Test
+    public void testRejectionReportedOnAnotherThreadRefreshesCurrentToken() throws Exception {
+        final OAuth2AuthzModule module = rejectingModule();
+        module.getAuthorizationFields(null, "GET", null);
+        setAccount(module, session(2, System.currentTimeMillis() + 60 * 60 * 1000));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Boolean> retry = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return module.handleError(new HttpException(new byte[0], HttpURLConnection.HTTP_UNAUTHORIZED));
+            }
+        });
+        Assert.assertTrue(retry.get(5, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        Mockito.verify(rejectingEngine, times(1)).refreshRejectedAccessToken(eq("testAccountId"), eq("token-2"), any(OAuth2Properties.class));
+        Assert.assertEquals("Bearer token-2", module.getTokenSnapshot().getAuthorizationHeader());
+
+        // The thread which loaded token-1 still replays without a refresh
+        Assert.assertTrue(module.handleError(new HttpException(new byte[0], HttpURLConnection.HTTP_UNAUTHORIZED)));
+        Mockito.verify(rejectingEngine, times(1)).refreshRejectedAccessToken(any(String.class), any(String.class), any(OAuth2Properties.class));
+    }
+
+    @Test
+    public void testFetchAccessTokenAsyncCompletesAtOnceWithValidToken() throws Exception {
+        OAuth2AuthzModule module = rejectingModule();
+
+        OAuth2Future<String> future = module.fetchAccessTokenAsync(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                Assert.fail("A valid token needs no executor");
+            }
+        });
+
+        Assert.assertTrue(future.isDone());
+        Assert.assertEquals("token-1", future.get());
+        Mockito.verify(rejectingEngine, never()).fetchAccessToken(any(String.class), any(OAuth2Properties.class));
+    }
+
+    @Test
+    public void testFetchAccessTokenAsyncExchangesOffTheCallingThread() throws Exception {
+        OAuth2AuthzModule module = rejectingModule();
+        setAccount(module, session(1, System.currentTimeMillis() - 1000));
+        final Thread caller = Thread.currentThread();
+        final AtomicReference<Thread> exchangeThread = new AtomicReference<Thread>();
+        when(rejectingEngine.fetchAccessToken(eq("testAccountId"), any(OAuth2Properties.class))).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                exchangeThread.set(Thread.currentThread());
+                return "token-2";
+            }
+        });
+        final AtomicInteger completions = new AtomicInteger();
+        Executor countingExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                completions.incrementAndGet();
+                command.run();
+            }
+        };
+
+        OAuth2Future<String> future = module.fetchAccessTokenAsync(countingExecutor);
+
+        Assert.assertEquals("token-2", future.get(5, TimeUnit.SECONDS));
+        Assert.assertNotSame(caller, exchangeThread.get());
+        Assert.assertEquals(1, completions.get());
+        Assert.assertEquals("token-2", module.getTokenSnapshot().getAccessToken());
+    }
+
+    @Test
+    public void testRefreshAccessAsyncReportsFailedExchange() throws Exception {
+        OAuth2AuthzModule module = rejectingModule();
+        setAccount(module, session(1, System.currentTimeMillis() - 1000));
+        when(rejectingEngine.fetchAccessToken(eq("testAccountId"), any(OAuth2Properties.class)))
+                .thenThrow(new OAuth2AuthorizationException("invalid_grant"));
+
+        OAuth2Future<Boolean> future = module.refreshAccessAsync(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        Assert.assertEquals(Boolean.FALSE, future.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTokenEventsFollowTheTokenLifecycle() throws Exception {
+        OAuth2AuthorizationConfiguration config = AuthorizationManager.config("name", OAuth2AuthorizationConfiguration.class);
+        config.setBaseURL(BASE_URL);
+        OAuth2AuthzModule module = (OAuth2AuthzModule) config.asModule();
+        final List<String> events = new ArrayList<String>();
+        TokenListener listener = new TokenListener() {
+            @Override
+            public void onTokenEvent(TokenEvent event) {
+                events.add(event.getType() + " " + event.getAccessToken());
+            }
+        };
+        module.addTokenListener(listener, new DirectExecutor());
+
+        setAccount(module, session(1, System.currentTimeMillis() - 1000));
+        Assert.assertFalse(module.isAuthorized());
+        Assert.assertFalse(module.isAuthorized());
+        setAccount(module, session(2, System.currentTimeMillis() + 60 * 60 * 1000));
+        setAccount(module, session(2, System.currentTimeMillis() + 2 * 60 * 60 * 1000));
+        setAccount(module, null);
+
+        Assert.assertEquals(Arrays.asList("ACQUIRED token-1", "EXPIRED token-1", "REFRESHED token-2", "DELETED token-2"), events);
+
+        Assert.assertTrue(module.removeTokenListener(listener));
+        setAccount(module, session(3, 0));
+        Assert.assertEquals(4, events.size());
+    }
+
+    @Test
+    public void testRejectionIsAnnouncedOnceToManagerListeners() throws Exception {
+        final OAuth2AuthzModule module = rejectingModule();
+        final List<TokenEvent> events = new ArrayList<TokenEvent>();
+        TokenListener listener = new TokenListener() {
+            @Override
+            public void onTokenEvent(TokenEvent event) {
+                if (event.getModule() == module) {
+                    events.add(event);
+                }
+            }
+        };
+        AuthorizationManager.addTokenListener(listener, new DirectExecutor());
+        try {
+            module.getAuthorizationFields(null, "GET", null);
+            Assert.assertTrue(module.handleError(new HttpException(new byte[0], HttpURLConnection.HTTP_UNAUTHORIZED)));
+        } finally {
+            AuthorizationManager.removeTokenListener(listener);
+        }
+
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals(TokenEvent.Type.REVOKED, events.get(0).getType());
+        Assert.assertEquals("token-1", events.get(0).getAccessToken());
+        Assert.assertEquals(TokenEvent.Type.REFRESHED, events.get(1).getType());
+        Assert.assertEquals("token-2", events.get(1).getAccessToken());
+    }
+
+    @Test
+    public void testExpiredTokenRejectionIsNotAnnouncedAsRevoked() throws Exception {
+        OAuth2AuthzModule module = rejectingModule();
+        setAccount(module, session(1, System.currentTimeMillis() - 1000));
+        final List<String> events = new ArrayList<String>();
+        module.addTokenListener(new TokenListener() {
+            @Override
+            public void onTokenEvent(TokenEvent event) {
+                events.add(event.getType() + " " + event.getAccessToken());
+            }
+        }, new DirectExecutor());
+
+        module.getAuthorizationFields(null, "GET", null);
+        Assert.assertTrue(module.handleError(new HttpException(new byte[0], HttpURLConnection.HTTP_UNAUTHORIZED)));
+
+        Assert.assertEquals(Arrays.asList("EXPIRED token-1", "REFRESHED token-2"), events);
+    }
+
+    @Test
+    public void testBackgroundRefreshIsPublishedToModule() throws Exception {
+        OAuth2AuthorizationConfiguration config = AuthorizationManager.config("name", OAuth2AuthorizationConfiguration.class);
+        config.setAccountId("testAccountId");
+        config.setBaseURL(BASE_URL);
+        OAuth2AuthzModule module = (OAuth2AuthzModule) config.asModule();
+
+        OAuth2TokenEngine engine = new OAuth2TokenEngine();
+        UnitTestUtils.setPrivateField(engine, "sessionStore", OAuth2MemorySessionStore.FACTORY.open(null));
+        engine.setTokenTransport(new OAuth2TokenTransport() {
+            @Override
+            public HeaderAndBody post(URL endpoint, byte[] formBody) {
+                return new HeaderAndBody("{\"access_token\":\"token-2\",\"expires_in\":3600}".getBytes(), new HashMap<String, Object>());
+            }
+        });
+        UnitTestUtils.setPrivateField(module, "engine", engine);
+        Method listenTo = OAuth2AuthzModule.class.getDeclaredMethod("listenTo", OAuth2TokenEngine.class);
+        listenTo.setAccessible(true);
+        listenTo.invoke(module, engine);
+
+        final List<String> events = new ArrayList<String>();
+        module.addTokenListener(new TokenListener() {
+            @Override
+            public void onTokenEvent(TokenEvent event) {
+                events.add(event.getType() + " " + event.getAccessToken());
+            }
+        }, new DirectExecutor());
+
+        OAuth2AuthzSession stored = session(1, System.currentTimeMillis() - 1000);
+        stored.setAccountId("testAccountId");
+        stored.setRefreshToken("refreshToken");
+        engine.addAccount(stored);
+        Assert.assertEquals("token-1", module.getTokenSnapshot().getAccessToken());
+
+        // Refreshed by the engine, not by the module
+        Assert.assertTrue(engine.refreshAccounts(Arrays.asList("testAccountId"), new OAuth2Properties(BASE_URL, "name")).get("testAccountId").isSuccess());
+
+        Assert.assertEquals("token-2", module.getTokenSnapshot().getAccessToken());
+        Assert.assertTrue(module.isAuthorized());
+        Assert.assertEquals(Arrays.asList("ACQUIRED token-1", "REFRESHED token-2"), events);
+
+        engine.removeAccount("testAccountId");
+        Assert.assertNull(module.getTokenSnapshot());
+        Assert.assertEquals("DELETED token-2", events.get(2));
+    }
+
+    /**
+     * A module holding token-1 whose service replaces a rejected token with
+     * token-2, slowly enough for concurrent rejections to overlap.
+     */
+    private OAuth2AuthzModule rejectingModule() throws Exception {
+        OAuth2AuthorizationConfiguration config = AuthorizationManager.config("name", OAuth2AuthorizationConfiguration.class);
+        config.setAccountId("testAccountId");
+        config.setBaseURL(BASE_URL);
+        OAuth2AuthzModule module = (OAuth2AuthzModule) config.asModule();
+
+        final OAuth2AuthzSession refreshed = session(2, System.currentTimeMillis() + 60 * 60 * 1000);
+        rejectingEngine = mock(OAuth2TokenEngine.class);
+        when(rejectingEngine.hasAccount(eq("testAccountId"))).thenReturn(true);
+        when(rejectingEngine.getAccount(eq("testAccountId"))).thenReturn(refreshed);
+        when(rejectingEngine.refreshRejectedAccessToken(eq("testAccountId"), any(String.class), any(OAuth2Properties.class))).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(50);
+                return refreshed.getAccessToken();
+            }
+        });
+        UnitTestUtils.setPrivateField(module, "engine", rejectingEngine);
+
+        setAccount(module, session(1, System.currentTimeMillis() + 60 * 60 * 1000));
+        return module;
+    }
+
+    private static OAuth2AuthzSession session(int generation, long expiresOn) {
+        OAuth2AuthzSession session = new OAuth2AuthzSession();
+        session.setAccessToken("token-" + generation);
+        session.setExpires_on(expiresOn);
+        return session;
+    }
+
+    private static class DirectExecutor implements Executor {
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+    }
+
+    private static void setAccount(OAuth2AuthzModule module, OAuth2AuthzSession account) throws Exception {
+        Method setAccount = OAuth2AuthzModule.class.getDeclaredMethod("setAccount", OAuth2AuthzSession.class);
+        setAccount.setAccessible(true);
+        setAccount.invoke(module, account);
+    }
+
     @UiThreadTest
     public void testOAuth2AuthorizationCallback() throws ClassNotFoundException, NoSuchMethodException, InstantiationException, IllegalAccessException,
             IllegalArgumentException, InvocationTargetException, NoSuchFieldException, OAuth2AuthorizationException, InterruptedException {
 
-        OAuth2AuthzService mockService = mock(OAuth2AuthzService.class);
+        OAuth2TokenEngine mockEngine = mock(OAuth2TokenEngine.class);
         Activity mockActivity = mock(Activity.class);
-        ServiceConnection mockServiceConnection = mock(ServiceConnection.class);
-
-        ArgumentCaptor<OAuth2AuthzSession> sessionCaptor = ArgumentCaptor.forClass(OAuth2AuthzSession.class);
 
         OAuth2AuthorizationConfiguration config = AuthorizationManager.config("name", OAuth2AuthorizationConfiguration.class);
         config.setAccountId("testAccountId");
@@ -133,30 +798,28 @@ public class OAuth2AuthzModuleTest {
 
         OAuth2AuthzModule module = (OAuth2AuthzModule) config.asModule();
         Class<?> callbackClass = Class.forName("org.jboss.aerogear.android.authorization.oauth2.webview.OAuth2WebViewAuthzModule$OAuth2AuthorizationCallback");
-        Constructor<?> constructor = callbackClass.getDeclaredConstructor(OAuth2WebViewAuthzModule.class, Activity.class, Callback.class, ServiceConnection.class);
+        Constructor<?> constructor = callbackClass.getDeclaredConstructor(OAuth2WebViewAuthzModule.class, Activity.class, Callback.class);
         constructor.setAccessible(true);
 
-        Callback callback = (Callback) constructor.newInstance(module, mockActivity, new VoidCallback(), mockServiceConnection);
+        Callback callback = (Callback) constructor.newInstance(module, mockActivity, new VoidCallback());
 
-        UnitTestUtils.setPrivateField(module, "service", mockService);
+        UnitTestUtils.setPrivateField(module, "engine", mockEngine);
 
         callback.onSuccess("testCode");
 
-        Mockito.verify(mockService, times(1)).addAccount(sessionCaptor.capture());
-        OAuth2AuthzSession account = sessionCaptor.getValue();
-        Assert.assertEquals("testCode", account.getAuthorizationCode());
+        Mockito.verify(mockEngine, timeout(5000).times(1)).exchangeAuthorizationCode(eq("testAccountId"), any(String.class), eq("testCode"), any(OAuth2Properties.class));
+        Mockito.verify(mockEngine, never()).addAccount(any(OAuth2AuthzSession.class));
     }
 
     @UiThreadTest
     public void testOAuth2AccessCallback() throws ClassNotFoundException, NoSuchMethodException, InstantiationException, IllegalAccessException,
             IllegalArgumentException, InvocationTargetException, NoSuchFieldException {
-        OAuth2AuthzService mockService = mock(OAuth2AuthzService.class);
+        OAuth2TokenEngine mockEngine = mock(OAuth2TokenEngine.class);
         Activity mockActivity = mock(Activity.class);
-        ServiceConnection mockServiceConnection = mock(ServiceConnection.class);
         OAuth2AuthzSession account = new OAuth2AuthzSession();
         account.setAccessToken("testToken");
 
-        when(mockService.getAccount(matches("testAccountId"))).thenReturn(account);
+        when(mockEngine.getAccount(matches("testAccountId"))).thenReturn(account);
 
         OAuth2AuthorizationConfiguration config = AuthorizationManager.config("name", OAuth2AuthorizationConfiguration.class);
         config.setAccountId("testAccountId");
@@ -164,16 +827,17 @@ public class OAuth2AuthzModuleTest {
 
         OAuth2AuthzModule module = (OAuth2AuthzModule) config.asModule();
         Class<?> callbackClass = Class.forName("org.jboss.aerogear.android.authorization.oauth2.webview.OAuth2WebViewAuthzModule$OAuth2AccessCallback");
-        Constructor<?> constructor = callbackClass.getDeclaredConstructor(OAuth2WebViewAuthzModule.class, Activity.class, Callback.class, ServiceConnection.class);
+        Constructor<?> constructor = callbackClass.getDeclaredConstructor(OAuth2WebViewAuthzModule.class, Activity.class, Callback.class);
         constructor.setAccessible(true);
 
-        Callback callback = (Callback) constructor.newInstance(module, mockActivity, new VoidCallback(), mockServiceConnection);
+        Callback callback = (Callback) constructor.newInstance(module, mockActivity, new VoidCallback());
 
-        UnitTestUtils.setPrivateField(module, "service", mockService);
+        UnitTestUtils.setPrivateField(module, "engine", mockEngine);
 
         callback.onSuccess("testToken");
 
-        Mockito.verify(mockActivity, times(1)).unbindService(eq(mockServiceConnection));
+        // The binding is shared by the connection manager and outlives the request
+        Mockito.verify(mockActivity, never()).unbindService(any(ServiceConnection.class));
         Assert.assertEquals("testToken", ((OAuth2AuthzSession) UnitTestUtils.getSuperPrivateField(module, "account")).getAccessToken());
     }
 }
@@ -0,0 +1,197 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.test.oauth2;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzService;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzServiceConnectionManager;
+import org.jboss.aerogear.android.core.Callback;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.lang.reflect.Constructor;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the {@link OAuth2AuthzServiceConnectionManager} class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OAuth2AuthzServiceConnectionManagerTest {
+
+    private OAuth2AuthzServiceConnectionManager connections;
+    private Context mockContext;
+    private OAuth2AuthzService service;
+
+    @Before
+    public void setUp() throws Exception {
+        // A private instance, so the tests do not share the process wide one
+        Constructor<OAuth2AuthzServiceConnectionManager> constructor = OAuth2AuthzServiceConnectionManager.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        connections = constructor.newInstance();
+
+        mockContext = mock(Context.class);
+        when(mockContext.getApplicationContext()).thenReturn(mockContext);
+        when(mockContext.bindService(any(Intent.class), any(ServiceConnection.class), anyInt())).thenReturn(Boolean.TRUE);
+
+        service = new OAuth2AuthzService();
+    }
+
+    @Test
+    public void testServiceIsBoundOnceForAllReferences() {
+        connections.acquire(mockContext);
+        connections.acquire(mockContext);
+        connections.acquire(mockContext);
+
+        verify(mockContext, times(1)).bindService(any(Intent.class), any(ServiceConnection.class), eq(Context.BIND_AUTO_CREATE));
+        Assert.assertEquals(3, connections.getReferenceCount());
+    }
+
+    @Test
+    public void testWaitingCallersGetServiceOnConnect() {
+        connections.acquire(mockContext);
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        connections.getService(first);
+        connections.getService(second);
+        Assert.assertNull(first.service);
+
+        connect();
+
+        Assert.assertSame(service, first.service);
+        Assert.assertSame(service, second.service);
+    }
+
+    @Test
+    public void testBoundServiceIsHandedOverImmediately() {
+        connections.acquire(mockContext);
+        connect();
+
+        RecordingCallback callback = new RecordingCallback();
+        connections.getService(callback);
+
+        Assert.assertSame(service, callback.service);
+    }
+
+    @Test
+    public void testLastReleaseUnbinds() {
+        connections.acquire(mockContext);
+        connections.acquire(mockContext);
+        ServiceConnection connection = connect();
+
+        connections.release();
+        verify(mockContext, never()).unbindService(any(ServiceConnection.class));
+
+        connections.release();
+        verify(mockContext, times(1)).unbindService(eq(connection));
+        Assert.assertEquals(0, connections.getReferenceCount());
+
+        connections.acquire(mockContext);
+        verify(mockContext, times(2)).bindService(any(Intent.class), any(ServiceConnection.class), anyInt());
+    }
+
+    @Test
+    public void testFailedBindTakesNoReference() {
+        when(mockContext.bindService(any(Intent.class), any(ServiceConnection.class), anyInt())).thenReturn(Boolean.FALSE);
+
+        try {
+            connections.acquire(mockContext);
+            Assert.fail("Exception not thrown");
+        } catch (IllegalStateException expected) {
+            Assert.assertEquals(0, connections.getReferenceCount());
+        }
+    }
+
+    @Test
+    public void testFailedBindFailsEveryReferenceHolder() {
+        final RecordingCallback waiter = new RecordingCallback();
+        when(mockContext.bindService(any(Intent.class), any(ServiceConnection.class), anyInt())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                // Two more modules join while the bind is pending; one
+                // waits for the service, the other has not asked yet
+                connections.acquire(mockContext);
+                connections.getService(waiter);
+                connections.acquire(mockContext);
+                return Boolean.FALSE;
+            }
+        });
+
+        try {
+            connections.acquire(mockContext);
+            Assert.fail("Exception not thrown");
+        } catch (IllegalStateException expected) {
+            Assert.assertEquals(0, connections.getReferenceCount());
+        }
+        Assert.assertTrue(waiter.failure instanceof IllegalStateException);
+
+        RecordingCallback late = new RecordingCallback();
+        connections.getService(late);
+        Assert.assertTrue(late.failure instanceof IllegalStateException);
+        Assert.assertNull(late.service);
+
+        connections.release();
+        connections.release();
+        try {
+            connections.release();
+            Assert.fail("Exception not thrown");
+        } catch (IllegalStateException expected) {
+            Assert.assertEquals(0, connections.getReferenceCount());
+        }
+    }
+
+    private ServiceConnection connect() {
+        ArgumentCaptor<ServiceConnection> connection = ArgumentCaptor.forClass(ServiceConnection.class);
+        verify(mockContext).bindService(any(Intent.class), connection.capture(), anyInt());
+        connection.getValue().onServiceConnected(null, service.onBind(null));
+        return connection.getValue();
+    }
+
+    private static class RecordingCallback implements Callback<OAuth2AuthzService> {
+
+        private OAuth2AuthzService service;
+        private Exception failure;
+
+        @Override
+        public void onSuccess(OAuth2AuthzService data) {
+            service = data;
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            failure = e;
+        }
+
+    }
+
+}
@@ -0,0 +1,137 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.test.oauth2;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthorizationException;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2FetchAccess;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2Properties;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2TokenEngine;
+import org.jboss.aerogear.android.core.Callback;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the {@link OAuth2FetchAccess} class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OAuth2FetchAccessTest {
+
+    private OAuth2TokenEngine mockEngine;
+    private OAuth2Properties config;
+    private final AtomicReference<Thread> exchangeThread = new AtomicReference<Thread>();
+
+    @Before
+    public void setUp() throws Exception {
+        config = new OAuth2Properties(new URL("https://example.com"), "name");
+        mockEngine = mock(OAuth2TokenEngine.class);
+        when(mockEngine.fetchAccessToken(eq("testAccountId"), any(OAuth2Properties.class))).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                exchangeThread.set(Thread.currentThread());
+                return "token";
+            }
+        });
+    }
+
+    @Test
+    public void testExchangeRunsOnInjectedExecutorFromWorkerThread() throws Exception {
+        final Thread[] executorThread = new Thread[1];
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                executorThread[0] = new Thread(runnable, "injected");
+                return executorThread[0];
+            }
+        });
+        final CountDownLatch called = new CountDownLatch(1);
+        final AtomicReference<Thread> callbackThread = new AtomicReference<Thread>();
+        final AtomicReference<String> token = new AtomicReference<String>();
+
+        try {
+            // The test thread has no Looper, so the callback runs on the executor
+            new OAuth2FetchAccess(mockEngine, executor).fetchAccessCode("testAccountId", config, new Callback<String>() {
+                @Override
+                public void onSuccess(String data) {
+                    token.set(data);
+                    callbackThread.set(Thread.currentThread());
+                    called.countDown();
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    called.countDown();
+                }
+            });
+
+            Assert.assertTrue(called.await(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals("token", token.get());
+        Assert.assertSame(executorThread[0], exchangeThread.get());
+        Assert.assertSame(executorThread[0], callbackThread.get());
+    }
+
+    @Test
+    public void testFailedExchangeReachesCallback() throws Exception {
+        when(mockEngine.fetchAccessToken(eq("revoked"), any(OAuth2Properties.class))).thenThrow(new OAuth2AuthorizationException("invalid_grant"));
+        final CountDownLatch called = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        new OAuth2FetchAccess(mockEngine).fetchAccessCode("revoked", config, new Callback<String>() {
+            @Override
+            public void onSuccess(String data) {
+                called.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                failure.set(e);
+                called.countDown();
+            }
+        });
+
+        Assert.assertTrue(called.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(failure.get() instanceof OAuth2AuthorizationException);
+    }
+
+    @Test
+    public void testBlockingFetchRunsOnCallingThread() throws Exception {
+        Assert.assertEquals("token", new OAuth2FetchAccess(mockEngine).fetchAccessCode("testAccountId", config));
+        Assert.assertSame(Thread.currentThread(), exchangeThread.get());
+    }
+
+}
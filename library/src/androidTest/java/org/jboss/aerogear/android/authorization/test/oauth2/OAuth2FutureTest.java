@@ -0,0 +1,195 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.test.oauth2;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2Future;
+import org.jboss.aerogear.android.core.Callback;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tests the {@link OAuth2Future} class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OAuth2FutureTest {
+
+    @Test
+    public void testCallbacksWaitForCompletionAndRunOnTheirExecutor() throws Exception {
+        OAuth2Future<String> future = pending();
+        QueueExecutor executor = new QueueExecutor();
+        RecordingCallback<String> callback = new RecordingCallback<String>();
+
+        future.addCallback(callback, executor);
+        Assert.assertEquals(0, executor.tasks.size());
+
+        complete(future, "token");
+        Assert.assertNull(callback.value);
+        executor.runAll();
+        Assert.assertEquals("token", callback.value);
+    }
+
+    @Test
+    public void testCallbackOnCompletedFutureIsHandedToExecutorAtOnce() {
+        QueueExecutor executor = new QueueExecutor();
+        RecordingCallback<String> callback = new RecordingCallback<String>();
+
+        OAuth2Future.completed("token").addCallback(callback, executor);
+
+        Assert.assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        Assert.assertEquals("token", callback.value);
+    }
+
+    @Test
+    public void testThenChainsResults() throws Exception {
+        OAuth2Future<Integer> length = OAuth2Future.completed("token").then(new OAuth2Future.Step<String, Integer>() {
+            @Override
+            public Integer apply(String value) {
+                return value.length();
+            }
+        }, new DirectExecutor());
+
+        Assert.assertEquals(Integer.valueOf(5), length.get());
+    }
+
+    @Test
+    public void testFailureSkipsLaterSteps() throws Exception {
+        final IllegalStateException cause = new IllegalStateException("no account");
+        final List<String> ran = new ArrayList<String>();
+
+        OAuth2Future<String> chained = OAuth2Future.<String>failed(cause).then(new OAuth2Future.Step<String, String>() {
+            @Override
+            public String apply(String value) {
+                ran.add(value);
+                return value;
+            }
+        }, new DirectExecutor());
+
+        try {
+            chained.get();
+            Assert.fail("Expected the failure to propagate");
+        } catch (ExecutionException ex) {
+            Assert.assertSame(cause, ex.getCause());
+        }
+        Assert.assertTrue(ran.isEmpty());
+    }
+
+    @Test
+    public void testThenComposeFollowsTheReturnedFuture() throws Exception {
+        final OAuth2Future<String> inner = pending();
+
+        OAuth2Future<String> composed = OAuth2Future.completed("token").thenCompose(new OAuth2Future.Step<String, OAuth2Future<String>>() {
+            @Override
+            public OAuth2Future<String> apply(String value) {
+                return inner;
+            }
+        }, new DirectExecutor());
+
+        Assert.assertFalse(composed.isDone());
+        complete(inner, "refreshed");
+        Assert.assertEquals("refreshed", composed.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testGetTimesOut() throws Exception {
+        try {
+            pending().get(10, TimeUnit.MILLISECONDS);
+            Assert.fail("Expected a timeout");
+        } catch (TimeoutException expected) {
+        }
+    }
+
+    @Test(expected = CancellationException.class)
+    public void testCancelFailsPendingFuture() throws Exception {
+        OAuth2Future<String> future = pending();
+
+        Assert.assertTrue(future.cancel(false));
+        Assert.assertTrue(future.isCancelled());
+        Assert.assertFalse(complete(future, "late"));
+        future.get();
+    }
+
+    private static <T> OAuth2Future<T> pending() throws Exception {
+        Constructor<OAuth2Future> constructor = OAuth2Future.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor.newInstance();
+    }
+
+    private static <T> boolean complete(OAuth2Future<T> future, T value) throws Exception {
+        Method complete = OAuth2Future.class.getDeclaredMethod("complete", Object.class);
+        complete.setAccessible(true);
+        return (Boolean) complete.invoke(future, value);
+    }
+
+    private static class DirectExecutor implements Executor {
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+    }
+
+    private static class QueueExecutor implements Executor {
+
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            tasks.clear();
+        }
+
+    }
+
+    private static class RecordingCallback<T> implements Callback<T> {
+
+        private T value;
+        private Exception failure;
+
+        @Override
+        public void onSuccess(T data) {
+            value = data;
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            failure = e;
+        }
+
+    }
+
+}
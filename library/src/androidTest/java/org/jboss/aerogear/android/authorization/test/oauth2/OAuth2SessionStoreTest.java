@@ -0,0 +1,395 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.test.oauth2;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.google.gson.GsonBuilder;
+
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzSession;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2ColumnarSessionStore;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2JournalSessionStore;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2MemorySessionStore;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2SQLSessionStore;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2SessionStore;
+import org.jboss.aerogear.android.authorization.test.util.UnitTestUtils;
+import org.jboss.aerogear.android.store.generator.IdGenerator;
+import org.jboss.aerogear.android.store.sql.SQLStore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the {@link OAuth2SessionStore} backends.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OAuth2SessionStoreTest {
+
+    private static final String TAG = OAuth2SessionStoreTest.class.getSimpleName();
+    // SQLStore names its database after the stored class
+    private static final String DATABASE_NAME = OAuth2AuthzSession.class.getSimpleName();
+
+    private File journal;
+    private SQLStore<OAuth2AuthzSession> sqlStore;
+    private OAuth2ColumnarSessionStore columnarStore;
+
+    @Before
+    public void setUp() throws IOException {
+        journal = File.createTempFile("sessions", ".journal");
+        Assert.assertTrue(journal.delete());
+        columnarStore = new OAuth2ColumnarSessionStore(InstrumentationRegistry.getTargetContext(), null);
+    }
+
+    @After
+    public void tearDown() {
+        journal.delete();
+        columnarStore.close();
+        if (sqlStore != null) {
+            sqlStore.close();
+            InstrumentationRegistry.getTargetContext().deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    @Test
+    public void testSQLStoreSaveReplacesSession() {
+        OAuth2SessionStore store = new OAuth2SQLSessionStore(openSQLStore());
+
+        store.save(session("a", "first"));
+        store.save(session("a", "second"));
+        store.save(Arrays.asList(session("b", "first"), session("a", "third")));
+
+        Assert.assertEquals("third", store.read("a").getAccessToken());
+        Assert.assertEquals("first", store.read("b").getAccessToken());
+        Assert.assertEquals(Arrays.asList("a", "b"), store.readAccountIds(null, 10));
+        Assert.assertEquals(propertyRows("b"), propertyRows("a"));
+    }
+
+    @Test
+    public void testSQLStoreReadsIdsFromPropertyTable() {
+        SQLiteDatabase database = sessionTable("b", "a", "c");
+        try {
+            @SuppressWarnings("unchecked")
+            SQLStore<OAuth2AuthzSession> mockStore = mock(SQLStore.class);
+            when(mockStore.getReadableDatabase()).thenReturn(database);
+            OAuth2SessionStore store = new OAuth2SQLSessionStore(mockStore);
+
+            Assert.assertEquals(3, store.readAccountIds().size());
+            Assert.assertEquals(Arrays.asList("a", "b"), store.readAccountIds(null, 2));
+            Assert.assertEquals(Arrays.asList("c"), store.readAccountIds("b", 2));
+        } finally {
+            database.close();
+        }
+    }
+
+    @Test
+    public void testColumnarStoreSaveReplacesSession() {
+        columnarStore.save(session("a", "first"));
+        columnarStore.save(session("a", "second"));
+        columnarStore.save(Arrays.asList(session("b", "first"), session("a", "third")));
+
+        OAuth2AuthzSession read = columnarStore.read("a");
+        Assert.assertEquals("third", read.getAccessToken());
+        Assert.assertEquals("client", read.getClientId());
+        Assert.assertEquals("refresh-a", read.getRefreshToken());
+        Assert.assertEquals(Arrays.asList("a", "b"), columnarStore.readAccountIds());
+        Assert.assertEquals(Arrays.asList("b"), columnarStore.readAccountIds("a", 2));
+
+        columnarStore.remove("a");
+        Assert.assertNull(columnarStore.read("a"));
+        columnarStore.save(session("a", "fourth"));
+        Assert.assertEquals("fourth", columnarStore.read("a").getAccessToken());
+    }
+
+    @Test
+    public void testColumnarStoreRefreshUpdatesOnlyTokenColumns() {
+        SQLiteDatabase database = columnarStore.getWritableDatabase();
+        database.execSQL("create table updated (name text)");
+        for (String column : new String[] { "client_id", "access_token", "authorization_code", "refresh_token", "expires_on" }) {
+            database.execSQL("create trigger updated_" + column + " after update of " + column
+                    + " on sessions begin insert into updated values ('" + column + "'); end");
+        }
+
+        OAuth2AuthzSession session = session("a", "first");
+        columnarStore.save(session);
+        database.execSQL("delete from updated");
+
+        session.setAccessToken("second");
+        session.setExpires_on(session.getExpires_on() + 1000);
+        columnarStore.save(session);
+        Assert.assertEquals(Arrays.asList("access_token", "expires_on"), updatedColumns(database));
+
+        columnarStore.save(session);
+        Assert.assertEquals(Collections.<String>emptyList(), updatedColumns(database));
+        Assert.assertEquals("second", columnarStore.read("a").getAccessToken());
+    }
+
+    @Test
+    public void testColumnarStoreReadsExpiringAccounts() {
+        long now = System.currentTimeMillis();
+        columnarStore.save(expiringSession("later", now + 60 * 60 * 1000));
+        columnarStore.save(expiringSession("soon", now + 60 * 1000));
+        columnarStore.save(expiringSession("expired", now - 1000));
+        columnarStore.save(expiringSession("never", 0));
+
+        Assert.assertEquals(Arrays.asList("expired", "soon"), columnarStore.readExpiringBefore(now + 5 * 60 * 1000));
+    }
+
+    @Test
+    public void testMemoryStoreKeepsCopies() {
+        OAuth2SessionStore store = new OAuth2MemorySessionStore();
+        OAuth2AuthzSession saved = session("a", "first");
+        store.save(saved);
+        saved.setAccessToken("changed");
+        store.read("a").setAccessToken("changed");
+
+        Assert.assertEquals("first", store.read("a").getAccessToken());
+    }
+
+    @Test
+    public void testMemoryStorePagesInIdOrder() {
+        OAuth2SessionStore store = new OAuth2MemorySessionStore();
+        for (String accountId : new String[] { "e", "d", "c", "b", "a" }) {
+            store.save(session(accountId, "token"));
+        }
+        store.remove("c");
+
+        Assert.assertEquals(Arrays.asList("a", "b"), store.readAccountIds(null, 2));
+        Assert.assertEquals(Arrays.asList("d", "e"), store.readAccountIds("b", 2));
+        Assert.assertEquals(Collections.<String>emptyList(), store.readAccountIds("e", 2));
+    }
+
+    @Test
+    public void testJournalIsReplayedOnOpen() throws IOException {
+        OAuth2JournalSessionStore store = new OAuth2JournalSessionStore(journal);
+        store.save(session("a", "first"));
+        store.save(session("a", "second"));
+        store.save(Arrays.asList(session("b", "first"), session("c", "first")));
+        store.remove("c");
+        store.close();
+
+        OAuth2JournalSessionStore reopened = new OAuth2JournalSessionStore(journal);
+        Assert.assertEquals(Arrays.asList("a", "b"), reopened.readAccountIds());
+        Assert.assertEquals("second", reopened.read("a").getAccessToken());
+        Assert.assertEquals("refresh-a", reopened.read("a").getRefreshToken());
+        Assert.assertEquals(4, reopened.getRecordCount());
+        reopened.close();
+    }
+
+    @Test
+    public void testJournalDropsTornRecord() throws IOException {
+        OAuth2JournalSessionStore store = new OAuth2JournalSessionStore(journal);
+        store.save(session("a", "first"));
+        store.save(session("b", "first"));
+        store.close();
+
+        // Cut the last record short, as a crash while appending would
+        long intact = journal.length();
+        FileOutputStream append = new FileOutputStream(journal, true);
+        append.write(new byte[] { 0, 0, 0, 40, 1, 0, 0 });
+        append.close();
+
+        OAuth2JournalSessionStore reopened = new OAuth2JournalSessionStore(journal);
+        Assert.assertEquals(intact, journal.length());
+        Assert.assertEquals(Arrays.asList("a", "b"), reopened.readAccountIds());
+
+        reopened.save(session("c", "first"));
+        reopened.close();
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), new OAuth2JournalSessionStore(journal).readAccountIds());
+    }
+
+    @Test
+    public void testJournalCutsOffFailedWrite() throws Exception {
+        OAuth2JournalSessionStore store = new OAuth2JournalSessionStore(journal);
+        store.save(session("a", "first"));
+
+        // Write half of the next frame, then fail, as a full disk would
+        UnitTestUtils.setPrivateField(store, "out", new FileOutputStream(journal, true) {
+            @Override
+            public void write(byte[] bytes) throws IOException {
+                super.write(bytes, 0, bytes.length / 2);
+                throw new IOException("No space left on device");
+            }
+        });
+        try {
+            store.save(session("b", "first"));
+            Assert.fail("The failed write was not reported");
+        } catch (IllegalStateException expected) {
+            // The session was not saved
+        }
+
+        store.save(session("c", "first"));
+        store.save(session("a", "second"));
+        store.close();
+
+        OAuth2JournalSessionStore reopened = new OAuth2JournalSessionStore(journal);
+        Assert.assertEquals(Arrays.asList("a", "c"), reopened.readAccountIds());
+        Assert.assertEquals("second", reopened.read("a").getAccessToken());
+        Assert.assertEquals(3, reopened.getRecordCount());
+        reopened.close();
+    }
+
+    @Test
+    public void testJournalIsCompacted() throws IOException {
+        OAuth2JournalSessionStore store = new OAuth2JournalSessionStore(journal, 8);
+        store.save(session("a", "token"));
+        store.save(session("b", "token"));
+        for (int i = 0; i < 20; i++) {
+            store.save(session("a", "token" + i));
+        }
+
+        Assert.assertTrue(store.getRecordCount() < 8);
+        store.close();
+
+        OAuth2JournalSessionStore reopened = new OAuth2JournalSessionStore(journal, 8);
+        Assert.assertEquals("token19", reopened.read("a").getAccessToken());
+        Assert.assertEquals("token", reopened.read("b").getAccessToken());
+        reopened.close();
+    }
+
+    /**
+     * Compares token update latency across every backend on the device. The
+     * SQLite backed stores can only be measured here; the memory and journal
+     * stores are also benchmarked on the host by SessionStoreWriteBenchmark.
+     */
+    @Test
+    public void testWriteLatencyAcrossBackends() throws IOException {
+        final int iterations = 200;
+
+        OAuth2JournalSessionStore journalStore = new OAuth2JournalSessionStore(journal);
+        OAuth2SessionStore[] stores = new OAuth2SessionStore[] {
+                new OAuth2SQLSessionStore(openSQLStore()),
+                columnarStore,
+                new OAuth2MemorySessionStore(),
+                journalStore
+        };
+
+        try {
+            for (OAuth2SessionStore store : stores) {
+                for (int i = 0; i < 10; i++) {
+                    store.save(session("account" + (i % 4), "warmup" + i));
+                }
+
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    store.save(session("account" + (i % 4), "token" + i));
+                }
+                long nanos = System.nanoTime() - start;
+
+                Log.i(TAG, String.format("token update: %s %d us/op", store.getClass().getSimpleName(), nanos / iterations / 1000));
+                Assert.assertEquals("token" + (iterations - 1), store.read("account" + ((iterations - 1) % 4)).getAccessToken());
+            }
+        } finally {
+            journalStore.close();
+        }
+    }
+
+    private SQLStore<OAuth2AuthzSession> openSQLStore() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        sqlStore = new SQLStore<OAuth2AuthzSession>(OAuth2AuthzSession.class, context, new GsonBuilder(), new IdGenerator() {
+            @Override
+            public Serializable generate() {
+                return UUID.randomUUID().toString();
+            }
+        });
+        sqlStore.openSync();
+        return sqlStore;
+    }
+
+    private long propertyRows(String accountId) {
+        Cursor cursor = sqlStore.getReadableDatabase().rawQuery(
+                "select count(*) from OAuth2AuthzSession_property where PARENT_ID = ?", new String[] { accountId });
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static List<String> updatedColumns(SQLiteDatabase database) {
+        List<String> columns = new ArrayList<String>();
+        Cursor cursor = database.rawQuery("select name from updated order by name", null);
+        try {
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        database.execSQL("delete from updated");
+        return columns;
+    }
+
+    private static OAuth2AuthzSession expiringSession(String accountId, long expiresOn) {
+        OAuth2AuthzSession session = session(accountId, "token");
+        session.setExpires_on(expiresOn);
+        return session;
+    }
+
+    private static OAuth2AuthzSession session(String accountId, String accessToken) {
+        OAuth2AuthzSession session = new OAuth2AuthzSession();
+        session.setAccountId(accountId);
+        session.setClientId("client");
+        session.setAccessToken(accessToken);
+        session.setRefreshToken("refresh-" + accountId);
+        session.setExpires_on(System.currentTimeMillis() + 60 * 60 * 1000);
+        return session;
+    }
+
+    /**
+     * Builds an in memory copy of the table SQLStore keeps sessions in, with
+     * two property rows for each account.
+     */
+    private static SQLiteDatabase sessionTable(String... accountIds) {
+        SQLiteDatabase database = SQLiteDatabase.create(null);
+        database.execSQL("create table OAuth2AuthzSession_property (_ID integer primary key autoincrement, "
+                + "PARENT_ID text not null, PROPERTY_NAME text not null, PROPERTY_VALUE text)");
+        for (String accountId : accountIds) {
+            for (String property : new String[] { "accountId", "accessToken" }) {
+                ContentValues values = new ContentValues();
+                values.put("PARENT_ID", accountId);
+                values.put("PROPERTY_NAME", property);
+                values.put("PROPERTY_VALUE", accountId);
+                database.insert("OAuth2AuthzSession_property", null, values);
+            }
+        }
+        return database;
+    }
+
+}
@@ -0,0 +1,153 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.test.oauth2;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Pair;
+
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzSession;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2Properties;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2TokenRequestTemplate;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.jboss.aerogear.android.pipe.util.UrlUtils.appendToBaseURL;
+
+/**
+ * Tests the {@link OAuth2TokenRequestTemplate} class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OAuth2TokenRequestTemplateTest {
+
+    private OAuth2Properties config;
+    private OAuth2AuthzSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        config = new OAuth2Properties(new URL("http://example.com/auth/"), "test");
+        config.setAccessTokenEndpoint("token");
+        config.setRefreshEndpoint("refresh");
+        config.setRedirectURL("http://localhost/callback");
+        config.setClientId("test client");
+        config.setClientSecret("s3cr&t");
+        config.getAdditionalAccessParams().add(new Pair<String, String>("audience", "https://api.example.com"));
+
+        session = new OAuth2AuthzSession();
+        session.setAccountId("testAccountId");
+        session.setClientId("test client");
+        session.setAuthorizationCode("code/1");
+        session.setRefreshToken("refresh+token");
+    }
+
+    @Test
+    public void testEndpointsAreResolved() {
+        OAuth2TokenRequestTemplate template = new OAuth2TokenRequestTemplate(config);
+
+        Assert.assertEquals(appendToBaseURL(config.getBaseURL(), "token"), template.getAccessTokenURL());
+        Assert.assertEquals(appendToBaseURL(config.getBaseURL(), "refresh"), template.getRefreshURL());
+    }
+
+    @Test
+    public void testRefreshBody() throws UnsupportedEncodingException {
+        Map<String, String> body = decode(new OAuth2TokenRequestTemplate(config).refreshBody(session));
+
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("grant_type", "refresh_token");
+        expected.put("refresh_token", "refresh+token");
+        expected.put("client_id", "test client");
+        expected.put("client_secret", "s3cr&t");
+        expected.put("audience", "https://api.example.com");
+        Assert.assertEquals(expected, body);
+    }
+
+    @Test
+    public void testCodeExchangeBody() throws UnsupportedEncodingException {
+        Map<String, String> body = decode(new OAuth2TokenRequestTemplate(config).codeExchangeBody(session));
+
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("grant_type", "authorization_code");
+        expected.put("code", "code/1");
+        expected.put("redirect_uri", "http://localhost/callback");
+        expected.put("client_id", "test client");
+        expected.put("client_secret", "s3cr&t");
+        expected.put("audience", "https://api.example.com");
+        Assert.assertEquals(expected, body);
+    }
+
+    @Test
+    public void testSessionClientIdIsEncodedWhenItDiffers() throws UnsupportedEncodingException {
+        session.setClientId("other/client");
+
+        Map<String, String> body = decode(new OAuth2TokenRequestTemplate(config).refreshBody(session));
+
+        Assert.assertEquals("other/client", body.get("client_id"));
+        Assert.assertEquals("refresh+token", body.get("refresh_token"));
+    }
+
+    @Test
+    public void testBodyMatchesLegacyEncoding() throws UnsupportedEncodingException {
+        byte[] templateBody = new OAuth2TokenRequestTemplate(config).refreshBody(session);
+
+        Assert.assertEquals(decode(legacyRefreshBody(session, config)), decode(templateBody));
+    }
+
+    /**
+     * A copy of how the service built refresh bodies before templates.
+     */
+    private static byte[] legacyRefreshBody(OAuth2AuthzSession storedAccount, OAuth2Properties config) throws UnsupportedEncodingException {
+        final Map<String, String> data = new HashMap<String, String>();
+
+        data.put("refresh_token", storedAccount.getRefreshToken());
+        data.put("grant_type", "refresh_token");
+        data.put("client_id", storedAccount.getClientId());
+        if (config.getClientSecret() != null) {
+            data.put("client_secret", config.getClientSecret());
+        }
+        for (Pair<String, String> param : config.getAdditionalAccessParams()) {
+            data.put(URLEncoder.encode(param.first, "UTF-8"), param.second);
+        }
+        appendToBaseURL(config.getBaseURL(), config.getRefreshEndpoint());
+
+        final StringBuilder bodyBuilder = new StringBuilder();
+        String amp = "";
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            bodyBuilder.append(amp);
+            bodyBuilder.append(String.format("%s=%s", entry.getKey(), URLEncoder.encode(entry.getValue(), "UTF-8")));
+            amp = "&";
+        }
+        return bodyBuilder.toString().getBytes("UTF-8");
+    }
+
+    private static Map<String, String> decode(byte[] body) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String pair : new String(body, "UTF-8").split("&")) {
+            String[] nameAndValue = pair.split("=", 2);
+            params.put(URLDecoder.decode(nameAndValue[0], "UTF-8"), URLDecoder.decode(nameAndValue[1], "UTF-8"));
+        }
+        return params;
+    }
+
+}
@@ -0,0 +1,135 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.test.oauth2;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthorizationException;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2TokenResponse;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2TokenResponseParser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests the {@link OAuth2TokenResponseParser} class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OAuth2TokenResponseParserTest {
+
+    @Test
+    public void testJsonResponse() throws OAuth2AuthorizationException {
+        OAuth2TokenResponse response = parse("{\"access_token\":\"testToken\",\"token_type\":\"bearer\",\"expires_in\":3600,"
+                + "\"refresh_token\":\"testRefreshToken\",\"scope\":[\"a\",\"b\"]}", "application/json;charset=UTF-8");
+
+        Assert.assertEquals("testToken", response.getAccessToken());
+        Assert.assertEquals(3600, response.getExpiresIn());
+        Assert.assertEquals("testRefreshToken", response.getRefreshToken());
+        Assert.assertNull(response.getError());
+    }
+
+    @Test
+    public void testJsonIsDetectedWithoutContentType() throws OAuth2AuthorizationException {
+        OAuth2TokenResponse response = parse("  \n{\"access_token\":\"testToken\",\"expires_in\":\"60\"}", null);
+
+        Assert.assertEquals("testToken", response.getAccessToken());
+        Assert.assertEquals(60, response.getExpiresIn());
+        Assert.assertNull(response.getRefreshToken());
+    }
+
+    @Test
+    public void testMissingExpiry() throws OAuth2AuthorizationException {
+        Assert.assertEquals(-1, parse("{\"access_token\":\"testToken\"}", null).getExpiresIn());
+        Assert.assertEquals(-1, parse("access_token=testToken", null).getExpiresIn());
+    }
+
+    @Test
+    public void testJsonStringError() throws OAuth2AuthorizationException {
+        OAuth2TokenResponse response = parse("{\"error\":\"invalid_grant\"}", "application/json");
+
+        Assert.assertEquals("invalid_grant", response.getError());
+        Assert.assertNull(response.getAccessToken());
+    }
+
+    @Test
+    public void testJsonObjectError() throws OAuth2AuthorizationException {
+        OAuth2TokenResponse response = parse("{\"error\":{\"message\":\"this is a message\"}}", null);
+
+        Assert.assertEquals("{\"message\":\"this is a message\"}", response.getError());
+    }
+
+    @Test
+    public void testFormResponse() throws OAuth2AuthorizationException {
+        OAuth2TokenResponse response = parse("access_token=test%2BToken&token_type=bearer&expires_in=3600&refresh_token=testRefreshToken\n",
+                "application/x-www-form-urlencoded");
+
+        Assert.assertEquals("test+Token", response.getAccessToken());
+        Assert.assertEquals(3600, response.getExpiresIn());
+        Assert.assertEquals("testRefreshToken", response.getRefreshToken());
+    }
+
+    @Test
+    public void testFormIsDetectedWithoutContentType() throws OAuth2AuthorizationException {
+        OAuth2TokenResponse response = parse("expires_in=10&access_token=testToken&error_description=none", "text/plain");
+
+        Assert.assertEquals("testToken", response.getAccessToken());
+        Assert.assertEquals(10, response.getExpiresIn());
+        Assert.assertNull(response.getError());
+    }
+
+    @Test
+    public void testFormError() throws OAuth2AuthorizationException {
+        Assert.assertEquals("invalid_grant", parse("error=invalid_grant", null).getError());
+    }
+
+    @Test
+    public void testToStringRedactsTokens() throws OAuth2AuthorizationException {
+        String printed = parse("{\"access_token\":\"testToken\",\"expires_in\":3600,\"refresh_token\":\"testRefreshToken\"}", null).toString();
+
+        Assert.assertFalse(printed.contains("testToken"));
+        Assert.assertFalse(printed.contains("testRefreshToken"));
+        Assert.assertTrue(printed.contains("expiresIn=3600"));
+    }
+
+    @Test
+    public void testUnparseableBody() {
+        try {
+            parse("{\"access_token\":", "application/json");
+        } catch (OAuth2AuthorizationException exception) {
+            Assert.assertEquals("{\"access_token\":", exception.getError());
+            return;
+        }
+        Assert.fail("Exception not thrown");
+    }
+
+    @Test
+    public void testMalformedObjectError() {
+        String body = "{\"error\":{\"message\":}}";
+        try {
+            parse(body, "application/json");
+        } catch (OAuth2AuthorizationException exception) {
+            Assert.assertEquals(body, exception.getError());
+            return;
+        }
+        Assert.fail("Exception not thrown");
+    }
+
+    private static OAuth2TokenResponse parse(String body, String contentType) throws OAuth2AuthorizationException {
+        return OAuth2TokenResponseParser.parse(body.getBytes(), contentType);
+    }
+
+}
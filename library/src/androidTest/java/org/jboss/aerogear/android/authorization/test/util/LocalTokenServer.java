@@ -0,0 +1,424 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.test.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in for the token endpoint of an OAuth2 server, listening on the
+ * loopback interface.
+ *
+ * It answers authorization code and refresh token grants on every path and
+ * can be made to misbehave the ways real servers do: slow responses, 5xx
+ * errors, form encoded bodies and rotating refresh tokens. Refresh tokens
+ * and codes are only accepted if the server issued them; anything else is
+ * answered with a 400 invalid_grant.
+ */
+public final class LocalTokenServer implements Closeable {
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections;
+    private final Random random = new Random();
+
+    private final Set<String> refreshTokens = newConcurrentSet();
+    private final Set<String> codes = newConcurrentSet();
+    private final AtomicLong issued = new AtomicLong();
+
+    private final AtomicInteger refreshes = new AtomicInteger();
+    private final AtomicInteger codeExchanges = new AtomicInteger();
+    private final AtomicInteger invalidGrants = new AtomicInteger();
+    private final AtomicInteger serverErrors = new AtomicInteger();
+
+    private volatile long minLatency = 0;
+    private volatile long maxLatency = 0;
+    private volatile double serverErrorRate = 0;
+    private volatile boolean formEncoded = false;
+    private volatile boolean rotateRefreshTokens = false;
+    private volatile long expiresIn = 3600;
+
+    public LocalTokenServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        connections = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LocalTokenServer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        connections.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * @return the URL of the server; every path on it is a token endpoint
+     */
+    public URL getBaseURL() {
+        try {
+            return new URL("http://127.0.0.1:" + serverSocket.getLocalPort());
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Delays every response by a random time between min and max.
+     *
+     * @param min the shortest delay in milliseconds
+     * @param max the longest delay in milliseconds
+     */
+    public void setLatency(long min, long max) {
+        this.minLatency = min;
+        this.maxLatency = Math.max(min, max);
+    }
+
+    /**
+     * @param rate the share of requests, from 0 to 1, answered with a 503
+     */
+    public void setServerErrorRate(double rate) {
+        this.serverErrorRate = rate;
+    }
+
+    /**
+     * @param formEncoded true to answer with application/x-www-form-urlencoded
+     *            bodies instead of JSON
+     */
+    public void setFormEncoded(boolean formEncoded) {
+        this.formEncoded = formEncoded;
+    }
+
+    /**
+     * @param rotate true to replace a refresh token with a new one every time
+     *            it is used. The old token is rejected afterwards.
+     */
+    public void setRotateRefreshTokens(boolean rotate) {
+        this.rotateRefreshTokens = rotate;
+    }
+
+    /**
+     * @param expiresIn the lifetime in seconds of the access tokens issued
+     */
+    public void setExpiresIn(long expiresIn) {
+        this.expiresIn = expiresIn;
+    }
+
+    /**
+     * @return a new refresh token the server accepts
+     */
+    public String issueRefreshToken() {
+        String token = "rt-" + issued.incrementAndGet();
+        refreshTokens.add(token);
+        return token;
+    }
+
+    /**
+     * @return a new authorization code the server accepts once
+     */
+    public String issueAuthorizationCode() {
+        String code = "code-" + issued.incrementAndGet();
+        codes.add(code);
+        return code;
+    }
+
+    /**
+     * @param refreshToken a refresh token the server should reject from now
+     */
+    public void revoke(String refreshToken) {
+        refreshTokens.remove(refreshToken);
+    }
+
+    /**
+     * @return the number of refresh token grants answered with a token
+     */
+    public int getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return the number of authorization code grants answered with a token
+     */
+    public int getCodeExchangeCount() {
+        return codeExchanges.get();
+    }
+
+    /**
+     * @return the number of requests answered with invalid_grant
+     */
+    public int getInvalidGrantCount() {
+        return invalidGrants.get();
+    }
+
+    /**
+     * @return the number of requests answered with a 503
+     */
+    public int getServerErrorCount() {
+        return serverErrors.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ex) {
+                return;
+            }
+            connections.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            // Keep the connection alive for as many requests as the client sends
+            while (true) {
+                Map<String, String> headers = new HashMap<String, String>();
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                    }
+                }
+                String length = headers.get("content-length");
+                byte[] body = readBody(in, length == null ? 0 : Integer.parseInt(length));
+
+                delay();
+                respond(out, parseForm(new String(body, "UTF-8")));
+                if ("close".equalsIgnoreCase(headers.get("connection"))) {
+                    return;
+                }
+            }
+        } catch (SocketException ex) {
+            // The client closed the connection
+        } catch (IOException ex) {
+            // The client closed the connection
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void respond(OutputStream out, Map<String, String> form) throws IOException {
+        if (serverErrorRate > 0 && nextDouble() < serverErrorRate) {
+            serverErrors.incrementAndGet();
+            write(out, 503, "text/plain", "Service Unavailable");
+            return;
+        }
+
+        String grantType = form.get("grant_type");
+        String refreshToken = null;
+        if ("refresh_token".equals(grantType)) {
+            String presented = form.get("refresh_token");
+            if (presented == null || !refreshTokens.contains(presented)) {
+                invalidGrant(out);
+                return;
+            }
+            refreshToken = presented;
+            if (rotateRefreshTokens) {
+                // Only one of several concurrent uses of the old token wins
+                if (!refreshTokens.remove(presented)) {
+                    invalidGrant(out);
+                    return;
+                }
+                refreshToken = issueRefreshToken();
+            }
+            refreshes.incrementAndGet();
+        } else if ("authorization_code".equals(grantType)) {
+            String code = form.get("code");
+            if (code == null || !codes.remove(code)) {
+                invalidGrant(out);
+                return;
+            }
+            refreshToken = issueRefreshToken();
+            codeExchanges.incrementAndGet();
+        } else {
+            write(out, 400, "application/json", "{\"error\":\"unsupported_grant_type\"}");
+            return;
+        }
+
+        Map<String, String> token = new HashMap<String, String>();
+        token.put("access_token", "at-" + issued.incrementAndGet());
+        token.put("token_type", "Bearer");
+        token.put("expires_in", String.valueOf(expiresIn));
+        if (rotateRefreshTokens || "authorization_code".equals(grantType)) {
+            token.put("refresh_token", refreshToken);
+        }
+        writeFields(out, 200, token);
+    }
+
+    private void invalidGrant(OutputStream out) throws IOException {
+        invalidGrants.incrementAndGet();
+        Map<String, String> error = new HashMap<String, String>();
+        error.put("error", "invalid_grant");
+        writeFields(out, 400, error);
+    }
+
+    private void writeFields(OutputStream out, int status, Map<String, String> fields) throws IOException {
+        StringBuilder body = new StringBuilder();
+        if (formEncoded) {
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                body.append(body.length() == 0 ? "" : "&").append(encode(field.getKey())).append('=').append(encode(field.getValue()));
+            }
+            write(out, status, "application/x-www-form-urlencoded", body.toString());
+        } else {
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                body.append(body.length() == 0 ? "{" : ",").append('"').append(field.getKey()).append("\":");
+                if ("expires_in".equals(field.getKey())) {
+                    body.append(field.getValue());
+                } else {
+                    body.append('"').append(field.getValue()).append('"');
+                }
+            }
+            write(out, status, "application/json", body.append('}').toString());
+        }
+    }
+
+    private static void write(OutputStream out, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        String head = "HTTP/1.1 " + status + " " + reason(status) + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + bytes.length + "\r\n"
+                + "Connection: keep-alive\r\n\r\n";
+        out.write(head.getBytes("US-ASCII"));
+        out.write(bytes);
+        out.flush();
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 400:
+                return "Bad Request";
+            default:
+                return "Service Unavailable";
+        }
+    }
+
+    private void delay() throws InterruptedException {
+        long min = minLatency;
+        long max = maxLatency;
+        if (max > 0) {
+            Thread.sleep(min + (long) (nextDouble() * (max - min)));
+        }
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    private static Map<String, String> parseForm(String body) throws UnsupportedEncodingException {
+        Map<String, String> form = new HashMap<String, String>();
+        for (String pair : body.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                form.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return form;
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("US-ASCII");
+    }
+
+    private static byte[] readBody(InputStream in, int length) throws IOException {
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(body, read, length - read);
+            if (count == -1) {
+                throw new IOException("Connection closed in the request body");
+            }
+            read += count;
+        }
+        return body;
+    }
+
+    private static Set<String> newConcurrentSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+}
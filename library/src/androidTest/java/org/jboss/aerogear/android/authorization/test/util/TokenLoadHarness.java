@@ -0,0 +1,246 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.test.util;
+
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthorizationException;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzSession;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2Properties;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2TokenEngine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives {@link OAuth2TokenEngine#fetchAccessToken(String, OAuth2Properties)}
+ * from many threads and accounts against a {@link LocalTokenServer} and
+ * reports how the engine held up.
+ *
+ * Every account starts with an expired access token and a refresh token the
+ * server accepts, so the first fetch of each account refreshes it, and so
+ * does the first fetch after each token the server issued expires.
+ */
+public final class TokenLoadHarness {
+
+    // Latency samples kept per thread; later calls replace random samples so
+    // the percentiles stay representative without keeping every call
+    private static final int SAMPLES_PER_THREAD = 1 << 16;
+
+    private final OAuth2TokenEngine engine;
+    private final OAuth2Properties config;
+    private final LocalTokenServer server;
+
+    /**
+     * @param engine the engine to load; its session store must be open
+     * @param config the properties pointing at server
+     * @param server the stand-in token endpoint
+     */
+    public TokenLoadHarness(OAuth2TokenEngine engine, OAuth2Properties config, LocalTokenServer server) {
+        this.engine = engine;
+        this.config = config;
+        this.server = server;
+    }
+
+    /**
+     * Adds accounts to the engine and fetches their tokens from threads
+     * threads until duration has passed.
+     *
+     * @param threads the number of calling threads
+     * @param accounts the number of accounts the threads pick from at random
+     * @param duration how long to run, in milliseconds
+     * @return what happened
+     * @throws InterruptedException if interrupted while waiting for the
+     *             threads
+     */
+    public Report run(int threads, int accounts, long duration) throws InterruptedException {
+        final List<String> accountIds = new ArrayList<String>();
+        for (int i = 0; i < accounts; i++) {
+            OAuth2AuthzSession session = new OAuth2AuthzSession();
+            session.setAccountId("load-" + i);
+            session.setClientId(config.getClientId());
+            session.setAccessToken("expired-" + i);
+            session.setExpires_on(1);
+            session.setRefreshToken(server.issueRefreshToken());
+            engine.addAccount(session);
+            accountIds.add(session.getAccountId());
+        }
+
+        final int refreshesBefore = server.getRefreshCount();
+        final Set<String> tokens = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger failures = new AtomicInteger();
+        final long[][] latencies = new long[threads][];
+        final int[] counts = new int[threads];
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duration);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(thread);
+                    long[] samples = new long[SAMPLES_PER_THREAD];
+                    int count = 0;
+                    try {
+                        while (System.nanoTime() < deadline) {
+                            String accountId = accountIds.get(random.nextInt(accountIds.size()));
+                            long before = System.nanoTime();
+                            try {
+                                tokens.add(engine.fetchAccessToken(accountId, config));
+                            } catch (OAuth2AuthorizationException ex) {
+                                failures.incrementAndGet();
+                            } catch (RuntimeException ex) {
+                                failures.incrementAndGet();
+                            }
+                            long latency = System.nanoTime() - before;
+                            if (count < samples.length) {
+                                samples[count] = latency;
+                            } else {
+                                int slot = random.nextInt(count + 1);
+                                if (slot < samples.length) {
+                                    samples[slot] = latency;
+                                }
+                            }
+                            count++;
+                        }
+                    } finally {
+                        latencies[thread] = samples;
+                        counts[thread] = count;
+                        done.countDown();
+                    }
+                }
+            }, "TokenLoadHarness-" + t).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        int calls = 0;
+        int sampled = 0;
+        for (int count : counts) {
+            calls += count;
+            sampled += Math.min(count, SAMPLES_PER_THREAD);
+        }
+        long[] all = new long[sampled];
+        int offset = 0;
+        for (int t = 0; t < threads; t++) {
+            int kept = Math.min(counts[t], SAMPLES_PER_THREAD);
+            System.arraycopy(latencies[t], 0, all, offset, kept);
+            offset += kept;
+        }
+        Arrays.sort(all);
+
+        return new Report(calls, failures.get(), elapsed, all, tokens.size(), server.getRefreshCount() - refreshesBefore);
+    }
+
+    /**
+     * The outcome of a {@link TokenLoadHarness#run(int, int, long)}.
+     */
+    public static final class Report {
+
+        private final int calls;
+        private final int failures;
+        private final long elapsedNanos;
+        private final long[] sortedLatencies;
+        private final int refreshes;
+        private final int exchanges;
+
+        private Report(int calls, int failures, long elapsedNanos, long[] sortedLatencies, int refreshes, int exchanges) {
+            this.calls = calls;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+            this.sortedLatencies = sortedLatencies;
+            this.refreshes = refreshes;
+            this.exchanges = exchanges;
+        }
+
+        public int getCalls() {
+            return calls;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return fetchAccessToken calls per second
+         */
+        public double getThroughput() {
+            return calls / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * @param percentile a percentile from 0 to 100
+         * @return the latency of a fetchAccessToken call at percentile, in
+         *         microseconds
+         */
+        public long getLatencyMicros(double percentile) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+            return TimeUnit.NANOSECONDS.toMicros(sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))]);
+        }
+
+        /**
+         * @return refresh grants the server answered per second, the load
+         *         the callers put on the IdP
+         */
+        public double getExchangeRate() {
+            return exchanges / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * @return the number of distinct access tokens the callers got
+         */
+        public int getRefreshes() {
+            return refreshes;
+        }
+
+        /**
+         * @return the number of refresh grants the server answered
+         */
+        public int getExchanges() {
+            return exchanges;
+        }
+
+        /**
+         * @return token endpoint exchanges per token the callers got; 1 means
+         *         no exchange was wasted
+         */
+        public double getExchangesPerRefresh() {
+            return refreshes == 0 ? 0 : (double) exchanges / refreshes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d calls, %d failed, %.0f calls/s, latency p50=%dus p90=%dus p99=%dus max=%dus, "
+                    + "%d exchanges (%.1f/s) for %d refreshes (%.2f per refresh)",
+                    calls, failures, getThroughput(), getLatencyMicros(50), getLatencyMicros(90), getLatencyMicros(99),
+                    getLatencyMicros(100), exchanges, getExchangeRate(), refreshes, getExchangesPerRefresh());
+        }
+
+    }
+
+}
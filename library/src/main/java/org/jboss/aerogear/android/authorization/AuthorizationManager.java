@@ -20,11 +20,14 @@ import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthroizationConfig
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthorizationConfiguration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import org.jboss.aerogear.android.core.ConfigurationProvider;
 
 public final class AuthorizationManager {
     private static Map<String, AuthzModule> modules = new HashMap<String, AuthzModule>();
 
+    private static final TokenEventDispatcher tokenEvents = new TokenEventDispatcher(null);
+
     private static Map<Class<? extends AuthorizationConfiguration<?>>, ConfigurationProvider<?>> configurationProviderMap = new HashMap<Class<? extends AuthorizationConfiguration<?>>, ConfigurationProvider<?>>();
 
     private static OnAuthorizationCreatedListener onAuthorizationCreatedListener = new OnAuthorizationCreatedListener() {
@@ -95,4 +98,29 @@ public final class AuthorizationManager {
         return modules.get(name);
     }
 
+    /**
+     * Registers a listener for the token events of every module.
+     * 
+     * @param listener receives the events
+     * @param executor calls listener
+     */
+    public static void addTokenListener(TokenListener listener, Executor executor) {
+        tokenEvents.addListener(listener, executor);
+    }
+
+    /**
+     * Removes a listener added with
+     * {@link AuthorizationManager#addTokenListener(TokenListener, Executor)}.
+     * 
+     * @param listener the listener to remove
+     * @return true if listener was registered
+     */
+    public static boolean removeTokenListener(TokenListener listener) {
+        return tokenEvents.removeListener(listener);
+    }
+
+    static TokenEventDispatcher tokenEvents() {
+        return tokenEvents;
+    }
+
 }
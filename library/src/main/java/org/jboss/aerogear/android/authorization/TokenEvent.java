@@ -0,0 +1,94 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization;
+
+/**
+ * A change in the lifecycle of the token of an {@link AuthzModule}.
+ */
+public final class TokenEvent {
+
+    public enum Type {
+        /**
+         * The module got a token where it had none.
+         */
+        ACQUIRED,
+        /**
+         * The token of the module was replaced by a new one.
+         */
+        REFRESHED,
+        /**
+         * The module found its token expired.
+         */
+        EXPIRED,
+        /**
+         * A server rejected the token before it expired.
+         */
+        REVOKED,
+        /**
+         * The account of the module and its token were removed.
+         */
+        DELETED
+    }
+
+    private final Type type;
+    private final AuthzModule module;
+    private final String accessToken;
+    private final long time;
+
+    /**
+     * @param type what happened
+     * @param module the module whose token changed
+     * @param accessToken the token the event is about; the new token for
+     *            {@link Type#ACQUIRED} and {@link Type#REFRESHED}, the old
+     *            one otherwise
+     */
+    public TokenEvent(Type type, AuthzModule module, String accessToken) {
+        this.type = type;
+        this.module = module;
+        this.accessToken = accessToken;
+        this.time = System.currentTimeMillis();
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public AuthzModule getModule() {
+        return module;
+    }
+
+    /**
+     * @return the new token for {@link Type#ACQUIRED} and
+     *         {@link Type#REFRESHED} events, the old token for the others
+     */
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    /**
+     * @return when the event happened, in milliseconds since the epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenEvent{" + "type=" + type + ", time=" + time + '}';
+    }
+
+}
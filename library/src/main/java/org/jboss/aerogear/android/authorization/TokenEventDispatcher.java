@@ -0,0 +1,110 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers {@link TokenEvent}s to registered {@link TokenListener}s.
+ *
+ * Listeners are kept in a lock free queue, so adding, removing and
+ * publishing never block each other. Every listener is called on the
+ * executor it was registered with.
+ *
+ * A dispatcher created with the public constructor also forwards every
+ * event it publishes to the listeners registered with
+ * {@link AuthorizationManager#addTokenListener(TokenListener, Executor)}.
+ */
+public final class TokenEventDispatcher {
+
+    private final ConcurrentLinkedQueue<Registration> registrations = new ConcurrentLinkedQueue<Registration>();
+    private final TokenEventDispatcher parent;
+
+    /**
+     * Creates a dispatcher which forwards its events to
+     * {@link AuthorizationManager}.
+     */
+    public TokenEventDispatcher() {
+        this(AuthorizationManager.tokenEvents());
+    }
+
+    TokenEventDispatcher(TokenEventDispatcher parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * @param listener receives the events of this dispatcher
+     * @param executor calls listener
+     */
+    public void addListener(TokenListener listener, Executor executor) {
+        if (listener == null || executor == null) {
+            throw new IllegalArgumentException("listener and executor may not be null");
+        }
+        registrations.add(new Registration(listener, executor));
+    }
+
+    /**
+     * @param listener a listener added with
+     *            {@link #addListener(TokenListener, Executor)}
+     * @return true if listener was registered
+     */
+    public boolean removeListener(TokenListener listener) {
+        boolean removed = false;
+        Iterator<Registration> iterator = registrations.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().listener == listener) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Hands event to every listener's executor.
+     *
+     * @param event the event to deliver
+     */
+    public void publish(final TokenEvent event) {
+        for (final Registration registration : registrations) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onTokenEvent(event);
+                }
+            });
+        }
+        if (parent != null) {
+            parent.publish(event);
+        }
+    }
+
+    private static final class Registration {
+
+        private final TokenListener listener;
+        private final Executor executor;
+
+        private Registration(TokenListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+    }
+
+}
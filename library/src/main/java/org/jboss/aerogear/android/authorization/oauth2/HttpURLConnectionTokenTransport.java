@@ -0,0 +1,146 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.jboss.aerogear.android.pipe.http.HttpException;
+
+/**
+ * The default {@link OAuth2TokenTransport}.
+ *
+ * Unlike HttpRestProvider this transport does not disconnect after a
+ * successful exchange. It reads every response to the end and closes only
+ * the stream, which hands the socket back to the keep-alive pool of the
+ * platform HttpURLConnection. The next exchange with the same host then
+ * skips the TCP and TLS handshakes. A connection which failed with an
+ * IOException is disconnected, so its socket is not reused.
+ */
+public class HttpURLConnectionTokenTransport implements OAuth2TokenTransport {
+
+    public static final int DEFAULT_TIMEOUT = 60000;
+
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    public HttpURLConnectionTokenTransport() {
+        this(DEFAULT_TIMEOUT, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param connectTimeout the connect timeout in milliseconds
+     * @param readTimeout the read timeout in milliseconds
+     */
+    public HttpURLConnectionTokenTransport(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public HeaderAndBody post(URL endpoint, byte[] formBody) throws HttpException {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) endpoint.openConnection();
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setUseCaches(false);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            connection.setRequestProperty("Accept", "application/json");
+            connection.setRequestProperty("Connection", "keep-alive");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(formBody.length);
+
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(formBody);
+            } finally {
+                out.close();
+            }
+
+            int statusCode = connection.getResponseCode();
+            boolean success = statusCode / 100 == 2;
+            byte[] body = readFully(success ? connection.getInputStream() : connection.getErrorStream());
+            Map<String, String> headers = headers(connection);
+
+            if (!success) {
+                throw new HttpException(body, statusCode, headers);
+            }
+
+            return new HeaderAndBody(body, new HashMap<String, Object>(headers));
+        } catch (IOException ex) {
+            if (connection != null) {
+                // The socket may be broken; keep it out of the keep-alive pool
+                connection.disconnect();
+            }
+            throw new RuntimeException("Error on POST of " + endpoint, ex);
+        }
+    }
+
+    /**
+     * @param endpoint a url
+     * @return the scheme, host and port of endpoint
+     */
+    static String hostKey(URL endpoint) {
+        int port = endpoint.getPort() == -1 ? endpoint.getDefaultPort() : endpoint.getPort();
+        return endpoint.getProtocol() + "://" + endpoint.getHost() + ":" + port;
+    }
+
+    private static Map<String, String> headers(HttpURLConnection connection) {
+        Map<String, String> headers = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            if (header.getKey() == null) {
+                continue;
+            }
+            StringBuilder value = new StringBuilder();
+            String comma = "";
+            for (String part : header.getValue()) {
+                value.append(comma).append(part);
+                comma = ",";
+            }
+            headers.put(header.getKey(), value.toString());
+        }
+        return headers;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+}
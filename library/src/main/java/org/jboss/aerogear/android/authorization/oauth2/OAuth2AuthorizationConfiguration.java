@@ -16,6 +16,7 @@
  */
 package org.jboss.aerogear.android.authorization.oauth2;
 
+import android.content.Context;
 import android.util.Pair;
 import java.net.URL;
 import java.util.ArrayList;
@@ -23,6 +24,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.Collections;
+import java.util.concurrent.Executor;
 
 import org.jboss.aerogear.android.core.Config;
 import org.jboss.aerogear.android.authorization.AuthzModule;
@@ -42,6 +44,14 @@ public class OAuth2AuthorizationConfiguration extends AuthorizationConfiguration
     private String clientSecret = "";
     private String accountId = "";
     private boolean withIntent = false;
+    private long refreshAheadMargin = 0;
+    private long refreshAheadJitter = 0;
+    private OAuth2TokenTransport tokenTransport;
+    private Context inProcessContext;
+    private Executor exchangeExecutor;
+    private OAuth2RetryPolicy retryPolicy;
+    private boolean offlineMode = false;
+    private long offlineGracePeriod = 0;
     private final Set<Pair<String, String>> additionalAuthorizationParams = new HashSet<Pair<String, String>>();
     private final Set<Pair<String, String>> additionalAccessParams = new HashSet<Pair<String, String>>();
 
@@ -286,6 +296,14 @@ public class OAuth2AuthorizationConfiguration extends AuthorizationConfiguration
         params.setScopes(scopes);
         params.getAdditionalAccessParams().addAll(additionalAccessParams);
         params.getAdditionalAuthorizationParams().addAll(additionalAuthorizationParams);
+        params.setRefreshAheadMargin(refreshAheadMargin);
+        params.setRefreshAheadJitter(refreshAheadJitter);
+        params.setTokenTransport(tokenTransport);
+        params.setInProcessContext(inProcessContext);
+        params.setExchangeExecutor(exchangeExecutor);
+        params.setRetryPolicy(retryPolicy);
+        params.setOfflineMode(offlineMode);
+        params.setOfflineGracePeriod(offlineGracePeriod);
 
         if (withIntent) {
             return new OAuth2IntentAuthzModule(params);
@@ -365,4 +383,260 @@ public class OAuth2AuthorizationConfiguration extends AuthorizationConfiguration
         return this;
     }
 
+    /**
+     * The refresh ahead margin is how many milliseconds before a token expires
+     * the token engine will refresh it in the background, so requests
+     * do not wait on a refresh once the token runs out.
+     *
+     * Defaults to 0, which disables refreshing ahead.
+     *
+     * @return the current refreshAheadMargin
+     */
+    public long getRefreshAheadMargin() {
+        return refreshAheadMargin;
+    }
+
+    /**
+     * The refresh ahead margin is how many milliseconds before a token expires
+     * the token engine will refresh it in the background, so requests
+     * do not wait on a refresh once the token runs out.
+     *
+     * Defaults to 0, which disables refreshing ahead.
+     *
+     * @param refreshAheadMargin a new margin in milliseconds
+     * @return the current configuration
+     */
+    public OAuth2AuthorizationConfiguration setRefreshAheadMargin(long refreshAheadMargin) {
+        if (refreshAheadMargin < 0) {
+            throw new IllegalArgumentException("refreshAheadMargin may not be negative");
+        }
+        this.refreshAheadMargin = refreshAheadMargin;
+        return this;
+    }
+
+    /**
+     * The refresh ahead jitter is the largest random number of milliseconds
+     * a background refresh is moved forward by. It keeps many devices which
+     * were issued tokens at the same time from refreshing at the same time.
+     *
+     * Defaults to 0.
+     *
+     * @return the current refreshAheadJitter
+     */
+    public long getRefreshAheadJitter() {
+        return refreshAheadJitter;
+    }
+
+    /**
+     * The refresh ahead jitter is the largest random number of milliseconds
+     * a background refresh is moved forward by. It keeps many devices which
+     * were issued tokens at the same time from refreshing at the same time.
+     *
+     * Defaults to 0.
+     *
+     * @param refreshAheadJitter a new jitter in milliseconds
+     * @return the current configuration
+     */
+    public OAuth2AuthorizationConfiguration setRefreshAheadJitter(long refreshAheadJitter) {
+        if (refreshAheadJitter < 0) {
+            throw new IllegalArgumentException("refreshAheadJitter may not be negative");
+        }
+        this.refreshAheadJitter = refreshAheadJitter;
+        return this;
+    }
+
+    /**
+     * The token transport sends token requests to the access token and
+     * refresh endpoints. Set it to use an HTTP client of your own, for
+     * instance one which speaks HTTP/2.
+     *
+     * Defaults to null, which uses the default transport of the
+     * token engine.
+     *
+     * @return the current tokenTransport
+     */
+    public OAuth2TokenTransport getTokenTransport() {
+        return tokenTransport;
+    }
+
+    /**
+     * The token transport sends token requests to the access token and
+     * refresh endpoints. Set it to use an HTTP client of your own, for
+     * instance one which speaks HTTP/2.
+     *
+     * Defaults to null, which uses the default transport of the
+     * token engine.
+     *
+     * @param tokenTransport a new transport
+     * @return the current configuration
+     */
+    public OAuth2AuthorizationConfiguration setTokenTransport(OAuth2TokenTransport tokenTransport) {
+        this.tokenTransport = tokenTransport;
+        return this;
+    }
+
+    /**
+     * Setting an in process context makes the module run the token engine
+     * directly in this process instead of binding the OAuth2AuthzService.
+     * Fetching, refreshing and exchanging tokens work the same and use the
+     * same session store, but need no bind and no Activity, so
+     * refreshAccess can be called from any thread, for instance a
+     * background worker. requestAccess still needs an Activity to show the
+     * authorization page.
+     *
+     * Only the application context of the given context is kept.
+     *
+     * Defaults to null, which binds the service.
+     *
+     * @return the current inProcessContext
+     */
+    public Context getInProcessContext() {
+        return inProcessContext;
+    }
+
+    /**
+     * Setting an in process context makes the module run the token engine
+     * directly in this process instead of binding the OAuth2AuthzService.
+     * Fetching, refreshing and exchanging tokens work the same and use the
+     * same session store, but need no bind and no Activity, so
+     * refreshAccess can be called from any thread, for instance a
+     * background worker. requestAccess still needs an Activity to show the
+     * authorization page.
+     *
+     * Only the application context of the given context is kept.
+     *
+     * Defaults to null, which binds the service.
+     *
+     * @param context any context of the application, or null to bind the
+     *            service
+     * @return the current configuration
+     */
+    public OAuth2AuthorizationConfiguration setInProcessContext(Context context) {
+        this.inProcessContext = context == null ? null : context.getApplicationContext();
+        return this;
+    }
+
+    /**
+     * The exchange executor runs the token exchanges which the module starts
+     * asynchronously, for instance when requestAccess finds an expired token.
+     *
+     * Defaults to null, which uses a pool of four threads shared by every
+     * module.
+     *
+     * @return the current exchangeExecutor
+     */
+    public Executor getExchangeExecutor() {
+        return exchangeExecutor;
+    }
+
+    /**
+     * The exchange executor runs the token exchanges which the module starts
+     * asynchronously, for instance when requestAccess finds an expired token.
+     * Give the module an executor of its own to keep its token latency
+     * independent of other work in the app.
+     *
+     * Defaults to null, which uses a pool of four threads shared by every
+     * module.
+     *
+     * @param exchangeExecutor a new executor
+     * @return the current configuration
+     */
+    public OAuth2AuthorizationConfiguration setExchangeExecutor(Executor exchangeExecutor) {
+        this.exchangeExecutor = exchangeExecutor;
+        return this;
+    }
+
+    /**
+     * The retry policy says how token requests which fail with a server or
+     * I/O error are retried, with exponential backoff, jitter and
+     * Retry-After, and when the circuit breaker of a failing token endpoint
+     * opens.
+     *
+     * Defaults to null, which sends every token request once.
+     *
+     * @return the current retryPolicy
+     */
+    public OAuth2RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * The retry policy says how token requests which fail with a server or
+     * I/O error are retried, with exponential backoff, jitter and
+     * Retry-After, and when the circuit breaker of a failing token endpoint
+     * opens. Set one to keep an outage of the authorization server from
+     * turning into a storm of token requests.
+     *
+     * Defaults to null, which sends every token request once.
+     *
+     * @param retryPolicy a new policy
+     * @return the current configuration
+     */
+    public OAuth2AuthorizationConfiguration setRetryPolicy(OAuth2RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * In offline mode token requests fail at once while the device has no
+     * network connection, instead of blocking until the connect timeout.
+     * Refreshes put off this way run when the connection returns.
+     *
+     * Defaults to false.
+     *
+     * @return the current offlineMode
+     */
+    public boolean isOfflineMode() {
+        return offlineMode;
+    }
+
+    /**
+     * In offline mode token requests fail at once while the device has no
+     * network connection, instead of blocking until the connect timeout.
+     * Refreshes put off this way run when the connection returns. Offline
+     * first apps should enable it.
+     *
+     * Defaults to false.
+     *
+     * @param offlineMode true to enable offline mode
+     * @return the current configuration
+     */
+    public OAuth2AuthorizationConfiguration setOfflineMode(boolean offlineMode) {
+        this.offlineMode = offlineMode;
+        return this;
+    }
+
+    /**
+     * The offline grace period is how many milliseconds after it expired the
+     * last access token is still handed out in offline mode while the device
+     * has no connection, for instance to read a local cache or queue
+     * requests.
+     *
+     * Defaults to 0, which hands out no expired token.
+     *
+     * @return the current offlineGracePeriod
+     */
+    public long getOfflineGracePeriod() {
+        return offlineGracePeriod;
+    }
+
+    /**
+     * The offline grace period is how many milliseconds after it expired the
+     * last access token is still handed out in offline mode while the device
+     * has no connection, for instance to read a local cache or queue
+     * requests.
+     *
+     * Defaults to 0, which hands out no expired token.
+     *
+     * @param offlineGracePeriod a new grace period in milliseconds
+     * @return the current configuration
+     */
+    public OAuth2AuthorizationConfiguration setOfflineGracePeriod(long offlineGracePeriod) {
+        if (offlineGracePeriod < 0) {
+            throw new IllegalArgumentException("offlineGracePeriod may not be negative");
+        }
+        this.offlineGracePeriod = offlineGracePeriod;
+        return this;
+    }
+
 }
@@ -17,15 +17,23 @@
 package org.jboss.aerogear.android.authorization.oauth2;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.IntentFilter;
 import android.util.Log;
 import java.net.HttpURLConnection;
 
+import java.lang.ref.WeakReference;
 import java.net.URI;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jboss.aerogear.android.core.Callback;
 import org.jboss.aerogear.android.pipe.module.AuthorizationFields;
 import org.jboss.aerogear.android.authorization.AuthzModule;
+import org.jboss.aerogear.android.authorization.TokenEvent;
+import org.jboss.aerogear.android.authorization.TokenEventDispatcher;
+import org.jboss.aerogear.android.authorization.TokenListener;
 import org.jboss.aerogear.android.pipe.module.ModuleFields;
 import org.jboss.aerogear.android.pipe.http.HttpException;
 
@@ -39,12 +47,31 @@ import org.jboss.aerogear.android.pipe.http.HttpException;
 public abstract class OAuth2AuthzModule implements AuthzModule {
 
     private static final IntentFilter AUTHZ_FILTER;
+    private static final long NO_GENERATION = 0;
 
     protected final String accountId;
     protected final String clientId;
     protected final OAuth2Properties config;
-    protected OAuth2AuthzSession account;
-    protected OAuth2AuthzService service;
+    protected volatile OAuth2AuthzSession account;
+    protected OAuth2TokenEngine engine;
+    private boolean holdsServiceReference = false;
+    private OAuth2TokenEngine listenedEngine;
+    private final AtomicReference<OAuth2TokenSnapshot> token = new AtomicReference<OAuth2TokenSnapshot>();
+    private final AtomicLong generations = new AtomicLong();
+    private final Object rejectionLock = new Object();
+    private final AtomicLong expiredGeneration = new AtomicLong(NO_GENERATION);
+    private final TokenEventDispatcher tokenEvents = new TokenEventDispatcher();
+
+    // The generation of the token last handed to a request on each thread.
+    // handleError only gets the exception, not the fields the request was
+    // sent with, so it relies on the pipe reporting the error on the thread
+    // which loaded them. See handleError for what happens otherwise.
+    private final ThreadLocal<long[]> issuedGeneration = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[] { NO_GENERATION };
+        }
+    };
 
     static {
         AUTHZ_FILTER = new IntentFilter();
@@ -56,38 +83,68 @@ public abstract class OAuth2AuthzModule implements AuthzModule {
         this.clientId = config.getClientId();
         this.accountId = config.getAccountId();
         this.config = config;
+
+        Context inProcessContext = config.getInProcessContext();
+        if (inProcessContext != null) {
+            this.engine = OAuth2InProcessEngine.get(inProcessContext);
+            listenTo(engine);
+        }
     }
 
     @Override
     public final boolean isAuthorized() {
+        OAuth2TokenSnapshot snapshot = token.get();
 
-        if (account == null) {
+        if (snapshot == null) {
             return false;
         }
 
-        return account.tokenIsNotExpired() && !isNullOrEmpty(account.getAccessToken());
+        if (snapshot.isValid()) {
+            return true;
+        }
+
+        announceExpired(snapshot);
+        return false;
+    }
+
+    private void announceExpired(OAuth2TokenSnapshot snapshot) {
+        // Announce each expired token once
+        long generation = snapshot.getGeneration();
+        if (snapshot.hasAccessToken() && expiredGeneration.getAndSet(generation) != generation) {
+            tokenEvents.publish(new TokenEvent(TokenEvent.Type.EXPIRED, this, snapshot.getAccessToken()));
+        }
     }
 
     @Override
     public final boolean hasCredentials() {
+        OAuth2TokenSnapshot snapshot = token.get();
 
-        if (account == null) {
+        if (snapshot == null) {
             return false;
         }
 
-        return !isNullOrEmpty(account.getAccessToken());
+        return snapshot.hasAccessToken();
     }
 
     @Override
     public abstract void requestAccess(final Activity activity, final Callback<String> callback);
 
+    /**
+     * {@inheritDoc}
+     * 
+     * The returned fields are shared by every caller until the token changes
+     * and must not be modified.
+     */
     @Override
     public final AuthorizationFields getAuthorizationFields(URI requestUri, String method, byte[] requestBody) {
-        AuthorizationFields fields = new AuthorizationFields();
+        OAuth2TokenSnapshot snapshot = token.get();
+        issue(snapshot);
 
-        fields.addHeader("Authorization", "Bearer " + account.getAccessToken());
+        if (snapshot == null) {
+            return OAuth2TokenSnapshot.NO_AUTHORIZATION_FIELDS;
+        }
 
-        return fields;
+        return snapshot.getAuthorizationFields();
     }
 
 
@@ -103,9 +160,7 @@ public abstract class OAuth2AuthzModule implements AuthzModule {
             }
 
             try {
-                service.fetchAccessToken(accountId, config);
-                account = service.getAccount(accountId);
-                Log.d(TAG, "Access token refresh complete!");
+                fetchAccessToken();
                 return true;
             } catch (OAuth2AuthorizationException ex) {
                 Log.e(TAG, ex.getMessage(), ex);
@@ -115,22 +170,163 @@ public abstract class OAuth2AuthzModule implements AuthzModule {
 
     }
 
+    /**
+     * Asynchronous form of {@link #requestAccess(Activity, Callback)}.
+     * 
+     * @param activity the activity to request access from
+     * @param executor completes the returned future
+     * @return a future of the access token
+     */
+    public final OAuth2Future<String> requestAccessAsync(Activity activity, final Executor executor) {
+        final OAuth2Future<String> future = new OAuth2Future<String>();
+        requestAccess(activity, new Callback<String>() {
+            @Override
+            public void onSuccess(final String accessToken) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        future.complete(accessToken);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        future.fail(e);
+                    }
+                });
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Asynchronous form of {@link #refreshAccess()}. The token exchange runs
+     * on the exchange executor of the configuration instead of the calling
+     * thread.
+     * 
+     * @param executor completes the returned future
+     * @return a future of the result of {@link #refreshAccess()}. It is
+     *         already complete if no exchange is needed.
+     */
+    public final OAuth2Future<Boolean> refreshAccessAsync(Executor executor) {
+        if (!hasAccount()) {
+            return OAuth2Future.completed(Boolean.FALSE);
+        }
+        if (isAuthorized()) {
+            return OAuth2Future.completed(Boolean.TRUE);
+        }
+
+        final OAuth2Future<Boolean> future = new OAuth2Future<Boolean>();
+        exchangeAsync(executor, future, new OAuth2Future.Step<Void, Boolean>() {
+            @Override
+            public Boolean apply(Void ignored) {
+                try {
+                    fetchAccessToken();
+                    return Boolean.TRUE;
+                } catch (OAuth2AuthorizationException ex) {
+                    Log.e(TAG, ex.getMessage(), ex);
+                    return Boolean.FALSE;
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Returns a valid access token for the account of the module, refreshing
+     * it if it expired. The token exchange runs on the exchange executor of
+     * the configuration instead of the calling thread.
+     * 
+     * @param executor completes the returned future
+     * @return a future of the access token. It is already complete if the
+     *         current token is valid, and fails with an
+     *         {@link IllegalStateException} if the module has no account and
+     *         with an {@link OAuth2AuthorizationException} if the exchange
+     *         fails.
+     */
+    public final OAuth2Future<String> fetchAccessTokenAsync(Executor executor) {
+        OAuth2TokenSnapshot snapshot = token.get();
+        if (snapshot != null && snapshot.isValid()) {
+            return OAuth2Future.completed(snapshot.getAccessToken());
+        }
+        if (!hasAccount()) {
+            return OAuth2Future.failed(new IllegalStateException("No account " + accountId + "; request access first"));
+        }
+
+        final OAuth2Future<String> future = new OAuth2Future<String>();
+        exchangeAsync(executor, future, new OAuth2Future.Step<Void, String>() {
+            @Override
+            public String apply(Void ignored) throws OAuth2AuthorizationException {
+                return fetchAccessToken();
+            }
+        });
+        return future;
+    }
+
+    private String fetchAccessToken() throws OAuth2AuthorizationException {
+        String accessToken = engine.fetchAccessToken(accountId, config);
+        setAccount(engine.getAccount(accountId));
+        Log.d(TAG, "Access token refresh complete!");
+        return accessToken;
+    }
+
+    private <T> void exchangeAsync(final Executor executor, final OAuth2Future<T> future, final OAuth2Future.Step<Void, T> exchange) {
+        OAuth2ExchangeExecutors.orDefault(config.getExchangeExecutor()).execute(new Runnable() {
+            @Override
+            public void run() {
+                T result = null;
+                Exception failure = null;
+                try {
+                    result = exchange.apply(null);
+                } catch (Exception ex) {
+                    failure = ex;
+                }
+
+                final T finalResult = result;
+                final Exception finalFailure = failure;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (finalFailure == null) {
+                            future.complete(finalResult);
+                        } else {
+                            future.fail(finalFailure);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * 
      * @return true if accountId has a value AND that value is stored in the
-     *         OAuth2AuthzService
+     *         token engine
      */
     protected boolean hasAccount() {
-        return (!isNullOrEmpty(accountId) && service.hasAccount(accountId));
+        return (!isNullOrEmpty(accountId) && engine.hasAccount(accountId));
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * The returned fields are shared by every caller until the token changes
+     * and must not be modified.
+     */
     @Override
     public final ModuleFields loadModule(URI relativeURI, String httpMethod, byte[] requestBody) {
-        AuthorizationFields authzFields = getAuthorizationFields(relativeURI, httpMethod, requestBody);
-        ModuleFields moduleFields = new ModuleFields();
-        moduleFields.setHeaders(authzFields.getHeaders());
-        moduleFields.setQueryParameters(authzFields.getQueryParameters());
-        return moduleFields;
+        OAuth2TokenSnapshot snapshot = token.get();
+        issue(snapshot);
+
+        if (snapshot == null) {
+            return OAuth2TokenSnapshot.NO_MODULE_FIELDS;
+        }
+
+        return snapshot.getModuleFields();
     }
 
     @Override
@@ -138,23 +334,93 @@ public abstract class OAuth2AuthzModule implements AuthzModule {
      * Will refresh the access token if the exception status is UNAUTHORIZED or
      * FORBIDDED.
      *
-     * @return true if the token was refreshed. False if the token could not be
-     * refreshed or if the status wasn't of UNAUTHORIZED or FORBIDDEN.
+     * Every token the module issues has a generation. If the rejected request
+     * carried an older generation than the current token it is simply
+     * retried with the current token. Only a rejection of the current
+     * generation refreshes, and concurrent rejections of it share a single
+     * refresh, so a burst of failed requests costs one token exchange.
+     *
+     * The generation of the rejected request is the one last loaded on the
+     * calling thread, so the error must be reported on the thread which
+     * called {@link #loadModule(URI, String, byte[])} or
+     * {@link #getAuthorizationFields(URI, String, byte[])} for the request,
+     * as the pipes of this library do. A thread which never loaded fields
+     * is treated as having sent the current token, which costs an extra
+     * refresh at worst. A thread which loaded fields for another request
+     * since reports the generation of those instead.
+     *
+     * @return true if the request should be retried with the current token.
+     * False if the token could not be refreshed or if the status wasn't of
+     * UNAUTHORIZED or FORBIDDEN.
      */
     public final boolean handleError(HttpException exception) {
         int statusCode = exception.getStatusCode();
 
         if (statusCode == HttpURLConnection.HTTP_UNAUTHORIZED
                 || statusCode == HttpURLConnection.HTTP_FORBIDDEN) {
-            return refreshAccess() && isAuthorized();
+            boolean retry = handleRejection(issuedGeneration.get()[0]);
+            if (!retry) {
+                OAuth2TokenEngine.getMetrics().increment(OAuth2Metrics.Counter.ERROR_FAILED);
+            }
+            return retry;
         } else {
+            OAuth2TokenEngine.getMetrics().increment(OAuth2Metrics.Counter.ERROR_IGNORED);
             return false;
         }
     }
 
+    private static boolean countRetry(boolean retry, OAuth2Metrics.Counter counter) {
+        if (retry) {
+            OAuth2TokenEngine.getMetrics().increment(counter);
+        }
+        return retry;
+    }
+
+    private boolean handleRejection(long issued) {
+        OAuth2TokenSnapshot current = token.get();
+        if (current == null) {
+            return countRetry(refreshAccess() && isAuthorized(), OAuth2Metrics.Counter.ERROR_REFRESHED);
+        }
+
+        // Without a record of the issued token, assume it was the current one
+        long rejected = issued == NO_GENERATION ? current.getGeneration() : issued;
+        if (current.getGeneration() != rejected) {
+            return countRetry(current.isValid(), OAuth2Metrics.Counter.ERROR_REPLAYED);
+        }
+
+        synchronized (rejectionLock) {
+            current = token.get();
+            if (current == null) {
+                return countRetry(refreshAccess() && isAuthorized(), OAuth2Metrics.Counter.ERROR_REFRESHED);
+            }
+            if (current.getGeneration() != rejected) {
+                // Refreshed while this caller waited
+                return countRetry(current.isValid(), OAuth2Metrics.Counter.ERROR_REPLAYED);
+            }
+            if (!current.hasAccessToken() || !hasAccount()) {
+                return countRetry(refreshAccess() && isAuthorized(), OAuth2Metrics.Counter.ERROR_REFRESHED);
+            }
+
+            if (current.isValid()) {
+                tokenEvents.publish(new TokenEvent(TokenEvent.Type.REVOKED, this, current.getAccessToken()));
+            } else {
+                announceExpired(current);
+            }
+            try {
+                engine.refreshRejectedAccessToken(accountId, current.getAccessToken(), config);
+                setAccount(engine.getAccount(accountId));
+                Log.d(TAG, "Rejected access token replaced");
+                return countRetry(isAuthorized(), OAuth2Metrics.Counter.ERROR_REFRESHED);
+            } catch (OAuth2AuthorizationException ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                return false;
+            }
+        }
+    }
+
     @Override
     public final void deleteAccount() {
-        service.removeAccount(accountId);
+        engine.removeAccount(accountId);
         removeAccount();
     }
 
@@ -163,12 +429,212 @@ public abstract class OAuth2AuthzModule implements AuthzModule {
     }
     
     /**
-     * Sets the account used in the module.
+     * Returns the token the module currently authorizes requests with. The
+     * snapshot is immutable and safe to read from any thread.
+     * 
+     * @return the current token or null if there is no account
+     */
+    public final OAuth2TokenSnapshot getTokenSnapshot() {
+        return token.get();
+    }
+
+    /**
+     * Registers a listener for the token events of this module. The events
+     * are also delivered to the listeners registered with
+     * {@link org.jboss.aerogear.android.authorization.AuthorizationManager#addTokenListener(TokenListener, Executor)}.
+     * 
+     * An expired token is reported when the module next checks whether it
+     * is authorized or when a server rejects it. Tokens the engine refreshes
+     * in the background, or for another module with the same account, are
+     * reported as soon as they are stored.
+     * 
+     * @param listener receives the events
+     * @param executor calls listener
+     */
+    public final void addTokenListener(TokenListener listener, Executor executor) {
+        tokenEvents.addListener(listener, executor);
+    }
+
+    /**
+     * @param listener a listener added with
+     *            {@link #addTokenListener(TokenListener, Executor)}
+     * @return true if listener was registered
+     */
+    public final boolean removeTokenListener(TokenListener listener) {
+        return tokenEvents.removeListener(listener);
+    }
+
+    /**
+     * Sets the account used in the module, publishes its token to readers
+     * and announces the change to token listeners.
+     * 
+     * The session forwarded by the engine and the one a fetching thread
+     * read may arrive at the same time. The snapshot is swapped with
+     * compareAndSet, and when another update won the race with a token
+     * which expires later, this account is stale and is dropped.
      * 
      * @param account a new account to use
      */
     protected void setAccount(OAuth2AuthzSession account) {
-        this.account = account;
+        if (account == null) {
+            OAuth2TokenSnapshot removed = this.token.getAndSet(null);
+            publishAccount();
+            if (removed != null && removed.hasAccessToken()) {
+                tokenEvents.publish(new TokenEvent(TokenEvent.Type.DELETED, this, removed.getAccessToken()));
+            }
+            return;
+        }
+
+        OAuth2TokenSnapshot previous = token.get();
+        OAuth2TokenSnapshot next;
+        while (true) {
+            // The same access token keeps its generation, so requests which
+            // carried it are not mistaken for requests with an older token.
+            long generation;
+            if (previous != null && previous.getAccessToken() != null && previous.getAccessToken().equals(account.getAccessToken())) {
+                generation = previous.getGeneration();
+            } else {
+                generation = generations.incrementAndGet();
+            }
+            next = new OAuth2TokenSnapshot(account, generation);
+            if (token.compareAndSet(previous, next)) {
+                break;
+            }
+
+            OAuth2TokenSnapshot winner = token.get();
+            if (winner != null && winner.hasAccessToken() && !winner.getAccessToken().equals(account.getAccessToken())
+                    && winner.getExpiresOn() > account.getExpires_on()) {
+                return;
+            }
+            previous = winner;
+        }
+        publishAccount();
+
+        if (!next.hasAccessToken() || (previous != null && previous.getGeneration() == next.getGeneration())) {
+            return;
+        }
+        TokenEvent.Type type = previous != null && previous.hasAccessToken() ? TokenEvent.Type.REFRESHED : TokenEvent.Type.ACQUIRED;
+        tokenEvents.publish(new TokenEvent(type, this, next.getAccessToken()));
+    }
+
+    private void publishAccount() {
+        // Concurrent updates may store their account in any order, so
+        // store again until the account matches the latest snapshot
+        OAuth2TokenSnapshot published;
+        do {
+            published = token.get();
+            this.account = published == null ? null : published.session;
+        } while (token.get() != published);
+    }
+
+    private void issue(OAuth2TokenSnapshot snapshot) {
+        issuedGeneration.get()[0] = snapshot == null ? NO_GENERATION : snapshot.getGeneration();
+    }
+
+    /**
+     * Passes the {@link OAuth2TokenEngine} to callback and keeps it in
+     * {@link #engine}.
+     * 
+     * If the module runs the token engine in process the callback runs at
+     * once with it. Otherwise the module takes one reference on the process wide
+     * {@link OAuth2AuthzServiceConnectionManager} the first time this is
+     * called and keeps it, so the service stays bound between requests, and
+     * passes on the engine the service runs. Once it is bound the callback
+     * runs at once on the calling thread.
+     * 
+     * @param context a context to bind the service with
+     * @param callback receives the engine
+     */
+    protected final void withEngine(Context context, final Callback<OAuth2TokenEngine> callback) {
+        if (config.getInProcessContext() != null) {
+            callback.onSuccess(engine);
+            return;
+        }
+
+        OAuth2AuthzServiceConnectionManager connections = OAuth2AuthzServiceConnectionManager.getInstance();
+        synchronized (this) {
+            if (!holdsServiceReference) {
+                try {
+                    connections.acquire(context);
+                } catch (IllegalStateException ex) {
+                    callback.onFailure(ex);
+                    return;
+                }
+                holdsServiceReference = true;
+            }
+        }
+
+        connections.getService(new Callback<OAuth2AuthzService>() {
+            @Override
+            public void onSuccess(OAuth2AuthzService connected) {
+                engine = connected.getEngine();
+                listenTo(engine);
+                callback.onSuccess(engine);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                synchronized (OAuth2AuthzModule.this) {
+                    holdsServiceReference = false;
+                }
+                OAuth2AuthzServiceConnectionManager.getInstance().release();
+                callback.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * Follows the sessions engine stores for the account of the module, so
+     * tokens refreshed in the background or by other modules are published
+     * to readers and token listeners as soon as they are stored.
+     */
+    private synchronized void listenTo(OAuth2TokenEngine engine) {
+        if (engine == null || engine == listenedEngine) {
+            return;
+        }
+        engine.addSessionListener(new SessionForwarder(this, engine));
+        listenedEngine = engine;
+    }
+
+    /**
+     * Passes the session changes of an engine to a module. The engine
+     * outlives modules, so the module is held weakly and the forwarder
+     * unregisters itself once the module is gone.
+     */
+    private static final class SessionForwarder implements OAuth2SessionListener {
+
+        private final WeakReference<OAuth2AuthzModule> module;
+        private final OAuth2TokenEngine engine;
+
+        SessionForwarder(OAuth2AuthzModule module, OAuth2TokenEngine engine) {
+            this.module = new WeakReference<OAuth2AuthzModule>(module);
+            this.engine = engine;
+        }
+
+        @Override
+        public void onSessionSaved(OAuth2AuthzSession session) {
+            OAuth2AuthzModule target = target();
+            if (target != null && session.getAccountId() != null && session.getAccountId().equals(target.accountId)) {
+                target.setAccount(session);
+            }
+        }
+
+        @Override
+        public void onSessionRemoved(String accountId) {
+            OAuth2AuthzModule target = target();
+            if (target != null && accountId != null && accountId.equals(target.accountId)) {
+                target.setAccount(null);
+            }
+        }
+
+        private OAuth2AuthzModule target() {
+            OAuth2AuthzModule target = module.get();
+            if (target == null) {
+                engine.removeSessionListener(this);
+            }
+            return target;
+        }
+
     }
 
     /**
@@ -176,7 +642,7 @@ public abstract class OAuth2AuthzModule implements AuthzModule {
      *
      */
     protected void removeAccount() {
-        this.account = null;
+        setAccount(null);
     }
 
 }
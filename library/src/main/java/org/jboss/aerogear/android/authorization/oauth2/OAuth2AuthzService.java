@@ -22,42 +22,22 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Binder;
 import android.os.IBinder;
-import android.util.Log;
-import android.util.Pair;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonParser;
-import org.jboss.aerogear.android.store.DataManager;
-import org.jboss.aerogear.android.store.generator.IdGenerator;
-import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
-import org.jboss.aerogear.android.pipe.http.HttpException;
-import org.jboss.aerogear.android.pipe.http.HttpProvider;
-import org.jboss.aerogear.android.store.sql.SQLStore;
-import org.jboss.aerogear.android.store.sql.SQLStoreConfiguration;
-import org.jboss.aerogear.android.pipe.http.HttpRestProvider;
-
-import java.io.Serializable;
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
-import java.util.*;
-
-import static org.jboss.aerogear.android.pipe.util.UrlUtils.appendToBaseURL;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
- * This service manages tokens for Authorization sessions. It can also perform
- * basic OAuth2 Access Token/ Authorization exchange and manages refresh tokens.
- * 
+ * This service manages tokens for Authorization sessions. It hands the
+ * {@link OAuth2TokenEngine} of the process, which performs basic OAuth2 Access
+ * Token/ Authorization exchange and manages refresh tokens, to the modules
+ * which bind it. Modules which work in process use the same engine, so it
+ * lives as long as the process and is not shut down with the service.
  */
 public class OAuth2AuthzService extends Service {
 
     private final AuthzBinder binder = new AuthzBinder(this);
-
-    private SQLStore<OAuth2AuthzSession> sessionStore;
-    private static final String TAG = OAuth2AuthzService.class.getSimpleName();
+    private volatile OAuth2TokenEngine engine;
 
     public OAuth2AuthzService() {
     }
@@ -65,6 +45,14 @@ public class OAuth2AuthzService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        engine = OAuth2InProcessEngine.get(getApplicationContext());
+    }
+
+    /**
+     * @return the token engine of this process
+     */
+    public OAuth2TokenEngine getEngine() {
+        return engine;
     }
 
     /**
@@ -75,27 +63,35 @@ public class OAuth2AuthzService extends Service {
      * @return an accesstoken
      * @throws OAuth2AuthorizationException if something went wrong in the
      *             exchange
+     * @see OAuth2TokenEngine#fetchAccessToken(String, OAuth2Properties)
      */
     public String fetchAccessToken(String accountId, OAuth2Properties config) throws OAuth2AuthorizationException {
-        OAuth2AuthzSession storedAccount = sessionStore.read(accountId);
-        if (storedAccount == null) {
-            return null;
-        }
+        return engine.fetchAccessToken(accountId, config);
+    }
 
-        if (!isNullOrEmpty(storedAccount.getAccessToken()) && storedAccount.tokenIsNotExpired()) {
-            return storedAccount.getAccessToken();
-        } else if (!isNullOrEmpty(storedAccount.getRefreshToken())) {
-            refreshAccount(storedAccount, config);
-            sessionStore.save(storedAccount);
-            return storedAccount.getAccessToken();
-        } else if (!isNullOrEmpty(storedAccount.getAuthorizationCode())) {
-            exchangeAuthorizationCodeForAccessToken(storedAccount, config);
-            sessionStore.save(storedAccount);
-            return storedAccount.getAccessToken();
-        } else {
-            return null;
-        }
+    /**
+     * Refreshes the expired tokens of several accounts which share a config.
+     * 
+     * @param accountIds the IDs of the {@link OAuth2AuthzSession}s to refresh
+     * @param config the config
+     * @return the outcome of every account, in the order of accountIds
+     * @see OAuth2TokenEngine#refreshAccounts(Collection, OAuth2Properties)
+     */
+    public Map<String, OAuth2RefreshResult> refreshAccounts(Collection<String> accountIds, OAuth2Properties config) {
+        return engine.refreshAccounts(accountIds, config);
+    }
 
+    /**
+     * Refreshes the expired tokens of several accounts at once.
+     * 
+     * @param accounts the IDs of the {@link OAuth2AuthzSession}s to refresh
+     *            and the config of each
+     * @return the outcome of every account, in the iteration order of
+     *         accounts
+     * @see OAuth2TokenEngine#refreshAccounts(Map)
+     */
+    public Map<String, OAuth2RefreshResult> refreshAccounts(Map<String, OAuth2Properties> accounts) {
+        return engine.refreshAccounts(accounts);
     }
 
     /**
@@ -104,13 +100,7 @@ public class OAuth2AuthzService extends Service {
      * @param account a new session
      */
     public void addAccount(OAuth2AuthzSession account) {
-        String accountId = account.getAccountId();
-
-        if (hasAccount(accountId)) {
-            sessionStore.remove(accountId);
-        }
-
-        sessionStore.save(account);
+        engine.addAccount(account);
     }
 
     /**
@@ -121,44 +111,41 @@ public class OAuth2AuthzService extends Service {
      * @return true if there is a session for the account.
      */
     public boolean hasAccount(String accountId) {
-        OAuth2AuthzSession storedAccount = sessionStore.read(accountId);
-        if (storedAccount == null) {
-            return false;
-        }
-        return !isNullOrEmpty(storedAccount.getAuthorizationCode())
-                || !isNullOrEmpty(storedAccount.getAccessToken());
+        return engine.hasAccount(accountId);
     }
 
     /**
-     * Returns the OAuth2AuthzSession for accountId if any
+     * Returns the OAuth2AuthzSession for accountId if any. The session is a
+     * copy; changing it does not change the stored session.
      * 
      * @param accountId the accountId to look up
-     * @return an OAuth2AuthzSession or null
+     * @return a copy of the OAuth2AuthzSession or null
+     * @see OAuth2TokenEngine#getAccount(String)
      */
     public OAuth2AuthzSession getAccount(String accountId) {
-        return sessionStore.read(accountId);
+        return engine.getAccount(accountId);
     }
 
     /**
-     * Fetches all OAuth2AuthzSessions in the system.
+     * Fetches the IDs of all OAuth2AuthzSessions in the system.
      * 
-     * @return all OAuth2AuthzSession's in the system
+     * @return the IDs of all OAuth2AuthzSession's in the system
      */
     public List<String> getAccounts() {
-        Collection<OAuth2AuthzSession> sessions = sessionStore.readAll();
-        ArrayList<String> accountIds = new ArrayList<String>();
-        
-        for (OAuth2AuthzSession session : sessions) {
-            accountIds.add(session.getAccountId());
-        }
-        
-        return accountIds;
-        
+        return engine.getAccounts();
+    }
+
+    /**
+     * Removes the account with the provided ID
+     * 
+     * @param accountId the account to remove
+     */
+    public void removeAccount(String accountId) {
+        engine.removeAccount(accountId);
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        openSessionStore();
         return binder;
     }
 
@@ -167,199 +154,6 @@ public class OAuth2AuthzService extends Service {
         return super.onUnbind(intent);
     }
 
-    private void openSessionStore() {
-        DataManager.config("sessionStore", SQLStoreConfiguration.class)
-                .withContext(getApplicationContext())
-                .withIdGenerator(new IdGenerator() {
-                    @Override
-                    public Serializable generate() {
-                        return UUID.randomUUID().toString();
-                    }
-                }).store(OAuth2AuthzSession.class);
-
-        sessionStore = (SQLStore<OAuth2AuthzSession>) DataManager.getStore("sessionStore");
-        sessionStore.openSync();
-    }
-
-    private void exchangeAuthorizationCodeForAccessToken(OAuth2AuthzSession storedAccount, OAuth2Properties config) throws OAuth2AuthorizationException {
-        final Map<String, String> data = new HashMap<String, String>();
-
-        data.put("code", storedAccount.getAuthorizationCode());
-        data.put("client_id", storedAccount.getClientId());
-        if (config.getRedirectURL() != null) {
-            data.put("redirect_uri", config.getRedirectURL());
-        }
-        data.put("grant_type", "authorization_code");
-        if (config.getClientSecret() != null) {
-            data.put("client_secret", config.getClientSecret());
-        }
-
-        if (!config.getAdditionalAccessParams().isEmpty()) {
-            for (Pair<String, String> param : config.getAdditionalAccessParams()) {
-                try {
-                    data.put(URLEncoder.encode(param.first, "UTF-8"), param.second);
-                } catch (UnsupportedEncodingException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        }
-
-        runAccountAction(storedAccount, config, data, appendToBaseURL(config.getBaseURL(), config.getAccessTokenEndpoint()));
-
-    }
-
-    private void refreshAccount(OAuth2AuthzSession storedAccount, OAuth2Properties config) throws OAuth2AuthorizationException {
-        final Map<String, String> data = new HashMap<String, String>();
-
-        data.put("refresh_token", storedAccount.getRefreshToken());
-        data.put("grant_type", "refresh_token");
-        data.put("client_id", storedAccount.getClientId());
-        if (config.getClientSecret() != null) {
-            data.put("client_secret", config.getClientSecret());
-        }
-
-        if (!config.getAdditionalAccessParams().isEmpty()) {
-            for (Pair<String, String> param : config.getAdditionalAccessParams()) {
-                try {
-                    data.put(URLEncoder.encode(param.first, "UTF-8"), param.second);
-                } catch (UnsupportedEncodingException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        }
-
-        runAccountAction(storedAccount, config, data, appendToBaseURL(config.getBaseURL(), config.getRefreshEndpoint()));
-    }
-
-    private void runAccountAction(OAuth2AuthzSession storedAccount, OAuth2Properties config, final Map<String, String> data, URL endpoint)
-            throws OAuth2AuthorizationException {
-        try {
-
-            final HttpProvider provider = getHttpProvider(endpoint);
-            final String formTemplate = "%s=%s";
-            provider.setDefaultHeader("Content-Type", "application/x-www-form-urlencoded");
-
-            final StringBuilder bodyBuilder = new StringBuilder();
-
-            String amp = "";
-            for (Map.Entry<String, String> entry : data.entrySet()) {
-                bodyBuilder.append(amp);
-                try {
-                    bodyBuilder.append(String.format(formTemplate, entry.getKey(), URLEncoder.encode(entry.getValue(), "UTF-8")));
-                } catch (UnsupportedEncodingException e) {
-                    throw new RuntimeException(e);
-                }
-                amp = "&";
-            }
-
-            HeaderAndBody headerAndBody;
-
-            try {
-                headerAndBody = provider.post(bodyBuilder.toString().getBytes("UTF-8"));
-
-            } catch (HttpException exception) {
-                if (exception.getStatusCode() == HttpURLConnection.HTTP_BAD_REQUEST) {
-                    JsonElement response = new JsonParser().parse(new String(exception.getData()));
-                    JsonObject jsonResponseObject = response.getAsJsonObject();
-                    String error = "";
-                    if (jsonResponseObject.has("error")) {
-                        JsonElement errorObject = jsonResponseObject.get("error");
-                        if (errorObject.isJsonPrimitive())  {
-                            error = errorObject.getAsString();
-                        } else {
-                            error = errorObject.toString();
-                        }
-                        
-                        
-                    }
-
-                    throw new OAuth2AuthorizationException(error);
-                } else {
-                    throw exception;
-                }
-            }
-            String responseString = new String(headerAndBody.getBody());
-
-            try {
-                JsonElement response = new JsonParser().parse(responseString);
-                JsonObject jsonResponseObject = response.getAsJsonObject();
-
-                String accessToken = jsonResponseObject.get("access_token").getAsString();
-                storedAccount.setAccessToken(accessToken);
-
-                // Will need to check this one day
-                // String tokenType = jsonResponseObject.get("token_type").getAsString();
-                if (jsonResponseObject.has("expires_in")) {
-                    Long expiresIn = jsonResponseObject.get("expires_in").getAsLong();
-                    Long expires_on = new Date().getTime() + expiresIn * 1000;
-                    storedAccount.setExpires_on(expires_on);
-                }
-
-                if (jsonResponseObject.has("refresh_token")) {
-                    String refreshToken = jsonResponseObject.get("refresh_token").getAsString();
-                    if (!isNullOrEmpty(refreshToken)) {
-                        storedAccount.setRefreshToken(refreshToken);
-                    }
-                }
-            } catch (JsonParseException parseEx){
-                try {
-                    //Check if body is http form format
-                    String[] values = responseString.split("&");
-                    for (String pair : values) {
-                        String property[] = pair.split("=");
-                        String key = property[0];
-                        String value = property[1];
-                        if ("access_token".equals(key)) {
-                            storedAccount.setAccessToken(value);
-                        } else if ("expires_in".equals(key)) {
-                            Long expiresIn = Long.parseLong(value);
-                            Long expires_on = new Date().getTime() + expiresIn * 1000;
-                            storedAccount.setExpires_on(expires_on);
-                        } else if ("refresh_token".equals(key)) {
-                            if (!isNullOrEmpty(value)) {
-                                storedAccount.setRefreshToken(value);
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, e.getMessage(), e);
-                    throw new OAuth2AuthorizationException(responseString);
-                }
-            }
-
-            storedAccount.setAuthorizationCode("");
-
-        } catch (UnsupportedEncodingException ex) {
-            // Should never happen...
-            Log.d(OAuth2AuthzService.class.getName(), null, ex);
-            throw new RuntimeException(ex);
-        }
-    }
-
-    /**
-     * This method allows an implementation to change how the HttpProvider is
-     * fetched. Override is mostly used for testing.
-     * 
-     * @param url the url endpoint
-     * @return a httpProvider
-     */
-    protected HttpProvider getHttpProvider(URL url) {
-        return new HttpRestProvider(url);
-    }
-
-    /**
-     * Removes the account with the provided ID
-     * 
-     * @param accountId 
-     */
-    public void removeAccount(String accountId) {
-        sessionStore.remove(accountId);
-    }
-
-    private boolean isNullOrEmpty(String value) {
-        return (value == null || value.isEmpty());
-    }
-
     public static class AuthzBinder extends Binder {
 
         private final OAuth2AuthzService service;
@@ -406,6 +200,4 @@ public class OAuth2AuthzService extends Service {
 
     }
 
-    ;
-
 }
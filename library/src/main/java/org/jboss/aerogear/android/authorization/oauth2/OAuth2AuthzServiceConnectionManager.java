@@ -0,0 +1,218 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.aerogear.android.core.Callback;
+
+/**
+ * Shares one binding to the {@link OAuth2AuthzService} between every module
+ * in the process.
+ *
+ * The binding is reference counted. The first {@link #acquire(Context)}
+ * binds the service with the application context and the last
+ * {@link #release()} unbinds it. While it is bound,
+ * {@link #getService(Callback)} hands the service to the callback
+ * immediately, on the calling thread.
+ *
+ * If the service can not be bound every caller holding a reference loses
+ * it: waiting callbacks fail, later calls to {@link #getService(Callback)}
+ * fail at once and {@link #release()} accepts the lost references.
+ */
+public final class OAuth2AuthzServiceConnectionManager {
+
+    private static final OAuth2AuthzServiceConnectionManager INSTANCE = new OAuth2AuthzServiceConnectionManager();
+
+    private final List<Callback<OAuth2AuthzService>> waiting = new ArrayList<Callback<OAuth2AuthzService>>();
+    private Context context;
+    private OAuth2AuthzService.AGAuthzServiceConnection connection;
+    private OAuth2AuthzService boundService;
+    private int references = 0;
+    private int lostReferences = 0;
+
+    OAuth2AuthzServiceConnectionManager() {
+    }
+
+    /**
+     * @return the connection manager of this process
+     */
+    public static OAuth2AuthzServiceConnectionManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Takes a reference to the service binding, binding the service if this
+     * is the first reference.
+     *
+     * @param context any context; only its application context is kept
+     * @throws IllegalStateException if the service can not be bound. No
+     *             reference is taken in that case, and the references other
+     *             callers took meanwhile are lost.
+     */
+    public void acquire(Context context) {
+        Context appContext = context.getApplicationContext();
+        OAuth2AuthzService.AGAuthzServiceConnection newConnection;
+
+        synchronized (this) {
+            references++;
+            if (connection != null) {
+                return;
+            }
+            this.context = appContext;
+            newConnection = new ManagedConnection();
+            connection = newConnection;
+        }
+
+        if (!appContext.bindService(new Intent(appContext, OAuth2AuthzService.class), newConnection, Context.BIND_AUTO_CREATE)) {
+            List<Callback<OAuth2AuthzService>> failed;
+            synchronized (this) {
+                // Callers which took a reference while this bind was
+                // pending can no longer be served by it
+                references--;
+                if (connection == newConnection) {
+                    connection = null;
+                    this.context = null;
+                    lostReferences += references;
+                    references = 0;
+                }
+                failed = takeWaiting();
+            }
+            IllegalStateException failure = new IllegalStateException("Could not bind to OAuth2AuthzService");
+            for (Callback<OAuth2AuthzService> callback : failed) {
+                callback.onFailure(failure);
+            }
+            throw failure;
+        }
+    }
+
+    /**
+     * Drops a reference to the service binding. The service is unbound when
+     * the last reference is dropped.
+     */
+    public void release() {
+        Context boundContext;
+        OAuth2AuthzService.AGAuthzServiceConnection boundConnection;
+
+        synchronized (this) {
+            if (references == 0) {
+                if (lostReferences == 0) {
+                    throw new IllegalStateException("release() without acquire()");
+                }
+                lostReferences--;
+                return;
+            }
+            references--;
+            if (references > 0 || connection == null) {
+                return;
+            }
+            boundContext = context;
+            boundConnection = connection;
+            context = null;
+            connection = null;
+            boundService = null;
+        }
+
+        try {
+            boundContext.unbindService(boundConnection);
+        } catch (IllegalArgumentException ignore) {
+            // Binding never completed
+        }
+    }
+
+    /**
+     * Passes the bound service to callback. If the service is bound this
+     * happens at once on the calling thread, otherwise on the main thread
+     * once the binding completes. If the binding failed, callback fails at
+     * once on the calling thread.
+     *
+     * The caller must hold a reference from {@link #acquire(Context)}.
+     *
+     * @param callback receives the service
+     */
+    public void getService(Callback<OAuth2AuthzService> callback) {
+        OAuth2AuthzService bound;
+        synchronized (this) {
+            if (references == 0 && lostReferences == 0) {
+                throw new IllegalStateException("getService() without acquire()");
+            }
+            bound = boundService;
+            if (bound == null && connection != null && references > 0) {
+                waiting.add(callback);
+                return;
+            }
+        }
+        if (bound == null) {
+            callback.onFailure(new IllegalStateException("Could not bind to OAuth2AuthzService"));
+        } else {
+            callback.onSuccess(bound);
+        }
+    }
+
+    /**
+     * @return the number of references held
+     */
+    public synchronized int getReferenceCount() {
+        return references;
+    }
+
+    private List<Callback<OAuth2AuthzService>> takeWaiting() {
+        List<Callback<OAuth2AuthzService>> callbacks = new ArrayList<Callback<OAuth2AuthzService>>(waiting);
+        waiting.clear();
+        return callbacks;
+    }
+
+    private class ManagedConnection extends OAuth2AuthzService.AGAuthzServiceConnection {
+
+        @Override
+        public void onServiceConnected(ComponentName className, IBinder iBinder) {
+            super.onServiceConnected(className, iBinder);
+            List<Callback<OAuth2AuthzService>> callbacks;
+            OAuth2AuthzService connected = getService();
+            synchronized (OAuth2AuthzServiceConnectionManager.this) {
+                if (connection != this) {
+                    return;
+                }
+                boundService = connected;
+                callbacks = takeWaiting();
+            }
+            for (Callback<OAuth2AuthzService> callback : callbacks) {
+                callback.onSuccess(connected);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName className) {
+            super.onServiceDisconnected(className);
+            // The system reconnects a binding made with BIND_AUTO_CREATE;
+            // until then callers wait for the new service.
+            synchronized (OAuth2AuthzServiceConnectionManager.this) {
+                if (connection == this) {
+                    boundService = null;
+                }
+            }
+        }
+
+    }
+
+}
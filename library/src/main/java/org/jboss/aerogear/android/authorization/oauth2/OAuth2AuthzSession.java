@@ -50,6 +50,20 @@ public class OAuth2AuthzSession implements Parcelable {
     public OAuth2AuthzSession() {
     }
 
+    /**
+     * Creates a copy of another session.
+     * 
+     * @param session the session to copy
+     */
+    public OAuth2AuthzSession(OAuth2AuthzSession session) {
+        clientId = session.clientId;
+        accessToken = session.accessToken;
+        authorizationCode = session.authorizationCode;
+        refreshToken = session.refreshToken;
+        accountId = session.accountId;
+        expires_on = session.expires_on;
+    }
+
     public String getClientId() {
         return clientId;
     }
@@ -182,10 +196,17 @@ public class OAuth2AuthzSession implements Parcelable {
     };
 
     public boolean tokenIsNotExpired() {
-        if (expires_on == 0) {
-            return true;
-        }
-        return (expires_on > new Date().getTime());
+        return tokenIsNotExpiredAt(new Date().getTime());
+    }
+
+    /**
+     * Checks the token against a point in time instead of now.
+     * 
+     * @param time a time in milliseconds since the epoch
+     * @return true if the token has no expiry or expires after time
+     */
+    public boolean tokenIsNotExpiredAt(long time) {
+        return OAuth2Tokens.isNotExpiredAt(expires_on, time);
     }
 
 }
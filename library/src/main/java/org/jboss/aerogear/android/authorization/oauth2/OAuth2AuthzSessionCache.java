@@ -0,0 +1,128 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of {@link OAuth2AuthzSession}s which
+ * sits in front of the session store of {@link OAuth2TokenEngine}.
+ *
+ * The engine owns the cache and writes every change through to the store
+ * before it updates the cache, so the cache never holds a session the store
+ * does not. Sessions in the cache are shared between callers and must not be
+ * modified. The engine reports hits and misses to {@link OAuth2Metrics}.
+ */
+public final class OAuth2AuthzSessionCache {
+
+    public static final int DEFAULT_MAX_SIZE = 32;
+
+    private final LinkedHashMap<String, OAuth2AuthzSession> sessions;
+    private long invalidations = 0;
+
+    public OAuth2AuthzSessionCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize the number of sessions to keep before the least recently
+     *            used one is dropped
+     */
+    public OAuth2AuthzSessionCache(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.sessions = new LinkedHashMap<String, OAuth2AuthzSession>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, OAuth2AuthzSession> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached session for accountId.
+     *
+     * @param accountId the account to look up
+     * @return the cached session or null
+     */
+    synchronized OAuth2AuthzSession get(String accountId) {
+        return sessions.get(accountId);
+    }
+
+    /**
+     * Marks the start of a store read that will be offered to
+     * {@link #putLoaded(String, OAuth2AuthzSession, long)}.
+     *
+     * @return a token identifying the current invalidation state
+     */
+    synchronized long beginLoad() {
+        return invalidations;
+    }
+
+    /**
+     * Caches a session which was read from the store. The session is dropped
+     * if another thread cached a newer one or invalidated an account since
+     * {@link #beginLoad()} was called.
+     *
+     * @param accountId the account of the session
+     * @param session the session read from the store
+     * @param loadToken the value returned by {@link #beginLoad()}
+     */
+    synchronized void putLoaded(String accountId, OAuth2AuthzSession session, long loadToken) {
+        if (loadToken == invalidations && !sessions.containsKey(accountId)) {
+            sessions.put(accountId, session);
+        }
+    }
+
+    /**
+     * Caches a session which was just written to the store.
+     *
+     * @param accountId the account of the session
+     * @param session the session written to the store
+     */
+    synchronized void put(String accountId, OAuth2AuthzSession session) {
+        sessions.put(accountId, session);
+    }
+
+    /**
+     * Drops accountId from the cache.
+     *
+     * @param accountId the account to drop
+     */
+    synchronized void invalidate(String accountId) {
+        invalidations++;
+        sessions.remove(accountId);
+    }
+
+    /**
+     * Drops every session from the cache.
+     */
+    public synchronized void clear() {
+        invalidations++;
+        sessions.clear();
+    }
+
+    /**
+     * @return the number of sessions currently cached
+     */
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+}
@@ -0,0 +1,86 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads account IDs straight from the table SQLStore keeps sessions in,
+ * without deserializing any session.
+ *
+ * SQLStore stores every field of a session as a row of
+ * OAuth2AuthzSession_property, keyed by the account ID in PARENT_ID, so the
+ * IDs are the distinct values of that column. The PARENT_ID index makes
+ * these queries cheap.
+ */
+final class OAuth2AuthzSessionIds {
+
+    private static final String TABLE = OAuth2AuthzSession.class.getSimpleName() + "_property";
+
+    private static final String SELECT_ALL = "select distinct PARENT_ID from " + TABLE;
+    private static final String SELECT_FIRST_PAGE = "select distinct PARENT_ID from " + TABLE
+            + " order by PARENT_ID limit ?";
+    private static final String SELECT_NEXT_PAGE = "select distinct PARENT_ID from " + TABLE
+            + " where PARENT_ID > ? order by PARENT_ID limit ?";
+
+    private OAuth2AuthzSessionIds() {
+    }
+
+    /**
+     * @param database the database of the session store
+     * @return every stored account ID
+     */
+    static List<String> readAll(SQLiteDatabase database) {
+        return read(database.rawQuery(SELECT_ALL, null));
+    }
+
+    /**
+     * Reads a page of account IDs in ID order. Paging is keyed on the last ID
+     * of the previous page, so accounts added or removed between pages do
+     * not shift the pages which follow.
+     *
+     * @param database the database of the session store
+     * @param after the last ID of the previous page, or null for the first
+     *            page
+     * @param pageSize the largest number of IDs to read
+     * @return the IDs following after, at most pageSize of them
+     */
+    static List<String> readPage(SQLiteDatabase database, String after, int pageSize) {
+        String limit = String.valueOf(pageSize);
+        if (after == null) {
+            return read(database.rawQuery(SELECT_FIRST_PAGE, new String[] { limit }));
+        }
+        return read(database.rawQuery(SELECT_NEXT_PAGE, new String[] { after, limit }));
+    }
+
+    private static List<String> read(Cursor cursor) {
+        try {
+            List<String> ids = new ArrayList<String>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getString(0));
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
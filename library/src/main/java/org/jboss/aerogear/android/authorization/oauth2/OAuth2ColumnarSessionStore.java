@@ -0,0 +1,388 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps sessions in a SQLite table of their own, one typed column per
+ * field. This is the default backend.
+ *
+ * The database runs in write ahead log mode, so reads do not wait for
+ * writes. Writes go through statements compiled once and reused. The store
+ * remembers the row it last wrote for every account and a save only updates
+ * the columns which changed, so a token refresh is a single row UPDATE of
+ * the token columns.
+ *
+ * The expires_on column is indexed; {@link #readExpiringBefore(long)} uses
+ * it to find the accounts whose tokens run out soon.
+ */
+public final class OAuth2ColumnarSessionStore extends SQLiteOpenHelper implements OAuth2SessionStore {
+
+    private static final String TAG = OAuth2ColumnarSessionStore.class.getSimpleName();
+
+    /**
+     * The name of the database {@link #FACTORY} opens.
+     */
+    public static final String DATABASE_NAME = "oauth2-sessions.db";
+
+    /**
+     * Opens {@link #DATABASE_NAME}. Sessions left in the SQLStore database
+     * of earlier versions are moved into it the first time.
+     */
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public OAuth2SessionStore open(Context applicationContext) throws IOException {
+            OAuth2ColumnarSessionStore store = new OAuth2ColumnarSessionStore(applicationContext, DATABASE_NAME);
+            store.getWritableDatabase();
+            migrateSQLStore(applicationContext, store);
+            return store;
+        }
+    };
+
+    private static final int DATABASE_VERSION = 1;
+    private static final String TABLE = "sessions";
+
+    private static final String CREATE_TABLE = "create table " + TABLE + " ("
+            + "account_id text primary key not null, "
+            + "client_id text, "
+            + "access_token text, "
+            + "authorization_code text, "
+            + "refresh_token text, "
+            + "expires_on integer not null default 0)";
+    private static final String CREATE_EXPIRES_ON_INDEX = "create index " + TABLE + "_expires_on on " + TABLE + " (expires_on)";
+
+    private static final String SELECT_SESSION = "select client_id, access_token, authorization_code, refresh_token, expires_on from "
+            + TABLE + " where account_id = ?";
+    private static final String SELECT_IDS = "select account_id from " + TABLE + " order by account_id";
+    private static final String SELECT_FIRST_PAGE = "select account_id from " + TABLE + " order by account_id limit ?";
+    private static final String SELECT_NEXT_PAGE = "select account_id from " + TABLE
+            + " where account_id > ? order by account_id limit ?";
+    private static final String SELECT_EXPIRING = "select account_id from " + TABLE
+            + " where expires_on > 0 and expires_on < ? order by expires_on";
+    private static final String INSERT = "insert into " + TABLE
+            + " (account_id, client_id, access_token, authorization_code, refresh_token, expires_on) values (?, ?, ?, ?, ?, ?)";
+    private static final String DELETE = "delete from " + TABLE + " where account_id = ?";
+
+    // The updatable columns, in the order of the bits which select them
+    private static final String[] COLUMNS = { "client_id", "access_token", "authorization_code", "refresh_token", "expires_on" };
+    private static final int CLIENT_ID = 1;
+    private static final int ACCESS_TOKEN = 1 << 1;
+    private static final int AUTHORIZATION_CODE = 1 << 2;
+    private static final int REFRESH_TOKEN = 1 << 3;
+    private static final int EXPIRES_ON = 1 << 4;
+    private static final int ALL_COLUMNS = (1 << COLUMNS.length) - 1;
+
+    // The rows last written by this store. Only writers touch it, under the
+    // store lock, so it never holds a row older than the table.
+    private final ConcurrentHashMap<String, OAuth2AuthzSession> written = new ConcurrentHashMap<String, OAuth2AuthzSession>();
+
+    // Compiled on first use and guarded by the store lock
+    private final SQLiteStatement[] updates = new SQLiteStatement[ALL_COLUMNS + 1];
+    private SQLiteStatement insert;
+    private SQLiteStatement delete;
+
+    /**
+     * @param context the application context
+     * @param name the name of the database file, or null for a database
+     *            which only lives in memory
+     */
+    public OAuth2ColumnarSessionStore(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase database) {
+        database.execSQL(CREATE_TABLE);
+        database.execSQL(CREATE_EXPIRES_ON_INDEX);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+    }
+
+    @Override
+    public OAuth2AuthzSession read(String accountId) {
+        Cursor cursor = getReadableDatabase().rawQuery(SELECT_SESSION, new String[] { accountId });
+        try {
+            if (!cursor.moveToNext()) {
+                return null;
+            }
+            OAuth2AuthzSession session = new OAuth2AuthzSession();
+            session.setAccountId(accountId);
+            session.setClientId(cursor.getString(0));
+            session.setAccessToken(cursor.getString(1));
+            session.setAuthorizationCode(cursor.getString(2));
+            session.setRefreshToken(cursor.getString(3));
+            session.setExpires_on(cursor.getLong(4));
+            return session;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public synchronized void save(OAuth2AuthzSession session) {
+        OAuth2AuthzSession row = new OAuth2AuthzSession(session);
+        try {
+            write(row);
+        } catch (RuntimeException ex) {
+            written.remove(row.getAccountId());
+            throw ex;
+        }
+        written.put(row.getAccountId(), row);
+    }
+
+    @Override
+    public synchronized void save(Collection<OAuth2AuthzSession> sessions) {
+        List<OAuth2AuthzSession> rows = new ArrayList<OAuth2AuthzSession>(sessions.size());
+        for (OAuth2AuthzSession session : sessions) {
+            rows.add(new OAuth2AuthzSession(session));
+        }
+
+        SQLiteDatabase database = getWritableDatabase();
+        boolean saved = false;
+        database.beginTransactionNonExclusive();
+        try {
+            for (OAuth2AuthzSession row : rows) {
+                write(row);
+            }
+            database.setTransactionSuccessful();
+            saved = true;
+        } finally {
+            database.endTransaction();
+            // A rolled back batch leaves the remembered rows unreliable
+            for (OAuth2AuthzSession row : rows) {
+                if (saved) {
+                    written.put(row.getAccountId(), row);
+                } else {
+                    written.remove(row.getAccountId());
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void remove(String accountId) {
+        if (delete == null) {
+            delete = getWritableDatabase().compileStatement(DELETE);
+        }
+        written.remove(accountId);
+        delete.bindString(1, accountId);
+        delete.executeUpdateDelete();
+    }
+
+    @Override
+    public List<String> readAccountIds() {
+        return readIds(getReadableDatabase().rawQuery(SELECT_IDS, null));
+    }
+
+    @Override
+    public List<String> readAccountIds(String after, int pageSize) {
+        String limit = String.valueOf(pageSize);
+        if (after == null) {
+            return readIds(getReadableDatabase().rawQuery(SELECT_FIRST_PAGE, new String[] { limit }));
+        }
+        return readIds(getReadableDatabase().rawQuery(SELECT_NEXT_PAGE, new String[] { after, limit }));
+    }
+
+    /**
+     * Finds the accounts whose tokens expire before time. Sessions without
+     * an expiry are never returned.
+     *
+     * @param time a time in milliseconds since the epoch
+     * @return the IDs of the accounts, the soonest expiring first
+     */
+    public List<String> readExpiringBefore(long time) {
+        return readIds(getReadableDatabase().rawQuery(SELECT_EXPIRING, new String[] { String.valueOf(time) }));
+    }
+
+    @Override
+    public synchronized void close() {
+        for (int i = 0; i < updates.length; i++) {
+            if (updates[i] != null) {
+                updates[i].close();
+                updates[i] = null;
+            }
+        }
+        if (insert != null) {
+            insert.close();
+            insert = null;
+        }
+        if (delete != null) {
+            delete.close();
+            delete = null;
+        }
+        written.clear();
+        super.close();
+    }
+
+    private void write(OAuth2AuthzSession row) {
+        OAuth2AuthzSession previous = written.get(row.getAccountId());
+        if (previous == null) {
+            // Nothing known about the stored row; it may not even exist
+            if (update(row, ALL_COLUMNS) == 0) {
+                insert(row);
+            }
+            return;
+        }
+
+        int changed = changedColumns(previous, row);
+        if (changed != 0 && update(row, changed) == 0) {
+            // Removed by another writer of the same database
+            insert(row);
+        }
+    }
+
+    private int update(OAuth2AuthzSession row, int columns) {
+        SQLiteStatement update = updates[columns];
+        if (update == null) {
+            update = getWritableDatabase().compileStatement(updateSql(columns));
+            updates[columns] = update;
+        }
+
+        int index = 1;
+        if ((columns & CLIENT_ID) != 0) {
+            bind(update, index++, row.getClientId());
+        }
+        if ((columns & ACCESS_TOKEN) != 0) {
+            bind(update, index++, row.getAccessToken());
+        }
+        if ((columns & AUTHORIZATION_CODE) != 0) {
+            bind(update, index++, row.getAuthorizationCode());
+        }
+        if ((columns & REFRESH_TOKEN) != 0) {
+            bind(update, index++, row.getRefreshToken());
+        }
+        if ((columns & EXPIRES_ON) != 0) {
+            update.bindLong(index++, row.getExpires_on());
+        }
+        update.bindString(index, row.getAccountId());
+        return update.executeUpdateDelete();
+    }
+
+    private void insert(OAuth2AuthzSession row) {
+        if (insert == null) {
+            insert = getWritableDatabase().compileStatement(INSERT);
+        }
+        insert.bindString(1, row.getAccountId());
+        bind(insert, 2, row.getClientId());
+        bind(insert, 3, row.getAccessToken());
+        bind(insert, 4, row.getAuthorizationCode());
+        bind(insert, 5, row.getRefreshToken());
+        insert.bindLong(6, row.getExpires_on());
+        insert.executeInsert();
+    }
+
+    private static String updateSql(int columns) {
+        StringBuilder sql = new StringBuilder("update ").append(TABLE).append(" set ");
+        String separator = "";
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if ((columns & (1 << i)) != 0) {
+                sql.append(separator).append(COLUMNS[i]).append(" = ?");
+                separator = ", ";
+            }
+        }
+        return sql.append(" where account_id = ?").toString();
+    }
+
+    private static int changedColumns(OAuth2AuthzSession previous, OAuth2AuthzSession row) {
+        int changed = 0;
+        if (!equal(previous.getClientId(), row.getClientId())) {
+            changed |= CLIENT_ID;
+        }
+        if (!equal(previous.getAccessToken(), row.getAccessToken())) {
+            changed |= ACCESS_TOKEN;
+        }
+        if (!equal(previous.getAuthorizationCode(), row.getAuthorizationCode())) {
+            changed |= AUTHORIZATION_CODE;
+        }
+        if (!equal(previous.getRefreshToken(), row.getRefreshToken())) {
+            changed |= REFRESH_TOKEN;
+        }
+        if (previous.getExpires_on() != row.getExpires_on()) {
+            changed |= EXPIRES_ON;
+        }
+        return changed;
+    }
+
+    private static boolean equal(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    private static void bind(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static List<String> readIds(Cursor cursor) {
+        try {
+            List<String> ids = new ArrayList<String>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getString(0));
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Moves the sessions of the SQLStore database earlier versions kept into
+     * store and deletes that database.
+     */
+    private static void migrateSQLStore(Context context, OAuth2ColumnarSessionStore store) throws IOException {
+        String legacyName = OAuth2AuthzSession.class.getSimpleName();
+        File legacy = context.getDatabasePath(legacyName);
+        if (legacy == null || !legacy.exists()) {
+            return;
+        }
+
+        OAuth2SQLSessionStore legacyStore = (OAuth2SQLSessionStore) OAuth2SQLSessionStore.FACTORY.open(context);
+        try {
+            List<OAuth2AuthzSession> sessions = new ArrayList<OAuth2AuthzSession>();
+            for (String accountId : legacyStore.readAccountIds()) {
+                OAuth2AuthzSession session = legacyStore.read(accountId);
+                if (session != null) {
+                    sessions.add(session);
+                }
+            }
+            store.save(sessions);
+            Log.d(TAG, "Moved " + sessions.size() + " sessions out of " + legacyName);
+        } finally {
+            legacyStore.close();
+        }
+        context.deleteDatabase(legacyName);
+    }
+
+}
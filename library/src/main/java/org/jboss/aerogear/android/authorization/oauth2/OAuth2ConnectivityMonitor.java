@@ -0,0 +1,136 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tells the {@link OAuth2TokenEngine} whether the device has a network
+ * connection, and runs the work it put off while offline once the
+ * connection returns.
+ *
+ * A receiver for connectivity changes is registered only while there is
+ * work waiting, so an app which never goes offline pays nothing for it.
+ */
+final class OAuth2ConnectivityMonitor {
+
+    private static final String TAG = OAuth2ConnectivityMonitor.class.getSimpleName();
+
+    private final Context context;
+    private final ConcurrentHashMap<String, Runnable> pending = new ConcurrentHashMap<String, Runnable>();
+    private BroadcastReceiver receiver;
+
+    /**
+     * @param context the application context, may be null in which case the
+     *            device is always considered online
+     */
+    OAuth2ConnectivityMonitor(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * @return false if the device has no network connection. If that cannot
+     *         be told the device is considered online.
+     */
+    boolean isConnected() {
+        if (context == null) {
+            return true;
+        }
+        try {
+            ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (manager == null) {
+                return true;
+            }
+            NetworkInfo network = manager.getActiveNetworkInfo();
+            return network != null && network.isConnected();
+        } catch (SecurityException ex) {
+            Log.w(TAG, "ACCESS_NETWORK_STATE is not granted, assuming the device is online");
+            return true;
+        }
+    }
+
+    /**
+     * Runs action once the device is online again. An action registered
+     * under the same key replaces the previous one.
+     * 
+     * Actions run on the main thread, so they must hand any blocking work to
+     * an executor.
+     *
+     * @param key identifies the work, for instance an account ID
+     * @param action the action to run
+     */
+    void whenConnected(String key, Runnable action) {
+        pending.put(key, action);
+        register();
+        // The connection may have returned before the receiver was registered
+        if (isConnected()) {
+            resume();
+        }
+    }
+
+    /**
+     * Drops the waiting work and stops listening for connectivity changes.
+     */
+    void shutdown() {
+        pending.clear();
+        unregister();
+    }
+
+    private void resume() {
+        unregister();
+        Iterator<Map.Entry<String, Runnable>> actions = pending.entrySet().iterator();
+        while (actions.hasNext()) {
+            Runnable action = actions.next().getValue();
+            actions.remove();
+            action.run();
+        }
+    }
+
+    private synchronized void register() {
+        if (receiver != null || context == null) {
+            return;
+        }
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (isConnected()) {
+                    Log.d(TAG, "Connectivity restored, resuming token refreshes");
+                    resume();
+                }
+            }
+        };
+        context.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    private synchronized void unregister() {
+        if (receiver != null) {
+            context.unregisterReceiver(receiver);
+            receiver = null;
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the pool token exchanges run on when no executor is configured with
+ * {@link OAuth2Properties#setExchangeExecutor(Executor)}.
+ *
+ * The pool is owned by the library, so exchanges do not queue behind
+ * unrelated work the app runs on AsyncTask's pools. Its threads time out
+ * when idle, so it costs nothing until it is used.
+ */
+final class OAuth2ExchangeExecutors {
+
+    static final int DEFAULT_THREADS = 4;
+
+    private static final ThreadPoolExecutor DEFAULT = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "OAuth2Exchange-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        DEFAULT.allowCoreThreadTimeOut(true);
+    }
+
+    private OAuth2ExchangeExecutors() {
+    }
+
+    /**
+     * @param configured an executor set in the configuration, may be null
+     * @return configured or the shared pool if it is null
+     */
+    static Executor orDefault(Executor configured) {
+        return configured == null ? DEFAULT : configured;
+    }
+
+}
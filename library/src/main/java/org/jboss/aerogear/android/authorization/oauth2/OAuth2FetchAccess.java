@@ -21,66 +21,156 @@
  */
 package org.jboss.aerogear.android.authorization.oauth2;
 
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
+import java.util.concurrent.Executor;
 import org.jboss.aerogear.android.core.Callback;
 
 /**
  * This is a helper class which fetches an access token given an authorization
  * token.
  * 
+ * The callback methods run the exchange on an executor and call back on the
+ * calling thread's Looper, or on the executor thread if the calling thread
+ * has none. Worker threads can use the blocking methods instead.
+ * 
  * @author summers
  */
 public class OAuth2FetchAccess {
 
-    private final OAuth2AuthzService service;
+    private final OAuth2TokenEngine engine;
+    private final Executor executor;
 
     public OAuth2FetchAccess(OAuth2AuthzService service) {
-        this.service = service;
+        this(service.getEngine(), null);
+    }
+
+    public OAuth2FetchAccess(OAuth2TokenEngine engine) {
+        this(engine, null);
+    }
+
+    /**
+     * @param engine the engine which performs the exchanges
+     * @param executor runs the exchanges, or null to use the pool shared by
+     *            every module
+     */
+    public OAuth2FetchAccess(OAuth2TokenEngine engine, Executor executor) {
+        this.engine = engine;
+        this.executor = OAuth2ExchangeExecutors.orDefault(executor);
     }
 
     public void fetchAccessCode(final String accountId, final OAuth2Properties config, final Callback<String> callback) {
+        run(new Exchange<String>() {
+            @Override
+            public String run() throws OAuth2AuthorizationException {
+                return engine.fetchAccessToken(accountId, config);
+            }
+        }, callback);
+    }
 
-        if (Looper.myLooper() == Looper.getMainLooper()) {// foreground thread
-            new AsyncTask<Object, Void, Object>() {
+    /**
+     * Fetches an access token on the calling thread, refreshing it if it
+     * expired.
+     * 
+     * @param accountId the ID for the {@link OAuth2AuthzSession}
+     * @param config the config
+     * @return the access token
+     * @throws OAuth2AuthorizationException if the exchange fails
+     * @throws IllegalStateException if called on the main thread
+     */
+    public String fetchAccessCode(String accountId, OAuth2Properties config) throws OAuth2AuthorizationException {
+        checkNotMainThread();
+        return engine.fetchAccessToken(accountId, config);
+    }
 
-                @Override
-                protected Object doInBackground(Object... params) {
-                    try {
-                        return service.fetchAccessToken((String) params[0], (OAuth2Properties) params[1]);
-                    } catch (OAuth2AuthorizationException ex) {
-                        return ex;
-                    }
+    /**
+     * Exchanges an authorization code on the calling thread.
+     * 
+     * @param accountId the ID for the {@link OAuth2AuthzSession}
+     * @param clientId the client ID the code was issued to
+     * @param code the authorization code
+     * @param config the config
+     * @return the stored session
+     * @throws OAuth2AuthorizationException if the exchange fails
+     * @throws IllegalStateException if called on the main thread
+     */
+    public OAuth2AuthzSession exchangeAuthorizationCode(String accountId, String clientId, String code, OAuth2Properties config)
+            throws OAuth2AuthorizationException {
+        checkNotMainThread();
+        return engine.exchangeAuthorizationCode(accountId, clientId, code, config);
+    }
+
+    /**
+     * Exchanges an authorization code and passes the stored session to the
+     * callback, so the caller does not have to read it back from the engine.
+     * 
+     * @param accountId the ID for the {@link OAuth2AuthzSession}
+     * @param clientId the client ID the code was issued to
+     * @param code the authorization code
+     * @param config the config
+     * @param callback receives the stored session
+     */
+    public void exchangeAuthorizationCode(final String accountId, final String clientId, final String code, final OAuth2Properties config,
+            final Callback<OAuth2AuthzSession> callback) {
+        run(new Exchange<OAuth2AuthzSession>() {
+            @Override
+            public OAuth2AuthzSession run() throws OAuth2AuthorizationException {
+                return engine.exchangeAuthorizationCode(accountId, clientId, code, config);
+            }
+        }, callback);
+    }
+
+    private <T> void run(final Exchange<T> exchange, final Callback<T> callback) {
+        Looper looper = Looper.myLooper();
+        final Handler handler = looper == null ? null : new Handler(looper);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Exception failure = null;
+                T result = null;
+                try {
+                    result = exchange.run();
+                } catch (OAuth2AuthorizationException ex) {
+                    failure = ex;
+                } catch (RuntimeException ex) {
+                    failure = ex;
                 }
+                deliver(handler, result, failure, callback);
+            }
+        });
+    }
 
-                @Override
-                protected void onPostExecute(Object result) {
-                    if (result instanceof String || result == null) {
-                        callback.onSuccess((String) result);
-                    } else {
-                        callback.onFailure((Exception) result);
-                    }
+    private static <T> void deliver(Handler handler, final T result, final Exception failure, final Callback<T> callback) {
+        Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                if (failure == null) {
+                    callback.onSuccess(result);
+                } else {
+                    callback.onFailure(failure);
                 }
+            }
+        };
 
-            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, accountId, config);
+        if (handler == null) {
+            delivery.run();
+        } else {
+            handler.post(delivery);
+        }
+    }
 
-        } else { // background thread
-            new Handler(Looper.myLooper()).post(new Runnable() {
+    private static void checkNotMainThread() {
+        Looper looper = Looper.myLooper();
+        if (looper != null && looper == Looper.getMainLooper()) {
+            throw new IllegalStateException("Blocking token exchanges may not run on the main thread");
+        }
+    }
 
-                @Override
-                public void run() {
-                    try {
+    private interface Exchange<T> {
 
-                        String code = service.fetchAccessToken(accountId, config);
-                        callback.onSuccess((String) code);
+        T run() throws OAuth2AuthorizationException;
 
-                    } catch (OAuth2AuthorizationException ex) {
-                        callback.onFailure(ex);
-                    }
-                }
-            });
-        }
     }
 
 }
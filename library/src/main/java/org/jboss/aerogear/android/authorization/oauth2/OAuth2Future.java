@@ -0,0 +1,298 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jboss.aerogear.android.core.Callback;
+
+/**
+ * The result of an asynchronous authorization call.
+ *
+ * Besides the blocking {@link Future} methods the result can be passed on
+ * without parking a thread: {@link #addCallback(Callback, Executor)} delivers
+ * it to a {@link Callback} and {@link #then(Step, Executor)} and
+ * {@link #thenCompose(Step, Executor)} chain further work onto it. Each of
+ * them runs on the executor it is given, so callers decide where their code
+ * runs.
+ *
+ * @param <T> the type of the result
+ */
+public final class OAuth2Future<T> implements Future<T> {
+
+    /**
+     * A step of work chained onto a future.
+     *
+     * @param <T> the type of the input
+     * @param <R> the type of the output
+     */
+    public interface Step<T, R> {
+
+        /**
+         * @param value the result of the previous future
+         * @return the result of this step
+         * @throws Exception if the step fails; the chained future fails with
+         *             it
+         */
+        R apply(T value) throws Exception;
+
+    }
+
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+    private boolean done = false;
+    private T value;
+    private Exception failure;
+
+    OAuth2Future() {
+    }
+
+    /**
+     * @param value the result
+     * @param <T> the type of the result
+     * @return a future which has already succeeded with value
+     */
+    public static <T> OAuth2Future<T> completed(T value) {
+        OAuth2Future<T> future = new OAuth2Future<T>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * @param failure the cause of the failure
+     * @param <T> the type of the result
+     * @return a future which has already failed with failure
+     */
+    public static <T> OAuth2Future<T> failed(Exception failure) {
+        OAuth2Future<T> future = new OAuth2Future<T>();
+        future.fail(failure);
+        return future;
+    }
+
+    /**
+     * Passes the result to callback on executor once the future is done. If
+     * it is done already the callback is handed to executor at once.
+     *
+     * @param callback receives the result or the failure
+     * @param executor runs the callback
+     * @return this future
+     */
+    public OAuth2Future<T> addCallback(final Callback<? super T> callback, final Executor executor) {
+        whenDone(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (failure == null) {
+                            callback.onSuccess(value);
+                        } else {
+                            callback.onFailure(failure);
+                        }
+                    }
+                });
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Runs step on executor with the result of this future.
+     *
+     * @param step the work to chain
+     * @param executor runs step
+     * @param <R> the type of the result of step
+     * @return a future of the result of step. It fails without running step
+     *         if this future fails.
+     */
+    public <R> OAuth2Future<R> then(final Step<? super T, ? extends R> step, Executor executor) {
+        final OAuth2Future<R> next = new OAuth2Future<R>();
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                try {
+                    next.complete(step.apply(result));
+                } catch (Exception ex) {
+                    next.fail(ex);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                next.fail(e);
+            }
+        }, executor);
+        return next;
+    }
+
+    /**
+     * Runs step on executor with the result of this future and follows the
+     * future it returns.
+     *
+     * @param step the asynchronous work to chain
+     * @param executor runs step
+     * @param <R> the type of the result of step
+     * @return a future which completes as the future of step does. It fails
+     *         without running step if this future fails.
+     */
+    public <R> OAuth2Future<R> thenCompose(final Step<? super T, OAuth2Future<R>> step, Executor executor) {
+        final OAuth2Future<R> next = new OAuth2Future<R>();
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                final OAuth2Future<R> stepFuture;
+                try {
+                    stepFuture = step.apply(result);
+                } catch (Exception ex) {
+                    next.fail(ex);
+                    return;
+                }
+                stepFuture.whenDone(new Runnable() {
+                    @Override
+                    public void run() {
+                        next.copy(stepFuture);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                next.fail(e);
+            }
+        }, executor);
+        return next;
+    }
+
+    /**
+     * Fails the future with a {@link CancellationException} if it is not done
+     * yet. Work already running is not interrupted.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return fail(new CancellationException());
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return failure instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    /**
+     * Succeeds the future if it is not done yet.
+     *
+     * @param result the result
+     * @return true if this call completed the future
+     */
+    boolean complete(T result) {
+        return finish(result, null);
+    }
+
+    /**
+     * Fails the future if it is not done yet.
+     *
+     * @param cause the cause of the failure
+     * @return true if this call completed the future
+     */
+    boolean fail(Exception cause) {
+        if (cause == null) {
+            throw new IllegalArgumentException("cause may not be null");
+        }
+        return finish(null, cause);
+    }
+
+    private void copy(OAuth2Future<? extends T> other) {
+        T otherValue;
+        Exception otherFailure;
+        synchronized (other) {
+            otherValue = other.value;
+            otherFailure = other.failure;
+        }
+        finish(otherValue, otherFailure);
+    }
+
+    private boolean finish(T result, Exception cause) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            value = result;
+            failure = cause;
+            done = true;
+            toRun = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        for (Runnable listener : toRun) {
+            listener.run();
+        }
+        return true;
+    }
+
+    private void whenDone(Runnable listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    private T result() throws ExecutionException {
+        if (failure instanceof CancellationException) {
+            throw (CancellationException) failure;
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+
+}
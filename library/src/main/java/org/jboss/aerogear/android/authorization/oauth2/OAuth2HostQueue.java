@@ -0,0 +1,131 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on an executor with no more than a fixed number of them talking
+ * to the same token endpoint host at once.
+ *
+ * A task over the limit waits in the queue of its host instead of blocking a
+ * thread of the executor. When a task of a host finishes, the next one of
+ * that host is handed to the executor, so a batch dominated by one host
+ * leaves the other threads free for the other hosts.
+ */
+final class OAuth2HostQueue {
+
+    private final int perHost;
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+    /**
+     * @param perHost the number of tasks which may run for one host at once
+     */
+    OAuth2HostQueue(int perHost) {
+        this.perHost = perHost;
+    }
+
+    /**
+     * Runs task on executor once fewer than the limit of tasks for host are
+     * running.
+     *
+     * @param host the host the task talks to
+     * @param task the task
+     * @param executor the executor to run the task on
+     */
+    void execute(String host, Runnable task, Executor executor) {
+        Host queue;
+        synchronized (this) {
+            queue = hosts.get(host);
+            if (queue == null) {
+                queue = new Host(host);
+                hosts.put(host, queue);
+            }
+            if (queue.running >= perHost) {
+                queue.waiting.add(task);
+                return;
+            }
+            queue.running++;
+        }
+        try {
+            executor.execute(wrap(queue, task, executor));
+        } catch (RuntimeException ex) {
+            synchronized (this) {
+                finished(queue);
+            }
+            throw ex;
+        }
+    }
+
+    private Runnable wrap(final Host queue, final Runnable task, final Executor executor) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    next(queue, executor);
+                }
+            }
+        };
+    }
+
+    private void next(Host queue, Executor executor) {
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                next = queue.waiting.poll();
+                if (next == null) {
+                    finished(queue);
+                    return;
+                }
+            }
+            try {
+                executor.execute(wrap(queue, next, executor));
+                return;
+            } catch (RejectedExecutionException ex) {
+                // The executor is shutting down, finish the queued work on
+                // this thread so nobody waits for it forever
+                next.run();
+            }
+        }
+    }
+
+    private void finished(Host queue) {
+        queue.running--;
+        if (queue.running == 0 && queue.waiting.isEmpty()) {
+            hosts.remove(queue.name);
+        }
+    }
+
+    private static final class Host {
+
+        private final String name;
+        private final ArrayDeque<Runnable> waiting = new ArrayDeque<Runnable>();
+        private int running;
+
+        private Host(String name) {
+            this.name = name;
+        }
+
+    }
+
+}
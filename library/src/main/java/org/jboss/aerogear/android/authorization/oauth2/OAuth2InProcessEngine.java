@@ -0,0 +1,52 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import android.content.Context;
+
+/**
+ * Keeps the one {@link OAuth2TokenEngine} of this process.
+ *
+ * Single process apps gain nothing from binding the
+ * {@link OAuth2AuthzService} but its latency and the need for an Activity to
+ * bind from, so modules which work in process use this engine directly. The
+ * service hands out the same engine to the modules which bind it. An app
+ * which mixes both kinds of module therefore has one session cache, one
+ * exchange in flight per account and one refresh ahead scheduler. The
+ * instance lives as long as the process.
+ */
+final class OAuth2InProcessEngine {
+
+    private static OAuth2TokenEngine engine;
+
+    private OAuth2InProcessEngine() {
+    }
+
+    /**
+     * @param context any context; only its application context is kept
+     * @return the engine of this process, created on the first call
+     */
+    static synchronized OAuth2TokenEngine get(Context context) {
+        if (engine == null) {
+            OAuth2TokenEngine created = new OAuth2TokenEngine();
+            created.open(context.getApplicationContext());
+            engine = created;
+        }
+        return engine;
+    }
+
+}
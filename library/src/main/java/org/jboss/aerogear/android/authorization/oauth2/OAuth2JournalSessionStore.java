@@ -0,0 +1,421 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps sessions in an append only journal file.
+ *
+ * Every change is appended to the end of the file as one checksummed record
+ * and synced, so saving a token costs one sequential write instead of an
+ * SQLite transaction. All sessions are held in memory and reads never touch
+ * the file. When the journal holds more than twice as many records as
+ * there are sessions it is compacted: the live sessions are written to a
+ * new file which then replaces the journal.
+ *
+ * A record which was only partly written when the process died fails its
+ * checksum and is dropped, together with anything after it, when the
+ * journal is opened again. A write which fails while the process lives is
+ * cut off the file at once, so records appended after it are kept.
+ */
+public final class OAuth2JournalSessionStore implements OAuth2SessionStore {
+
+    /**
+     * The name of the journal file {@link #FACTORY} opens in the files
+     * directory of the application.
+     */
+    public static final String DEFAULT_FILE_NAME = "oauth2-sessions.journal";
+
+    /**
+     * The number of records a journal must hold before it is compacted.
+     */
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 256;
+
+    /**
+     * Opens the journal {@link #DEFAULT_FILE_NAME} in the files directory of
+     * the application.
+     */
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public OAuth2SessionStore open(Context applicationContext) throws IOException {
+            return new OAuth2JournalSessionStore(new File(applicationContext.getFilesDir(), DEFAULT_FILE_NAME));
+        }
+    };
+
+    private static final byte SAVE = 1;
+    private static final byte SAVE_ALL = 2;
+    private static final byte REMOVE = 3;
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    private final File file;
+    private final File compactFile;
+    private final int compactionThreshold;
+    private final ConcurrentSkipListMap<String, OAuth2AuthzSession> sessions = new ConcurrentSkipListMap<String, OAuth2AuthzSession>();
+    private FileOutputStream out;
+    private int records = 0;
+    private long length = 0;
+    private boolean torn = false;
+
+    /**
+     * Opens a journal, creating it if it does not exist.
+     *
+     * @param file the journal file
+     * @throws IOException if the journal can not be read or written
+     */
+    public OAuth2JournalSessionStore(File file) throws IOException {
+        this(file, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * Opens a journal, creating it if it does not exist.
+     *
+     * @param file the journal file
+     * @param compactionThreshold the number of records the journal must
+     *            hold before it is compacted
+     * @throws IOException if the journal can not be read or written
+     */
+    public OAuth2JournalSessionStore(File file, int compactionThreshold) throws IOException {
+        if (compactionThreshold < 1) {
+            throw new IllegalArgumentException("compactionThreshold must be at least 1");
+        }
+        this.file = file;
+        this.compactFile = new File(file.getPath() + ".compact");
+        this.compactionThreshold = compactionThreshold;
+
+        // Left behind by a compaction which did not finish
+        if (compactFile.exists() && !compactFile.delete()) {
+            throw new IOException("Could not delete " + compactFile);
+        }
+        if (file.exists()) {
+            replay();
+        }
+        out = new FileOutputStream(file, true);
+        length = file.length();
+    }
+
+    @Override
+    public OAuth2AuthzSession read(String accountId) {
+        OAuth2AuthzSession session = sessions.get(accountId);
+        return session == null ? null : new OAuth2AuthzSession(session);
+    }
+
+    @Override
+    public synchronized void save(OAuth2AuthzSession session) {
+        OAuth2AuthzSession copy = new OAuth2AuthzSession(session);
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(record);
+            payload.writeByte(SAVE);
+            writeSession(payload, copy);
+            append(record);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not write the session journal", ex);
+        }
+        sessions.put(copy.getAccountId(), copy);
+        compactIfNeeded();
+    }
+
+    @Override
+    public synchronized void save(Collection<OAuth2AuthzSession> sessions) {
+        List<OAuth2AuthzSession> copies = new ArrayList<OAuth2AuthzSession>(sessions.size());
+        for (OAuth2AuthzSession session : sessions) {
+            copies.add(new OAuth2AuthzSession(session));
+        }
+        try {
+            // One record, so a torn write loses the whole batch
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(record);
+            payload.writeByte(SAVE_ALL);
+            payload.writeInt(copies.size());
+            for (OAuth2AuthzSession copy : copies) {
+                writeSession(payload, copy);
+            }
+            append(record);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not write the session journal", ex);
+        }
+        for (OAuth2AuthzSession copy : copies) {
+            this.sessions.put(copy.getAccountId(), copy);
+        }
+        compactIfNeeded();
+    }
+
+    @Override
+    public synchronized void remove(String accountId) {
+        if (!sessions.containsKey(accountId)) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(record);
+            payload.writeByte(REMOVE);
+            writeString(payload, accountId);
+            append(record);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not write the session journal", ex);
+        }
+        sessions.remove(accountId);
+        compactIfNeeded();
+    }
+
+    @Override
+    public List<String> readAccountIds() {
+        return new ArrayList<String>(sessions.keySet());
+    }
+
+    @Override
+    public List<String> readAccountIds(String after, int pageSize) {
+        return OAuth2MemorySessionStore.readPage(sessions, after, pageSize);
+    }
+
+    /**
+     * @return the number of records in the journal file
+     */
+    public synchronized int getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Closes the journal file. The store can not be written afterwards.
+     *
+     * @throws IOException if the file can not be closed
+     */
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private void append(ByteArrayOutputStream payload) throws IOException {
+        byte[] framed = frame(payload);
+        if (torn) {
+            repair();
+        }
+        try {
+            out.write(framed);
+            out.getFD().sync();
+        } catch (IOException ex) {
+            torn = true;
+            try {
+                repair();
+            } catch (IOException ignored) {
+                // Tried again before the next append
+            }
+            throw ex;
+        }
+        length += framed.length;
+        records++;
+    }
+
+    /**
+     * Cuts whatever a failed write left behind off the journal, so the next
+     * record follows the last good one.
+     */
+    private void repair() throws IOException {
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // The stream is replaced either way
+        }
+        truncate(length);
+        out = new FileOutputStream(file, true);
+        torn = false;
+    }
+
+    private void compactIfNeeded() {
+        if (records < compactionThreshold || records <= 2 * sessions.size()) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException ex) {
+            // The journal is still complete; compaction is tried again on
+            // the next write
+            compactFile.delete();
+        }
+    }
+
+    private void compact() throws IOException {
+        FileOutputStream compacted = new FileOutputStream(compactFile);
+        try {
+            for (OAuth2AuthzSession session : sessions.values()) {
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                DataOutputStream payload = new DataOutputStream(record);
+                payload.writeByte(SAVE);
+                writeSession(payload, session);
+                compacted.write(frame(record));
+            }
+            compacted.getFD().sync();
+        } finally {
+            compacted.close();
+        }
+
+        out.close();
+        try {
+            if (!compactFile.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+            records = sessions.size();
+            length = file.length();
+        } finally {
+            out = new FileOutputStream(file, true);
+        }
+    }
+
+    private void replay() throws IOException {
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException end) {
+                    break;
+                }
+                if (length < 1 || length > MAX_RECORD_LENGTH) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                int checksum;
+                try {
+                    in.readFully(payload);
+                    checksum = in.readInt();
+                } catch (EOFException torn) {
+                    break;
+                }
+                if (checksum != checksum(payload)) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(payload)));
+                valid += 4 + length + 4;
+                records++;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (valid < file.length()) {
+            truncate(valid);
+        }
+    }
+
+    private void truncate(long validLength) throws IOException {
+        RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+        try {
+            truncate.setLength(validLength);
+        } finally {
+            truncate.close();
+        }
+    }
+
+    private void apply(DataInputStream record) throws IOException {
+        byte type = record.readByte();
+        switch (type) {
+        case SAVE:
+            put(readSession(record));
+            break;
+        case SAVE_ALL:
+            for (int count = record.readInt(); count > 0; count--) {
+                put(readSession(record));
+            }
+            break;
+        case REMOVE:
+            sessions.remove(readString(record));
+            break;
+        default:
+            throw new IOException("Unknown journal record " + type);
+        }
+    }
+
+    private void put(OAuth2AuthzSession session) {
+        sessions.put(session.getAccountId(), session);
+    }
+
+    private static byte[] frame(ByteArrayOutputStream payload) throws IOException {
+        byte[] bytes = payload.toByteArray();
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(bytes.length + 8);
+        DataOutputStream frame = new DataOutputStream(framed);
+        frame.writeInt(bytes.length);
+        frame.write(bytes);
+        frame.writeInt(checksum(bytes));
+        return framed.toByteArray();
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeSession(DataOutputStream out, OAuth2AuthzSession session) throws IOException {
+        writeString(out, session.getAccountId());
+        writeString(out, session.getClientId());
+        writeString(out, session.getAccessToken());
+        writeString(out, session.getAuthorizationCode());
+        writeString(out, session.getRefreshToken());
+        out.writeLong(session.getExpires_on());
+    }
+
+    private static OAuth2AuthzSession readSession(DataInputStream in) throws IOException {
+        OAuth2AuthzSession session = new OAuth2AuthzSession();
+        session.setAccountId(readString(in));
+        session.setClientId(readString(in));
+        session.setAccessToken(readString(in));
+        session.setAuthorizationCode(readString(in));
+        session.setRefreshToken(readString(in));
+        session.setExpires_on(in.readLong());
+        return session;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+}
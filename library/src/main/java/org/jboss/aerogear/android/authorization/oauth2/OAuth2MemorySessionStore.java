@@ -0,0 +1,102 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keeps sessions in memory only. They are lost when the process ends, which
+ * suits tests and sessions which should not be persisted.
+ *
+ * The store keeps copies, so changing a session after saving it or after
+ * reading it does not change the stored session.
+ */
+public final class OAuth2MemorySessionStore implements OAuth2SessionStore {
+
+    /**
+     * Opens an empty memory store.
+     */
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public OAuth2SessionStore open(Context applicationContext) {
+            return new OAuth2MemorySessionStore();
+        }
+    };
+
+    private final ConcurrentSkipListMap<String, OAuth2AuthzSession> sessions = new ConcurrentSkipListMap<String, OAuth2AuthzSession>();
+
+    @Override
+    public OAuth2AuthzSession read(String accountId) {
+        OAuth2AuthzSession session = sessions.get(accountId);
+        return session == null ? null : new OAuth2AuthzSession(session);
+    }
+
+    @Override
+    public void save(OAuth2AuthzSession session) {
+        sessions.put(session.getAccountId(), new OAuth2AuthzSession(session));
+    }
+
+    @Override
+    public void save(Collection<OAuth2AuthzSession> sessions) {
+        for (OAuth2AuthzSession session : sessions) {
+            save(session);
+        }
+    }
+
+    @Override
+    public void remove(String accountId) {
+        sessions.remove(accountId);
+    }
+
+    @Override
+    public List<String> readAccountIds() {
+        return new ArrayList<String>(sessions.keySet());
+    }
+
+    @Override
+    public List<String> readAccountIds(String after, int pageSize) {
+        return readPage(sessions, after, pageSize);
+    }
+
+    /**
+     * Reads a page of the keys of a sorted map.
+     *
+     * @param sessions sessions by account ID
+     * @param after the last ID of the previous page, or null for the first
+     *            page
+     * @param pageSize the largest number of IDs to read
+     * @return the IDs following after, at most pageSize of them
+     */
+    static List<String> readPage(ConcurrentNavigableMap<String, OAuth2AuthzSession> sessions, String after, int pageSize) {
+        Collection<String> following = after == null ? sessions.keySet() : sessions.tailMap(after, false).keySet();
+        List<String> page = new ArrayList<String>(Math.min(pageSize, 16));
+        for (String accountId : following) {
+            if (page.size() == pageSize) {
+                break;
+            }
+            page.add(accountId);
+        }
+        return page;
+    }
+
+}
@@ -16,6 +16,7 @@
  */
 package org.jboss.aerogear.android.authorization.oauth2;
 
+import android.content.Context;
 import android.util.Pair;
 
 import java.net.URL;
@@ -23,6 +24,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * Authorization configuration class.
@@ -41,6 +43,15 @@ public final class OAuth2Properties {
     private String accountId = "";
     private Set<Pair<String, String>> additionalAuthorizationParams = new HashSet<Pair<String, String>>();
     private Set<Pair<String, String>> additionalAccessParams = new HashSet<Pair<String, String>>();
+    private long refreshAheadMargin = 0;
+    private long refreshAheadJitter = 0;
+    private OAuth2TokenTransport tokenTransport;
+    private Context inProcessContext;
+    private Executor exchangeExecutor;
+    private OAuth2RetryPolicy retryPolicy;
+    private boolean offlineMode = false;
+    private long offlineGracePeriod = 0;
+    private volatile OAuth2TokenRequestTemplate tokenRequestTemplate;
 
     /**
      * 
@@ -101,6 +112,7 @@ public final class OAuth2Properties {
      */
     public void setRedirectURL(String redirectURL) {
         this.redirectURL = redirectURL;
+        this.tokenRequestTemplate = null;
     }
 
     /**
@@ -123,6 +135,7 @@ public final class OAuth2Properties {
      */
     public void setAccessTokenEndpoint(String accessTokenEndpoint) {
         this.accessTokenEndpoint = accessTokenEndpoint;
+        this.tokenRequestTemplate = null;
     }
 
     /**
@@ -165,6 +178,7 @@ public final class OAuth2Properties {
      */
     public void setClientId(String clientId) {
         this.clientId = clientId;
+        this.tokenRequestTemplate = null;
     }
 
     /**
@@ -183,6 +197,7 @@ public final class OAuth2Properties {
      */
     public void setClientSecret(String clientSecret) {
         this.clientSecret = clientSecret;
+        this.tokenRequestTemplate = null;
     }
 
     /**
@@ -255,6 +270,227 @@ public final class OAuth2Properties {
      */
     public void setRefreshEndpoint(String refreshEndpoint) {
         this.refreshEndpoint = refreshEndpoint;
+        this.tokenRequestTemplate = null;
+    }
+
+    /**
+     * The refresh ahead margin is how many milliseconds before a token expires
+     * the {@link OAuth2TokenEngine} will refresh it in the background.
+     * 
+     * Defaults to 0, which disables refreshing ahead.
+     * 
+     * @return the current refreshAheadMargin
+     */
+    public long getRefreshAheadMargin() {
+        return refreshAheadMargin;
+    }
+
+    /**
+     * The refresh ahead margin is how many milliseconds before a token expires
+     * the {@link OAuth2TokenEngine} will refresh it in the background.
+     * 
+     * Defaults to 0, which disables refreshing ahead.
+     * 
+     * @param refreshAheadMargin a new margin in milliseconds.
+     */
+    public void setRefreshAheadMargin(long refreshAheadMargin) {
+        this.refreshAheadMargin = refreshAheadMargin;
+    }
+
+    /**
+     * The refresh ahead jitter is the largest random number of milliseconds
+     * a background refresh is moved forward by.
+     * 
+     * Defaults to 0.
+     * 
+     * @return the current refreshAheadJitter
+     */
+    public long getRefreshAheadJitter() {
+        return refreshAheadJitter;
+    }
+
+    /**
+     * The refresh ahead jitter is the largest random number of milliseconds
+     * a background refresh is moved forward by.
+     * 
+     * Defaults to 0.
+     * 
+     * @param refreshAheadJitter a new jitter in milliseconds.
+     */
+    public void setRefreshAheadJitter(long refreshAheadJitter) {
+        this.refreshAheadJitter = refreshAheadJitter;
+    }
+
+    /**
+     * The token transport sends the token requests of this account. If it is
+     * null the transport of the {@link OAuth2TokenEngine} is used.
+     * 
+     * Defaults to null.
+     * 
+     * @return the current tokenTransport
+     */
+    public OAuth2TokenTransport getTokenTransport() {
+        return tokenTransport;
+    }
+
+    /**
+     * The token transport sends the token requests of this account. If it is
+     * null the transport of the {@link OAuth2TokenEngine} is used.
+     * 
+     * Defaults to null.
+     * 
+     * @param tokenTransport a new transport.
+     */
+    public void setTokenTransport(OAuth2TokenTransport tokenTransport) {
+        this.tokenTransport = tokenTransport;
+    }
+
+    /**
+     * If the in process context is set the module runs the token engine in
+     * its own process instead of binding the {@link OAuth2AuthzService}.
+     * 
+     * Defaults to null.
+     * 
+     * @return the current inProcessContext
+     */
+    public Context getInProcessContext() {
+        return inProcessContext;
+    }
+
+    /**
+     * If the in process context is set the module runs the token engine in
+     * its own process instead of binding the {@link OAuth2AuthzService}.
+     * 
+     * Defaults to null.
+     * 
+     * @param inProcessContext a context to open the session store with
+     */
+    public void setInProcessContext(Context inProcessContext) {
+        this.inProcessContext = inProcessContext;
+    }
+
+    /**
+     * The exchange executor runs the token exchanges which modules and
+     * {@link OAuth2FetchAccess} start asynchronously.
+     * 
+     * Defaults to null, which uses a pool of four threads shared by every
+     * module.
+     * 
+     * @return the current exchangeExecutor
+     */
+    public Executor getExchangeExecutor() {
+        return exchangeExecutor;
+    }
+
+    /**
+     * The exchange executor runs the token exchanges which modules and
+     * {@link OAuth2FetchAccess} start asynchronously.
+     * 
+     * Defaults to null, which uses a pool of four threads shared by every
+     * module.
+     * 
+     * @param exchangeExecutor a new executor
+     */
+    public void setExchangeExecutor(Executor exchangeExecutor) {
+        this.exchangeExecutor = exchangeExecutor;
+    }
+
+    /**
+     * The retry policy says how failed token requests are retried and when
+     * the token endpoint is given a rest.
+     * 
+     * Defaults to null, which sends every token request once and never
+     * opens a circuit breaker.
+     * 
+     * @return the current retryPolicy
+     */
+    public OAuth2RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * The retry policy says how failed token requests are retried and when
+     * the token endpoint is given a rest.
+     * 
+     * Defaults to null, which sends every token request once and never
+     * opens a circuit breaker.
+     * 
+     * @param retryPolicy a new policy
+     */
+    public void setRetryPolicy(OAuth2RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * In offline mode the {@link OAuth2TokenEngine} checks for a network
+     * connection before it sends a token request. Without one the request
+     * fails at once instead of waiting for a connect timeout, and the
+     * refresh is retried when the connection returns.
+     * 
+     * Defaults to false.
+     * 
+     * @return the current offlineMode
+     */
+    public boolean isOfflineMode() {
+        return offlineMode;
+    }
+
+    /**
+     * In offline mode the {@link OAuth2TokenEngine} checks for a network
+     * connection before it sends a token request. Without one the request
+     * fails at once instead of waiting for a connect timeout, and the
+     * refresh is retried when the connection returns.
+     * 
+     * Defaults to false.
+     * 
+     * @param offlineMode true to enable offline mode
+     */
+    public void setOfflineMode(boolean offlineMode) {
+        this.offlineMode = offlineMode;
+    }
+
+    /**
+     * The offline grace period is how many milliseconds after it expired an
+     * access token is still handed out in offline mode while the device has
+     * no connection.
+     * 
+     * Defaults to 0, which hands out no expired token.
+     * 
+     * @return the current offlineGracePeriod
+     */
+    public long getOfflineGracePeriod() {
+        return offlineGracePeriod;
+    }
+
+    /**
+     * The offline grace period is how many milliseconds after it expired an
+     * access token is still handed out in offline mode while the device has
+     * no connection.
+     * 
+     * Defaults to 0, which hands out no expired token.
+     * 
+     * @param offlineGracePeriod a new grace period in milliseconds
+     */
+    public void setOfflineGracePeriod(long offlineGracePeriod) {
+        this.offlineGracePeriod = offlineGracePeriod;
+    }
+
+    /**
+     * Returns these properties compiled into a token request template. The
+     * template is built on first use and kept until a value compiled into it
+     * changes.
+     * 
+     * @return the token request template of these properties
+     */
+    OAuth2TokenRequestTemplate getTokenRequestTemplate() {
+        OAuth2TokenRequestTemplate template = tokenRequestTemplate;
+        // additionalAccessParams is handed out as a live set, so it may have
+        // changed without passing through a setter.
+        if (template == null || !template.wasCompiledFrom(additionalAccessParams)) {
+            template = new OAuth2TokenRequestTemplate(this);
+            tokenRequestTemplate = template;
+        }
+        return template;
     }
 
 }
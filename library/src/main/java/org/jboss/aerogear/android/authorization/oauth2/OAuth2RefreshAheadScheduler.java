@@ -0,0 +1,195 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes tokens in the background shortly before they expire.
+ *
+ * Every account gets one entry in a {@link DelayQueue}, ordered by the time
+ * its refresh is due. A single worker thread sleeps until the earliest entry
+ * is due and asks the {@link OAuth2TokenEngine} to refresh that account.
+ * Each refresh is moved forward by a random jitter so devices that were
+ * issued tokens together do not all refresh together.
+ */
+class OAuth2RefreshAheadScheduler {
+
+    private static final String TAG = OAuth2RefreshAheadScheduler.class.getSimpleName();
+
+    private final OAuth2TokenEngine engine;
+    private final DelayQueue<ScheduledRefresh> queue = new DelayQueue<ScheduledRefresh>();
+    private final ConcurrentHashMap<String, ScheduledRefresh> scheduled = new ConcurrentHashMap<String, ScheduledRefresh>();
+    private final Random random = new Random();
+    private Thread worker;
+
+    OAuth2RefreshAheadScheduler(OAuth2TokenEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Schedules a background refresh for session if config enables refreshing
+     * ahead. An account which is already scheduled for the same expiry is left
+     * alone.
+     *
+     * @param session the session to refresh
+     * @param config the config the refresh will use
+     */
+    void schedule(OAuth2AuthzSession session, OAuth2Properties config) {
+        long margin = config.getRefreshAheadMargin();
+        long expiresOn = session.getExpires_on();
+        if (margin <= 0 || expiresOn == 0 || isNullOrEmpty(session.getRefreshToken())) {
+            return;
+        }
+
+        String accountId = session.getAccountId();
+        ScheduledRefresh current = scheduled.get(accountId);
+        if (current != null && current.expiresOn == expiresOn) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long jitter = config.getRefreshAheadJitter();
+        long refreshAt = expiresOn - margin;
+        if (jitter > 0) {
+            refreshAt -= (long) (random.nextDouble() * jitter);
+        }
+        // Tokens which live shorter than the margin are refreshed half way
+        // through their lifetime instead of immediately and repeatedly.
+        long halfLife = now + (expiresOn - now) / 2;
+        if (refreshAt < halfLife) {
+            refreshAt = halfLife;
+        }
+
+        ScheduledRefresh refresh = new ScheduledRefresh(accountId, config, expiresOn, refreshAt);
+        scheduled.put(accountId, refresh);
+        queue.offer(refresh);
+        ensureWorker();
+    }
+
+    /**
+     * Removes the scheduled refresh for accountId, if any.
+     *
+     * @param accountId the account to stop refreshing
+     */
+    void cancel(String accountId) {
+        ScheduledRefresh refresh = scheduled.remove(accountId);
+        if (refresh != null) {
+            queue.remove(refresh);
+        }
+    }
+
+    /**
+     * @param accountId an account
+     * @return the time in milliseconds a background refresh of accountId is
+     *         due, or 0 if none is scheduled
+     */
+    long getScheduledRefreshTime(String accountId) {
+        ScheduledRefresh refresh = scheduled.get(accountId);
+        return refresh == null ? 0 : refresh.refreshAt;
+    }
+
+    /**
+     * Stops the worker thread and drops every scheduled refresh.
+     */
+    synchronized void shutdown() {
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+        scheduled.clear();
+        queue.clear();
+    }
+
+    private synchronized void ensureWorker() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runRefreshes();
+            }
+        }, TAG);
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    private void runRefreshes() {
+        while (!Thread.currentThread().isInterrupted()) {
+            ScheduledRefresh refresh;
+            try {
+                refresh = queue.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+
+            // An account that was rescheduled or cancelled leaves a stale entry
+            // behind in the queue.
+            if (!scheduled.remove(refresh.accountId, refresh)) {
+                continue;
+            }
+
+            try {
+                engine.refreshAhead(refresh.accountId, refresh.config, refresh.expiresOn - refresh.refreshAt);
+            } catch (OAuth2AuthorizationException ex) {
+                Log.w(TAG, "Background refresh of " + refresh.accountId + " failed", ex);
+            } catch (RuntimeException ex) {
+                Log.w(TAG, "Background refresh of " + refresh.accountId + " failed", ex);
+            }
+        }
+    }
+
+    private static boolean isNullOrEmpty(String value) {
+        return (value == null || value.isEmpty());
+    }
+
+    private static final class ScheduledRefresh implements Delayed {
+
+        private final String accountId;
+        private final OAuth2Properties config;
+        private final long expiresOn;
+        private final long refreshAt;
+
+        private ScheduledRefresh(String accountId, OAuth2Properties config, long expiresOn, long refreshAt) {
+            this.accountId = accountId;
+            this.config = config;
+            this.expiresOn = expiresOn;
+            this.refreshAt = refreshAt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(refreshAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long otherRefreshAt = ((ScheduledRefresh) other).refreshAt;
+            return refreshAt < otherRefreshAt ? -1 : (refreshAt == otherRefreshAt ? 0 : 1);
+        }
+
+    }
+
+}
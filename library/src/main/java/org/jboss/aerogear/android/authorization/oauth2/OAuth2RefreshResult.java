@@ -0,0 +1,82 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+/**
+ * The outcome of refreshing one account in
+ * {@link OAuth2TokenEngine#refreshAccounts(java.util.Map)}.
+ *
+ * A successful result holds the stored session, or null if the account did
+ * not exist or had nothing to exchange. A failed result holds the exception
+ * the exchange threw.
+ */
+public final class OAuth2RefreshResult {
+
+    private final String accountId;
+    private final OAuth2AuthzSession session;
+    private final Exception failure;
+
+    private OAuth2RefreshResult(String accountId, OAuth2AuthzSession session, Exception failure) {
+        this.accountId = accountId;
+        this.session = session;
+        this.failure = failure;
+    }
+
+    static OAuth2RefreshResult success(String accountId, OAuth2AuthzSession session) {
+        return new OAuth2RefreshResult(accountId, session, null);
+    }
+
+    static OAuth2RefreshResult failure(String accountId, Exception failure) {
+        return new OAuth2RefreshResult(accountId, null, failure);
+    }
+
+    public String getAccountId() {
+        return accountId;
+    }
+
+    /**
+     * @return a copy of the stored session; changing it does not change the
+     *         stored session
+     */
+    public OAuth2AuthzSession getSession() {
+        return session;
+    }
+
+    /**
+     * @return the access token of the session or null
+     */
+    public String getAccessToken() {
+        return session == null ? null : session.getAccessToken();
+    }
+
+    /**
+     * @return the exception the exchange failed with or null
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    public boolean isSuccess() {
+        return failure == null;
+    }
+
+    @Override
+    public String toString() {
+        return "OAuth2RefreshResult{" + "accountId=" + accountId + ", success=" + isSuccess() + ", failure=" + failure + '}';
+    }
+
+}
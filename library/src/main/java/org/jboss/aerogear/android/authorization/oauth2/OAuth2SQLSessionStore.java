@@ -0,0 +1,130 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import org.jboss.aerogear.android.store.DataManager;
+import org.jboss.aerogear.android.store.generator.IdGenerator;
+import org.jboss.aerogear.android.store.sql.SQLStore;
+import org.jboss.aerogear.android.store.sql.SQLStoreConfiguration;
+
+/**
+ * Keeps sessions in the SQLite database of an aerogear {@link SQLStore}, as
+ * earlier versions did. {@link OAuth2ColumnarSessionStore#FACTORY} moves
+ * sessions from this store into its own table the first time it opens.
+ *
+ * SQLStore only ever inserts rows when it saves, so saving removes the rows
+ * of the old session in the same transaction.
+ */
+public final class OAuth2SQLSessionStore implements OAuth2SessionStore {
+
+    private static final String STORE_NAME = "sessionStore";
+
+    /**
+     * Opens the SQLStore named "sessionStore" through the DataManager.
+     */
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public OAuth2SessionStore open(Context applicationContext) {
+            DataManager.config(STORE_NAME, SQLStoreConfiguration.class)
+                    .withContext(applicationContext)
+                    .withIdGenerator(new IdGenerator() {
+                        @Override
+                        public Serializable generate() {
+                            return UUID.randomUUID().toString();
+                        }
+                    }).store(OAuth2AuthzSession.class);
+
+            SQLStore<OAuth2AuthzSession> store = (SQLStore<OAuth2AuthzSession>) DataManager.getStore(STORE_NAME);
+            store.openSync();
+            return new OAuth2SQLSessionStore(store);
+        }
+    };
+
+    private final SQLStore<OAuth2AuthzSession> store;
+
+    /**
+     * @param store an open SQLStore of {@link OAuth2AuthzSession}s
+     */
+    public OAuth2SQLSessionStore(SQLStore<OAuth2AuthzSession> store) {
+        this.store = store;
+    }
+
+    @Override
+    public OAuth2AuthzSession read(String accountId) {
+        return store.read(accountId);
+    }
+
+    @Override
+    public void save(OAuth2AuthzSession session) {
+        SQLiteDatabase database = store.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            store.remove(session.getAccountId());
+            store.save(session);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    @Override
+    public void save(Collection<OAuth2AuthzSession> sessions) {
+        SQLiteDatabase database = store.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for (OAuth2AuthzSession session : sessions) {
+                store.remove(session.getAccountId());
+            }
+            store.save(sessions);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    @Override
+    public void remove(String accountId) {
+        store.remove(accountId);
+    }
+
+    /**
+     * Closes the SQLStore.
+     */
+    void close() {
+        store.close();
+    }
+
+    @Override
+    public List<String> readAccountIds() {
+        return OAuth2AuthzSessionIds.readAll(store.getReadableDatabase());
+    }
+
+    @Override
+    public List<String> readAccountIds(String after, int pageSize) {
+        return OAuth2AuthzSessionIds.readPage(store.getReadableDatabase(), after, pageSize);
+    }
+
+}
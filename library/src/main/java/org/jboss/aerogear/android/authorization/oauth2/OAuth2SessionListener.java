@@ -0,0 +1,39 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+/**
+ * Hears about every session an {@link OAuth2TokenEngine} stores or removes,
+ * whichever caller caused the change: a module, a batch refresh or the
+ * refresh ahead scheduler.
+ *
+ * Listeners are called on the thread which changed the session, right after
+ * the change reached the session store, so they must return quickly.
+ */
+public interface OAuth2SessionListener {
+
+    /**
+     * @param session a copy of the session which was stored
+     */
+    void onSessionSaved(OAuth2AuthzSession session);
+
+    /**
+     * @param accountId the account whose session was removed
+     */
+    void onSessionRemoved(String accountId);
+
+}
@@ -0,0 +1,99 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A session store keeps the {@link OAuth2AuthzSession}s of the
+ * {@link OAuth2TokenEngine}, keyed by account ID.
+ *
+ * Four backends ship with the library: {@link OAuth2ColumnarSessionStore},
+ * the default, {@link OAuth2SQLSessionStore}, which keeps sessions in an
+ * aerogear SQLStore as earlier versions did,
+ * {@link OAuth2MemorySessionStore} for tests and sessions which should not
+ * outlive the process, and {@link OAuth2JournalSessionStore}, which appends
+ * every change to a file. The backend is chosen with
+ * {@link OAuth2TokenEngine#setSessionStoreFactory(Factory)}.
+ *
+ * Implementations must be safe to call from several threads at once.
+ */
+public interface OAuth2SessionStore {
+
+    /**
+     * @param accountId the account to read
+     * @return the session of accountId or null if there is none
+     */
+    OAuth2AuthzSession read(String accountId);
+
+    /**
+     * Saves a session, replacing any session stored for its account.
+     *
+     * @param session the session to save
+     */
+    void save(OAuth2AuthzSession session);
+
+    /**
+     * Saves several sessions at once, replacing any sessions stored for
+     * their accounts. Either all of them are saved or none is.
+     *
+     * @param sessions the sessions to save
+     */
+    void save(Collection<OAuth2AuthzSession> sessions);
+
+    /**
+     * Removes the session of accountId, if any.
+     *
+     * @param accountId the account to remove
+     */
+    void remove(String accountId);
+
+    /**
+     * @return the IDs of every stored account
+     */
+    List<String> readAccountIds();
+
+    /**
+     * Reads a page of account IDs in ID order.
+     *
+     * @param after the last ID of the previous page, or null for the first
+     *            page
+     * @param pageSize the largest number of IDs to read
+     * @return the IDs following after, at most pageSize of them
+     */
+    List<String> readAccountIds(String after, int pageSize);
+
+    /**
+     * Opens the session store of the process. It is called once, on a
+     * background thread.
+     */
+    interface Factory {
+
+        /**
+         * @param applicationContext the application context
+         * @return an open session store
+         * @throws IOException if the store can not be opened
+         */
+        OAuth2SessionStore open(Context applicationContext) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,108 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Opens the session store once per process, on a background thread.
+ *
+ * The first {@link #open(Context)} starts the work and every later call
+ * returns the same future. If opening failed the next call tries again.
+ */
+final class OAuth2SessionStoreOpener {
+
+    private static final String TAG = OAuth2SessionStoreOpener.class.getSimpleName();
+
+    private static OAuth2SessionStore.Factory factory = OAuth2ColumnarSessionStore.FACTORY;
+    private static FutureTask<OAuth2SessionStore> opening;
+    private static volatile long timeToReady = -1;
+
+    private OAuth2SessionStoreOpener() {
+    }
+
+    /**
+     * @param context the application context
+     * @return a future which completes with the open session store
+     */
+    static synchronized Future<OAuth2SessionStore> open(final Context context) {
+        if (opening != null && !hasFailed(opening)) {
+            return opening;
+        }
+
+        final OAuth2SessionStore.Factory storeFactory = factory;
+        final long start = System.nanoTime();
+        opening = new FutureTask<OAuth2SessionStore>(new Callable<OAuth2SessionStore>() {
+            @Override
+            public OAuth2SessionStore call() throws Exception {
+                OAuth2SessionStore store = storeFactory.open(context);
+                timeToReady = (System.nanoTime() - start) / 1000000;
+                Log.d(TAG, "Session store ready after " + timeToReady + "ms");
+                return store;
+            }
+        });
+
+        Thread opener = new Thread(opening, TAG);
+        opener.setDaemon(true);
+        opener.start();
+        return opening;
+    }
+
+    /**
+     * @param factory the factory later calls to {@link #open(Context)} use
+     * @throws IllegalStateException if the store has already been opened
+     */
+    static synchronized void setFactory(OAuth2SessionStore.Factory factory) {
+        if (factory == null) {
+            throw new IllegalArgumentException("factory may not be null");
+        }
+        if (opening != null && !hasFailed(opening)) {
+            throw new IllegalStateException("The session store has already been opened");
+        }
+        OAuth2SessionStoreOpener.factory = factory;
+    }
+
+    /**
+     * @return the milliseconds between the first {@link #open(Context)} call
+     *         and the store being open, or -1 if it is not open yet
+     */
+    static long getTimeToReady() {
+        return timeToReady;
+    }
+
+    private static boolean hasFailed(Future<?> future) {
+        if (!future.isDone()) {
+            return false;
+        }
+        try {
+            future.get();
+            return false;
+        } catch (ExecutionException ex) {
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+}
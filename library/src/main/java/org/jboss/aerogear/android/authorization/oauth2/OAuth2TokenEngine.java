@@ -0,0 +1,1118 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.jboss.aerogear.android.pipe.http.HttpException;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The token engine manages tokens for Authorization sessions. It performs
+ * the OAuth2 Access Token/ Authorization exchanges and manages refresh
+ * tokens.
+ * 
+ * The engine is a plain class. Each process runs one, kept by
+ * {@link OAuth2InProcessEngine}; {@link OAuth2AuthzService} hands it to the
+ * modules which bind the service and modules which work in process use it
+ * directly, so both share one session cache and one exchange per account.
+ */
+public class OAuth2TokenEngine {
+
+    private volatile OAuth2SessionStore sessionStore;
+    private volatile Future<OAuth2SessionStore> sessionStoreReady;
+    private final OAuth2AuthzSessionCache sessionCache = new OAuth2AuthzSessionCache();
+    private final ConcurrentHashMap<String, FutureTask<OAuth2AuthzSession>> pendingExchanges = new ConcurrentHashMap<String, FutureTask<OAuth2AuthzSession>>();
+    private final OAuth2RefreshAheadScheduler refreshAheadScheduler = new OAuth2RefreshAheadScheduler(this);
+    private volatile OAuth2TokenTransport tokenTransport = new HttpURLConnectionTokenTransport();
+    private final OAuth2HostQueue hostQueue = new OAuth2HostQueue(MAX_BATCH_REFRESHES_PER_HOST);
+    private final ConcurrentHashMap<String, OAuth2CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, OAuth2CircuitBreaker>();
+    private final Random retryJitter = new Random();
+    private final CopyOnWriteArrayList<OAuth2SessionListener> sessionListeners = new CopyOnWriteArrayList<OAuth2SessionListener>();
+    private ThreadPoolExecutor batchExecutor;
+    private volatile Context applicationContext;
+    private volatile OAuth2ConnectivityMonitor connectivity;
+    private static volatile OAuth2Metrics metrics = new OAuth2MetricsRecorder();
+    private static final String TAG = OAuth2TokenEngine.class.getSimpleName();
+
+    /**
+     * The number of threads {@link #refreshAccounts(Map)} runs exchanges on.
+     */
+    public static final int MAX_BATCH_REFRESHES = 4;
+
+    /**
+     * The number of exchanges {@link #refreshAccounts(Map)} sends to a single
+     * token endpoint host at once.
+     */
+    public static final int MAX_BATCH_REFRESHES_PER_HOST = 2;
+
+    public OAuth2TokenEngine() {
+    }
+
+    /**
+     * Starts opening the session store and keeps the context connectivity
+     * is checked with. {@link OAuth2InProcessEngine} calls this when it
+     * creates the engine of the process.
+     *
+     * @param applicationContext the application context
+     */
+    void open(Context applicationContext) {
+        this.applicationContext = applicationContext;
+        sessionStoreReady = OAuth2SessionStoreOpener.open(applicationContext);
+    }
+
+    /**
+     * Stops the background work of the engine.
+     */
+    void shutdown() {
+        refreshAheadScheduler.shutdown();
+        synchronized (this) {
+            if (batchExecutor != null) {
+                batchExecutor.shutdown();
+                batchExecutor = null;
+            }
+            if (connectivity != null) {
+                connectivity.shutdown();
+            }
+        }
+    }
+
+    /**
+     * This will exchange an Authorization token for an Access Token
+     * 
+     * @param accountId the ID for the {@link OAuth2AuthzSession}
+     * @param config the config
+     * @return an accesstoken
+     * @throws OAuth2AuthorizationException if something went wrong in the
+     *             exchange
+     */
+    public String fetchAccessToken(String accountId, OAuth2Properties config) throws OAuth2AuthorizationException {
+        long mainThreadStart = mainThreadStart();
+        try {
+            return fetchAccessTokenTimed(accountId, config);
+        } finally {
+            recordMainThread(mainThreadStart);
+        }
+    }
+
+    private String fetchAccessTokenTimed(String accountId, OAuth2Properties config) throws OAuth2AuthorizationException {
+        OAuth2AuthzSession storedAccount = readSession(accountId);
+        if (storedAccount == null) {
+            return null;
+        }
+
+        if (!isNullOrEmpty(storedAccount.getAccessToken()) && storedAccount.tokenIsNotExpired()) {
+            refreshAheadScheduler.schedule(storedAccount, config);
+            return storedAccount.getAccessToken();
+        }
+
+        if (canExchange(storedAccount) && isOffline(config)) {
+            resumeWhenConnected(accountId, config);
+            long graceUntil = System.currentTimeMillis() - config.getOfflineGracePeriod();
+            if (!isNullOrEmpty(storedAccount.getAccessToken()) && config.getOfflineGracePeriod() > 0
+                    && storedAccount.tokenIsNotExpiredAt(graceUntil)) {
+                metrics.increment(OAuth2Metrics.Counter.OFFLINE_GRACE);
+                return storedAccount.getAccessToken();
+            }
+            metrics.increment(OAuth2Metrics.Counter.OFFLINE);
+            throw new OAuth2AuthorizationException("temporarily_unavailable");
+        }
+
+        OAuth2AuthzSession refreshedAccount = refreshOnce(accountId, config, System.currentTimeMillis(), null);
+        if (refreshedAccount == null) {
+            return null;
+        }
+        refreshAheadScheduler.schedule(refreshedAccount, config);
+        return refreshedAccount.getAccessToken();
+    }
+
+    /**
+     * Exchanges the refresh token of accountId because a resource server
+     * rejected rejectedAccessToken, even if that token has not expired yet.
+     * If the stored access token is no longer the rejected one, another
+     * caller has already replaced it and it is returned without an
+     * exchange.
+     * 
+     * @param accountId the ID for the {@link OAuth2AuthzSession}
+     * @param rejectedAccessToken the access token which was rejected
+     * @param config the config
+     * @return the new access token or null if there is no account
+     * @throws OAuth2AuthorizationException if something went wrong in the
+     *             exchange
+     */
+    public String refreshRejectedAccessToken(String accountId, String rejectedAccessToken, OAuth2Properties config) throws OAuth2AuthorizationException {
+        if (rejectedAccessToken == null) {
+            throw new IllegalArgumentException("rejectedAccessToken may not be null");
+        }
+        long mainThreadStart = mainThreadStart();
+        try {
+            OAuth2AuthzSession refreshedAccount = refreshOnce(accountId, config, System.currentTimeMillis(), rejectedAccessToken);
+            if (refreshedAccount == null) {
+                return null;
+            }
+            refreshAheadScheduler.schedule(refreshedAccount, config);
+            return refreshedAccount.getAccessToken();
+        } finally {
+            recordMainThread(mainThreadStart);
+        }
+    }
+
+    /**
+     * Exchanges an authorization code for an access token and stores the
+     * resulting session. The store is never read; the new session replaces any
+     * session stored for accountId in a single save, after the exchange has
+     * succeeded.
+     * 
+     * @param accountId the ID for the {@link OAuth2AuthzSession}
+     * @param clientId the client ID the code was issued to
+     * @param code the authorization code
+     * @param config the config
+     * @return a copy of the stored session; changing it does not change the
+     *         stored session
+     * @throws OAuth2AuthorizationException if something went wrong in the
+     *             exchange
+     */
+    public OAuth2AuthzSession exchangeAuthorizationCode(String accountId, String clientId, String code, OAuth2Properties config) throws OAuth2AuthorizationException {
+        OAuth2AuthzSession session = new OAuth2AuthzSession();
+        session.setAccountId(accountId);
+        session.setClientId(clientId);
+        session.setAuthorizationCode(code);
+
+        if (isOffline(config)) {
+            metrics.increment(OAuth2Metrics.Counter.OFFLINE);
+            throw new OAuth2AuthorizationException("temporarily_unavailable");
+        }
+
+        long mainThreadStart = mainThreadStart();
+        try {
+            exchangeAuthorizationCodeForAccessToken(session, config);
+            replaceSession(session);
+            refreshAheadScheduler.schedule(session, config);
+            return new OAuth2AuthzSession(session);
+        } finally {
+            recordMainThread(mainThreadStart);
+        }
+    }
+
+    /**
+     * Refreshes the expired tokens of several accounts which share a config.
+     * 
+     * @param accountIds the IDs of the {@link OAuth2AuthzSession}s to refresh
+     * @param config the config
+     * @return the outcome of every account, in the order of accountIds
+     * @see #refreshAccounts(Map)
+     */
+    public Map<String, OAuth2RefreshResult> refreshAccounts(Collection<String> accountIds, OAuth2Properties config) {
+        Map<String, OAuth2Properties> accounts = new LinkedHashMap<String, OAuth2Properties>();
+        for (String accountId : accountIds) {
+            accounts.put(accountId, config);
+        }
+        return refreshAccounts(accounts);
+    }
+
+    /**
+     * Refreshes the expired tokens of several accounts at once.
+     * 
+     * The exchanges run concurrently on up to {@link #MAX_BATCH_REFRESHES}
+     * threads, with no more than {@link #MAX_BATCH_REFRESHES_PER_HOST} of them
+     * talking to the same token endpoint host. Accounts whose token is still
+     * valid are not exchanged. The refreshed sessions are saved in a single
+     * store batch once every exchange has finished.
+     * 
+     * A failed exchange does not fail the batch; it is reported in the result
+     * of its account.
+     * 
+     * @param accounts the IDs of the {@link OAuth2AuthzSession}s to refresh
+     *            and the config of each
+     * @return the outcome of every account, in the iteration order of
+     *         accounts
+     */
+    public Map<String, OAuth2RefreshResult> refreshAccounts(Map<String, OAuth2Properties> accounts) {
+        final long now = System.currentTimeMillis();
+        final List<OAuth2AuthzSession> unsaved = Collections.synchronizedList(new ArrayList<OAuth2AuthzSession>());
+        Map<String, FutureTask<OAuth2AuthzSession>> exchanges = new LinkedHashMap<String, FutureTask<OAuth2AuthzSession>>();
+        Map<String, FutureTask<OAuth2AuthzSession>> owned = new HashMap<String, FutureTask<OAuth2AuthzSession>>();
+
+        // Each exchange is registered like a single refresh so that
+        // fetchAccessToken calls made meanwhile wait for it. They stay
+        // registered until the batch is saved.
+        for (Map.Entry<String, OAuth2Properties> account : accounts.entrySet()) {
+            final String accountId = account.getKey();
+            final OAuth2Properties config = account.getValue();
+            FutureTask<OAuth2AuthzSession> exchange = new FutureTask<OAuth2AuthzSession>(new Callable<OAuth2AuthzSession>() {
+                @Override
+                public OAuth2AuthzSession call() throws Exception {
+                    return exchangeTokens(accountId, config, now, null, unsaved);
+                }
+            });
+
+            FutureTask<OAuth2AuthzSession> inFlight = pendingExchanges.putIfAbsent(accountId, exchange);
+            if (inFlight == null) {
+                owned.put(accountId, exchange);
+                String host = HttpURLConnectionTokenTransport.hostKey(config.getTokenRequestTemplate().getRefreshURL());
+                hostQueue.execute(host, exchange, batchExecutor());
+                inFlight = exchange;
+            }
+            exchanges.put(accountId, inFlight);
+        }
+
+        try {
+            Map<String, OAuth2RefreshResult> results = new LinkedHashMap<String, OAuth2RefreshResult>();
+            for (Map.Entry<String, FutureTask<OAuth2AuthzSession>> exchange : exchanges.entrySet()) {
+                String accountId = exchange.getKey();
+                try {
+                    results.put(accountId, OAuth2RefreshResult.success(accountId, copyOf(awaitExchange(exchange.getValue()))));
+                } catch (OAuth2AuthorizationException ex) {
+                    results.put(accountId, OAuth2RefreshResult.failure(accountId, ex));
+                } catch (RuntimeException ex) {
+                    results.put(accountId, OAuth2RefreshResult.failure(accountId, ex));
+                }
+            }
+
+            if (!unsaved.isEmpty()) {
+                long start = System.nanoTime();
+                store().save(unsaved);
+                metrics.record(OAuth2Metrics.Timer.STORE_WRITE, System.nanoTime() - start);
+                for (OAuth2AuthzSession session : unsaved) {
+                    sessionCache.put(session.getAccountId(), session);
+                    refreshAheadScheduler.schedule(session, accounts.get(session.getAccountId()));
+                    sessionSaved(session);
+                }
+            }
+
+            return results;
+        } finally {
+            for (Map.Entry<String, FutureTask<OAuth2AuthzSession>> exchange : owned.entrySet()) {
+                pendingExchanges.remove(exchange.getKey(), exchange.getValue());
+            }
+        }
+    }
+
+    /**
+     * Refreshes the token of accountId if it expires within lead milliseconds.
+     * The refresh ahead scheduler passes how long before expiry the refresh
+     * was due, jitter included, so a refresh it runs is not judged fresh.
+     * 
+     * @param accountId the ID for the {@link OAuth2AuthzSession}
+     * @param config the config
+     * @param lead a token which is still valid lead milliseconds from now is
+     *            not refreshed
+     * @throws OAuth2AuthorizationException if something went wrong in the
+     *             exchange
+     */
+    void refreshAhead(String accountId, OAuth2Properties config, long lead) throws OAuth2AuthorizationException {
+        long freshUntil = System.currentTimeMillis() + lead;
+        OAuth2AuthzSession refreshedAccount = refreshOnce(accountId, config, freshUntil, null);
+        if (refreshedAccount != null) {
+            refreshAheadScheduler.schedule(refreshedAccount, config);
+        }
+    }
+
+    /**
+     * Runs a single token exchange for accountId. If an exchange for the same
+     * account is already in flight the caller waits for it and shares its
+     * result instead of sending a second grant to the token endpoint.
+     * Exchanges for different accounts never wait on each other.
+     * 
+     * @param accountId the ID for the {@link OAuth2AuthzSession}
+     * @param config the config
+     * @param freshUntil a token which is still valid at this time is not
+     *            exchanged
+     * @param rejectedAccessToken if not null the token is exchanged while it
+     *            is this one, whatever its expiry, and freshUntil is ignored
+     * @return the stored session after the exchange or null if the account
+     *         has nothing to exchange
+     * @throws OAuth2AuthorizationException if something went wrong in the
+     *             exchange
+     */
+    private OAuth2AuthzSession refreshOnce(final String accountId, final OAuth2Properties config, final long freshUntil, final String rejectedAccessToken)
+            throws OAuth2AuthorizationException {
+        while (true) {
+            FutureTask<OAuth2AuthzSession> refresh = new FutureTask<OAuth2AuthzSession>(new Callable<OAuth2AuthzSession>() {
+                @Override
+                public OAuth2AuthzSession call() throws Exception {
+                    return exchangeTokens(accountId, config, freshUntil, rejectedAccessToken, null);
+                }
+            });
+
+            FutureTask<OAuth2AuthzSession> inFlight = pendingExchanges.putIfAbsent(accountId, refresh);
+            if (inFlight == null) {
+                try {
+                    refresh.run();
+                } finally {
+                    pendingExchanges.remove(accountId, refresh);
+                }
+                return awaitExchange(refresh);
+            }
+
+            OAuth2AuthzSession shared = awaitExchange(inFlight);
+            // The exchange in flight may have judged the rejected token still
+            // fresh by its expiry; then this caller needs one of its own.
+            if (rejectedAccessToken == null || shared == null || !rejectedAccessToken.equals(shared.getAccessToken())) {
+                return shared;
+            }
+        }
+    }
+
+    /**
+     * @param rejectedAccessToken if not null the token is exchanged while it
+     *            is this one, whatever its expiry
+     * @param unsaved if not null the exchanged session is added to it instead
+     *            of being saved
+     */
+    private OAuth2AuthzSession exchangeTokens(String accountId, OAuth2Properties config, long freshUntil, String rejectedAccessToken,
+            List<OAuth2AuthzSession> unsaved) throws OAuth2AuthorizationException {
+        // Another caller may have finished an exchange between our read and
+        // this one; its token is good so there is no need to spend a grant.
+        OAuth2AuthzSession storedAccount = readSession(accountId);
+        if (storedAccount == null) {
+            return null;
+        }
+
+        if (!isNullOrEmpty(storedAccount.getAccessToken())) {
+            boolean fresh = rejectedAccessToken == null
+                    ? storedAccount.tokenIsNotExpiredAt(freshUntil)
+                    : !rejectedAccessToken.equals(storedAccount.getAccessToken());
+            if (fresh) {
+                return storedAccount;
+            }
+        }
+
+        if (!canExchange(storedAccount)) {
+            return null;
+        }
+        if (isOffline(config)) {
+            resumeWhenConnected(accountId, config);
+            metrics.increment(OAuth2Metrics.Counter.OFFLINE);
+            throw new OAuth2AuthorizationException("temporarily_unavailable");
+        }
+
+        // Cached sessions are shared, so the exchange works on a copy.
+        OAuth2AuthzSession updatedAccount = new OAuth2AuthzSession(storedAccount);
+        if (!isNullOrEmpty(updatedAccount.getRefreshToken())) {
+            metrics.increment(OAuth2Metrics.Counter.REFRESH);
+            if (rejectedAccessToken != null) {
+                metrics.increment(OAuth2Metrics.Counter.REFRESH_REJECTED);
+            }
+            refreshAccount(updatedAccount, config);
+        } else {
+            exchangeAuthorizationCodeForAccessToken(updatedAccount, config);
+        }
+
+        if (unsaved == null) {
+            saveSession(updatedAccount);
+        } else {
+            unsaved.add(updatedAccount);
+        }
+        return updatedAccount;
+    }
+
+    private boolean canExchange(OAuth2AuthzSession session) {
+        return !isNullOrEmpty(session.getRefreshToken()) || !isNullOrEmpty(session.getAuthorizationCode());
+    }
+
+    /**
+     * @return true if config is in offline mode and the device has no
+     *         network connection
+     */
+    private boolean isOffline(OAuth2Properties config) {
+        return config.isOfflineMode() && !connectivity().isConnected();
+    }
+
+    /**
+     * Refreshes the token of accountId once the device is online again.
+     */
+    private void resumeWhenConnected(final String accountId, final OAuth2Properties config) {
+        final Runnable refresh = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refreshAhead(accountId, config, config.getRefreshAheadMargin());
+                } catch (OAuth2AuthorizationException ex) {
+                    Log.w(TAG, "Refresh of " + accountId + " after reconnecting failed", ex);
+                } catch (RuntimeException ex) {
+                    Log.w(TAG, "Refresh of " + accountId + " after reconnecting failed", ex);
+                }
+            }
+        };
+        connectivity().whenConnected(accountId, new Runnable() {
+            @Override
+            public void run() {
+                OAuth2ExchangeExecutors.orDefault(config.getExchangeExecutor()).execute(refresh);
+            }
+        });
+    }
+
+    private OAuth2ConnectivityMonitor connectivity() {
+        OAuth2ConnectivityMonitor monitor = connectivity;
+        if (monitor == null) {
+            synchronized (this) {
+                monitor = connectivity;
+                if (monitor == null) {
+                    monitor = new OAuth2ConnectivityMonitor(applicationContext);
+                    connectivity = monitor;
+                }
+            }
+        }
+        return monitor;
+    }
+
+    private synchronized ThreadPoolExecutor batchExecutor() {
+        if (batchExecutor == null) {
+            batchExecutor = new ThreadPoolExecutor(MAX_BATCH_REFRESHES, MAX_BATCH_REFRESHES, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, TAG + "-refresh-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            batchExecutor.allowCoreThreadTimeOut(true);
+        }
+        return batchExecutor;
+    }
+
+    private OAuth2AuthzSession awaitExchange(FutureTask<OAuth2AuthzSession> exchange) throws OAuth2AuthorizationException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return exchange.get();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof OAuth2AuthorizationException) {
+                throw (OAuth2AuthorizationException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Put a session into the store.
+     * 
+     * @param account a new session
+     */
+    public void addAccount(OAuth2AuthzSession account) {
+        saveSession(new OAuth2AuthzSession(account));
+    }
+
+    /**
+     * Will check if there is an account which has previously been granted an
+     * authorization code and access code
+     * 
+     * @param accountId the accountId to check
+     * @return true if there is a session for the account.
+     */
+    public boolean hasAccount(String accountId) {
+        OAuth2AuthzSession storedAccount = readSession(accountId);
+        if (storedAccount == null) {
+            return false;
+        }
+        return !isNullOrEmpty(storedAccount.getAuthorizationCode())
+                || !isNullOrEmpty(storedAccount.getAccessToken());
+    }
+
+    /**
+     * Returns the OAuth2AuthzSession for accountId if any. The session is a
+     * copy; changing it does not change the stored session.
+     * 
+     * @param accountId the accountId to look up
+     * @return a copy of the OAuth2AuthzSession or null
+     */
+    public OAuth2AuthzSession getAccount(String accountId) {
+        return copyOf(readSession(accountId));
+    }
+
+    /**
+     * Fetches the IDs of all OAuth2AuthzSessions in the system. The IDs are
+     * read on their own; no session is loaded.
+     * 
+     * @return the IDs of all OAuth2AuthzSession's in the system
+     */
+    public List<String> getAccounts() {
+        long start = System.nanoTime();
+        List<String> accountIds = store().readAccountIds();
+        metrics.record(OAuth2Metrics.Timer.STORE_READ, System.nanoTime() - start);
+        return accountIds;
+    }
+
+    /**
+     * Iterates over all OAuth2AuthzSessions in the system in account ID
+     * order. IDs are read pageSize at a time and each session is read when
+     * the iterator reaches it, so memory use is bounded by the page size
+     * rather than the number of sessions.
+     * 
+     * Sessions added while iterating may or may not be returned; sessions
+     * removed before the iterator reaches them are skipped.
+     * 
+     * @param pageSize the number of account IDs to read at once
+     * @return the sessions in the system
+     */
+    public Iterable<OAuth2AuthzSession> getSessions(final int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        }
+        return new Iterable<OAuth2AuthzSession>() {
+            @Override
+            public Iterator<OAuth2AuthzSession> iterator() {
+                return new SessionPageIterator(pageSize);
+            }
+        };
+    }
+
+    private void exchangeAuthorizationCodeForAccessToken(OAuth2AuthzSession storedAccount, OAuth2Properties config) throws OAuth2AuthorizationException {
+        OAuth2TokenRequestTemplate template = config.getTokenRequestTemplate();
+        runAccountAction(storedAccount, config, template.codeExchangeBody(storedAccount), template.getAccessTokenURL(),
+                OAuth2Metrics.Timer.EXCHANGE_AUTHORIZATION_CODE);
+    }
+
+    private void refreshAccount(OAuth2AuthzSession storedAccount, OAuth2Properties config) throws OAuth2AuthorizationException {
+        OAuth2TokenRequestTemplate template = config.getTokenRequestTemplate();
+        runAccountAction(storedAccount, config, template.refreshBody(storedAccount), template.getRefreshURL(),
+                OAuth2Metrics.Timer.EXCHANGE_REFRESH_TOKEN);
+    }
+
+    private void runAccountAction(OAuth2AuthzSession storedAccount, OAuth2Properties config, byte[] body, URL endpoint,
+            OAuth2Metrics.Timer timer) throws OAuth2AuthorizationException {
+        long start = System.nanoTime();
+        boolean exchanged = false;
+        try {
+
+            final OAuth2TokenTransport transport = config.getTokenTransport() == null ? tokenTransport : config.getTokenTransport();
+
+            HeaderAndBody headerAndBody;
+
+            try {
+                headerAndBody = post(transport, endpoint, body, config.getRetryPolicy());
+
+            } catch (HttpException exception) {
+                if (exception.getStatusCode() == HttpURLConnection.HTTP_BAD_REQUEST) {
+                    OAuth2TokenResponse response = OAuth2TokenResponseParser.parse(exception.getData(), contentType(exception));
+                    String error = response.getError();
+                    throw new OAuth2AuthorizationException(error == null ? "" : error);
+                } else {
+                    throw exception;
+                }
+            }
+
+            OAuth2TokenResponse response = OAuth2TokenResponseParser.parse(headerAndBody.getBody(), contentType(headerAndBody));
+            if (isNullOrEmpty(response.getAccessToken())) {
+                if (response.getError() != null) {
+                    throw new OAuth2AuthorizationException(response.getError());
+                }
+                Log.e(TAG, "Token response did not contain an access_token");
+                throw new OAuth2AuthorizationException(new String(headerAndBody.getBody(), "UTF-8"));
+            }
+
+            storedAccount.setAccessToken(response.getAccessToken());
+
+            // Will need to check token_type one day
+            if (response.getExpiresIn() >= 0) {
+                storedAccount.setExpires_on(OAuth2Tokens.expiresOn(new Date().getTime(), response.getExpiresIn()));
+            }
+
+            if (!isNullOrEmpty(response.getRefreshToken())) {
+                storedAccount.setRefreshToken(response.getRefreshToken());
+            }
+
+            storedAccount.setAuthorizationCode("");
+            exchanged = true;
+
+        } catch (UnsupportedEncodingException ex) {
+            // Should never happen...
+            Log.d(OAuth2TokenEngine.class.getName(), null, ex);
+            throw new RuntimeException(ex);
+        } finally {
+            metrics.record(timer, System.nanoTime() - start);
+            if (!exchanged) {
+                metrics.increment(OAuth2Metrics.Counter.EXCHANGE_FAILED);
+            }
+        }
+    }
+
+    /**
+     * Posts body to endpoint, retrying server and I/O errors as policy says.
+     * 
+     * @param policy the retry policy, or null to post once
+     * @throws OAuth2AuthorizationException if the circuit breaker of endpoint
+     *             is open
+     */
+    private HeaderAndBody post(OAuth2TokenTransport transport, URL endpoint, byte[] body, OAuth2RetryPolicy policy)
+            throws OAuth2AuthorizationException {
+        if (policy == null) {
+            return transport.post(endpoint, body);
+        }
+
+        OAuth2CircuitBreaker breaker = circuitBreaker(endpoint);
+        RuntimeException failure = null;
+        for (int attempt = 1;; attempt++) {
+            if (!breaker.allowRequest(System.currentTimeMillis())) {
+                metrics.increment(OAuth2Metrics.Counter.CIRCUIT_OPEN);
+                if (failure != null) {
+                    throw failure;
+                }
+                throw new OAuth2AuthorizationException("temporarily_unavailable");
+            }
+
+            long retryAfter = -1;
+            try {
+                HeaderAndBody response = transport.post(endpoint, body);
+                breaker.onSuccess();
+                return response;
+            } catch (HttpException exception) {
+                if (!isTransient(exception)) {
+                    // The endpoint answered, so it is healthy
+                    breaker.onSuccess();
+                    throw exception;
+                }
+                failure = exception;
+                retryAfter = OAuth2RetryPolicy.parseRetryAfter(header(exception, "Retry-After"), System.currentTimeMillis());
+            } catch (RuntimeException exception) {
+                if (!(exception.getCause() instanceof IOException)) {
+                    breaker.endTrial();
+                    throw exception;
+                }
+                failure = exception;
+            }
+
+            long now = System.currentTimeMillis();
+            breaker.onFailure(now, policy);
+            if (retryAfter > policy.getMaxBackoff()) {
+                breaker.openFor(now, retryAfter);
+                throw failure;
+            }
+            if (attempt >= policy.getMaxAttempts()) {
+                throw failure;
+            }
+
+            long backoff = retryAfter >= 0 ? retryAfter : policy.backoff(attempt, retryJitter);
+            Log.d(TAG, "Retrying token request to " + endpoint + " in " + backoff + "ms");
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw failure;
+            }
+            metrics.increment(OAuth2Metrics.Counter.EXCHANGE_RETRIED);
+        }
+    }
+
+    /**
+     * @return true for statuses which say the server may answer a later
+     *         attempt: request timeout, too many requests and server errors
+     */
+    private static boolean isTransient(HttpException exception) {
+        int statusCode = exception.getStatusCode();
+        return statusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || statusCode == 429 || statusCode >= 500;
+    }
+
+    private OAuth2CircuitBreaker circuitBreaker(URL endpoint) {
+        String key = endpoint.toString();
+        OAuth2CircuitBreaker breaker = circuitBreakers.get(key);
+        if (breaker == null) {
+            OAuth2CircuitBreaker newBreaker = new OAuth2CircuitBreaker();
+            breaker = circuitBreakers.putIfAbsent(key, newBreaker);
+            if (breaker == null) {
+                breaker = newBreaker;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * @param endpoint a token endpoint
+     * @return true if token requests to endpoint currently fail without being
+     *         sent because its circuit breaker is open
+     */
+    public boolean isCircuitOpen(URL endpoint) {
+        OAuth2CircuitBreaker breaker = circuitBreakers.get(endpoint.toString());
+        return breaker != null && breaker.isOpen(System.currentTimeMillis());
+    }
+
+    private static String header(HttpException exception, String name) {
+        Map<String, String> headers = exception.getHeaders();
+        if (headers == null) {
+            return null;
+        }
+        String value = headers.get(name);
+        return value == null ? headers.get(name.toLowerCase(Locale.US)) : value;
+    }
+
+    private static String contentType(HeaderAndBody headerAndBody) {
+        Object contentType = headerAndBody.getHeader("Content-Type");
+        if (contentType == null) {
+            contentType = headerAndBody.getHeader("content-type");
+        }
+        return contentType == null ? null : contentType.toString();
+    }
+
+    private static String contentType(HttpException exception) {
+        Map<String, String> headers = exception.getHeaders();
+        if (headers == null) {
+            return null;
+        }
+        String contentType = headers.get("Content-Type");
+        return contentType == null ? headers.get("content-type") : contentType;
+    }
+
+    /**
+     * The token transport sends token requests for every account whose
+     * {@link OAuth2Properties} does not name its own transport.
+     * 
+     * Defaults to a {@link HttpURLConnectionTokenTransport}.
+     * 
+     * @return the current token transport
+     */
+    public OAuth2TokenTransport getTokenTransport() {
+        return tokenTransport;
+    }
+
+    /**
+     * The token transport sends token requests for every account whose
+     * {@link OAuth2Properties} does not name its own transport.
+     * 
+     * Defaults to a {@link HttpURLConnectionTokenTransport}.
+     * 
+     * @param tokenTransport a new token transport
+     */
+    public void setTokenTransport(OAuth2TokenTransport tokenTransport) {
+        if (tokenTransport == null) {
+            throw new IllegalArgumentException("tokenTransport may not be null");
+        }
+        this.tokenTransport = tokenTransport;
+    }
+
+    /**
+     * Removes the account with the provided ID
+     * 
+     * @param accountId 
+     */
+    public void removeAccount(String accountId) {
+        long start = System.nanoTime();
+        store().remove(accountId);
+        metrics.record(OAuth2Metrics.Timer.STORE_WRITE, System.nanoTime() - start);
+        sessionCache.invalidate(accountId);
+        refreshAheadScheduler.cancel(accountId);
+        for (OAuth2SessionListener listener : sessionListeners) {
+            listener.onSessionRemoved(accountId);
+        }
+    }
+
+    /**
+     * Registers a listener which hears about every session this engine
+     * stores or removes.
+     * 
+     * @param listener the listener to add
+     */
+    public void addSessionListener(OAuth2SessionListener listener) {
+        sessionListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * @param listener a listener added with
+     *            {@link #addSessionListener(OAuth2SessionListener)}
+     * @return true if listener was registered
+     */
+    public boolean removeSessionListener(OAuth2SessionListener listener) {
+        return sessionListeners.remove(listener);
+    }
+
+    /**
+     * Chooses the backend the session store of this process is opened with.
+     * The default is {@link OAuth2ColumnarSessionStore#FACTORY}.
+     * 
+     * The store is opened when the first engine is opened, so this must be
+     * called before that, for instance in Application.onCreate.
+     * 
+     * @param factory opens the session store
+     * @throws IllegalStateException if the session store is already open
+     */
+    public static void setSessionStoreFactory(OAuth2SessionStore.Factory factory) {
+        OAuth2SessionStoreOpener.setFactory(factory);
+    }
+
+    /**
+     * Chooses where the engines, their session store and the modules report
+     * their timings and counts. The default is an {@link OAuth2MetricsRecorder}
+     * which keeps them in memory.
+     * 
+     * @param metrics the metrics to report to
+     */
+    public static void setMetrics(OAuth2Metrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics may not be null");
+        }
+        OAuth2TokenEngine.metrics = metrics;
+    }
+
+    /**
+     * @return the metrics the authorization stack reports to
+     */
+    public static OAuth2Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The session cache answers account lookups without going to the session
+     * store. Its hit and miss counts show how often that happens.
+     * 
+     * @return the session cache of this engine
+     */
+    public OAuth2AuthzSessionCache getSessionCache() {
+        return sessionCache;
+    }
+
+    /**
+     * The session store is opened in the background when the engine is
+     * opened. Methods which need it wait for this future, so callers on the
+     * main thread should wait for it first, for instance with
+     * {@link #whenSessionStoreReady(Runnable)}.
+     * 
+     * @return a future which completes once the session store is open
+     */
+    public Future<?> getSessionStoreReady() {
+        return sessionStoreReady;
+    }
+
+    /**
+     * Runs action once the session store is open. If it already is, action
+     * runs immediately; otherwise the wait runs on the exchange pool and
+     * action is posted to the Looper of the calling thread, or runs on the
+     * pool thread if the calling thread has none.
+     * 
+     * @param action the action to run
+     */
+    public void whenSessionStoreReady(final Runnable action) {
+        final Future<?> ready = sessionStoreReady;
+        if (sessionStore != null || ready == null || ready.isDone()) {
+            action.run();
+            return;
+        }
+
+        Looper looper = Looper.myLooper();
+        final Handler handler = looper == null ? null : new Handler(looper);
+        OAuth2ExchangeExecutors.orDefault(null).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ready.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    // The action will see the failure when it uses the store
+                }
+                if (handler == null) {
+                    action.run();
+                } else {
+                    handler.post(action);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cold start metric: how long the session store took to open.
+     * 
+     * @return the milliseconds between the first engine of this process
+     *         being opened and its session store being open, or -1 if the
+     *         store is not open yet
+     */
+    public long getSessionStoreTimeToReady() {
+        return OAuth2SessionStoreOpener.getTimeToReady();
+    }
+
+    private OAuth2SessionStore store() {
+        OAuth2SessionStore store = sessionStore;
+        if (store != null) {
+            return store;
+        }
+
+        Future<OAuth2SessionStore> ready = sessionStoreReady;
+        if (ready == null) {
+            throw new IllegalStateException("The engine has not been opened");
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    store = ready.get();
+                    sessionStore = store;
+                    return store;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("The session store could not be opened", ex.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private OAuth2AuthzSession readSession(String accountId) {
+        OAuth2AuthzSession session = sessionCache.get(accountId);
+        if (session == null) {
+            metrics.increment(OAuth2Metrics.Counter.CACHE_MISS);
+            long loadToken = sessionCache.beginLoad();
+            long start = System.nanoTime();
+            session = store().read(accountId);
+            metrics.record(OAuth2Metrics.Timer.STORE_READ, System.nanoTime() - start);
+            if (session != null) {
+                sessionCache.putLoaded(accountId, session, loadToken);
+            }
+        } else {
+            metrics.increment(OAuth2Metrics.Counter.CACHE_HIT);
+        }
+        return session;
+    }
+
+    private static OAuth2AuthzSession copyOf(OAuth2AuthzSession session) {
+        return session == null ? null : new OAuth2AuthzSession(session);
+    }
+
+    private void saveSession(OAuth2AuthzSession session) {
+        long start = System.nanoTime();
+        store().save(session);
+        metrics.record(OAuth2Metrics.Timer.STORE_WRITE, System.nanoTime() - start);
+        sessionCache.put(session.getAccountId(), session);
+        sessionSaved(session);
+    }
+
+    private void sessionSaved(OAuth2AuthzSession session) {
+        for (OAuth2SessionListener listener : sessionListeners) {
+            listener.onSessionSaved(new OAuth2AuthzSession(session));
+        }
+    }
+
+    /**
+     * @return the current time in nanoseconds if this is the main thread,
+     *         otherwise -1
+     */
+    private static long mainThreadStart() {
+        Looper looper = Looper.myLooper();
+        return looper != null && looper == Looper.getMainLooper() ? System.nanoTime() : -1;
+    }
+
+    private static void recordMainThread(long mainThreadStart) {
+        if (mainThreadStart >= 0) {
+            metrics.record(OAuth2Metrics.Timer.MAIN_THREAD, System.nanoTime() - mainThreadStart);
+        }
+    }
+
+    private void replaceSession(OAuth2AuthzSession session) {
+        String accountId = session.getAccountId();
+        // Invalidating first stops a read of the old rows which is still in
+        // flight from caching them over the new session.
+        sessionCache.invalidate(accountId);
+        refreshAheadScheduler.cancel(accountId);
+        saveSession(session);
+    }
+
+    private boolean isNullOrEmpty(String value) {
+        return (value == null || value.isEmpty());
+    }
+
+    private class SessionPageIterator implements Iterator<OAuth2AuthzSession> {
+
+        private final int pageSize;
+        private List<String> page = Collections.emptyList();
+        private int index = 0;
+        private boolean lastPage = false;
+        private OAuth2AuthzSession next;
+
+        private SessionPageIterator(int pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (index == page.size()) {
+                    if (lastPage) {
+                        return false;
+                    }
+                    String after = page.isEmpty() ? null : page.get(page.size() - 1);
+                    long start = System.nanoTime();
+                    page = store().readAccountIds(after, pageSize);
+                    metrics.record(OAuth2Metrics.Timer.STORE_READ, System.nanoTime() - start);
+                    index = 0;
+                    lastPage = page.size() < pageSize;
+                    continue;
+                }
+                long start = System.nanoTime();
+                next = store().read(page.get(index++));
+                metrics.record(OAuth2Metrics.Timer.STORE_READ, System.nanoTime() - start);
+            }
+            return true;
+        }
+
+        @Override
+        public OAuth2AuthzSession next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            OAuth2AuthzSession session = next;
+            next = null;
+            return session;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
+
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import android.util.Pair;
+
+import java.net.URL;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.jboss.aerogear.android.pipe.util.UrlUtils.appendToBaseURL;
+
+/**
+ * The token requests of one {@link OAuth2Properties}, compiled ahead of time.
+ *
+ * A template resolves the access token and refresh endpoints once and
+ * compiles the parameters which do not change between requests into
+ * {@link OAuth2TokenRequestBodies}.
+ *
+ * Templates are immutable. {@link OAuth2Properties} drops its template when
+ * one of the values compiled into it changes.
+ */
+public final class OAuth2TokenRequestTemplate {
+
+    private final URL accessTokenURL;
+    private final URL refreshURL;
+    private final Set<Pair<String, String>> additionalAccessParams;
+    private final OAuth2TokenRequestBodies bodies;
+
+    /**
+     * @param config the properties to compile
+     */
+    public OAuth2TokenRequestTemplate(OAuth2Properties config) {
+        this.accessTokenURL = appendToBaseURL(config.getBaseURL(), config.getAccessTokenEndpoint());
+        this.refreshURL = appendToBaseURL(config.getBaseURL(), config.getRefreshEndpoint());
+        this.additionalAccessParams = new HashSet<Pair<String, String>>(config.getAdditionalAccessParams());
+        this.bodies = new OAuth2TokenRequestBodies(config.getClientId(), config.getClientSecret(), config.getRedirectURL(),
+                entries(additionalAccessParams));
+    }
+
+    public URL getAccessTokenURL() {
+        return accessTokenURL;
+    }
+
+    public URL getRefreshURL() {
+        return refreshURL;
+    }
+
+    /**
+     * @param params the current additional access params of the properties
+     * @return true if this template was compiled from the same params
+     */
+    boolean wasCompiledFrom(Set<Pair<String, String>> params) {
+        return additionalAccessParams.equals(params);
+    }
+
+    /**
+     * @param session the session to exchange the authorization code of
+     * @return the form encoded body of the code exchange
+     */
+    public byte[] codeExchangeBody(OAuth2AuthzSession session) {
+        return bodies.codeExchangeBody(session.getClientId(), session.getAuthorizationCode());
+    }
+
+    /**
+     * @param session the session to refresh
+     * @return the form encoded body of the refresh
+     */
+    public byte[] refreshBody(OAuth2AuthzSession session) {
+        return bodies.refreshBody(session.getClientId(), session.getRefreshToken());
+    }
+
+    /**
+     * @param pairs parameters as Android pairs
+     * @return the same parameters as map entries, in the same order
+     */
+    static List<Map.Entry<String, String>> entries(Iterable<Pair<String, String>> pairs) {
+        List<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>();
+        for (Pair<String, String> pair : pairs) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<String, String>(pair.first, pair.second));
+        }
+        return entries;
+    }
+
+}
@@ -0,0 +1,145 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import android.util.Pair;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.aerogear.android.pipe.module.AuthorizationFields;
+import org.jboss.aerogear.android.pipe.module.ModuleFields;
+
+/**
+ * An immutable copy of the token held by an {@link OAuth2AuthzModule}.
+ *
+ * The module publishes a new snapshot every time its session changes, so a
+ * reader always sees an access token, expiry and header which belong
+ * together.
+ *
+ * The snapshot also builds the {@link AuthorizationFields} and
+ * {@link ModuleFields} for its token once, so the module can hand them to
+ * every request without allocating. They are shared and must not be
+ * modified.
+ */
+public final class OAuth2TokenSnapshot {
+
+    static final AuthorizationFields NO_AUTHORIZATION_FIELDS = authorizationFields(Collections.<Pair<String, String>>emptyList());
+    static final ModuleFields NO_MODULE_FIELDS = moduleFields(Collections.<Pair<String, String>>emptyList());
+
+    private final String accessToken;
+    private final long expiresOn;
+    private final long generation;
+    private final String authorizationHeader;
+    private final AuthorizationFields authorizationFields;
+    private final ModuleFields moduleFields;
+    // The session the token was copied from, so the module can keep its
+    // account in step with the snapshot it published
+    final OAuth2AuthzSession session;
+
+    /**
+     * @param session the session to copy the token from
+     */
+    public OAuth2TokenSnapshot(OAuth2AuthzSession session) {
+        this(session, 0);
+    }
+
+    /**
+     * @param session the session to copy the token from
+     * @param generation the generation of the token
+     */
+    public OAuth2TokenSnapshot(OAuth2AuthzSession session, long generation) {
+        this.session = session;
+        this.accessToken = session.getAccessToken();
+        this.expiresOn = session.getExpires_on();
+        this.generation = generation;
+        this.authorizationHeader = OAuth2Tokens.authorizationHeader(accessToken);
+
+        List<Pair<String, String>> headers = Collections.singletonList(new Pair<String, String>("Authorization", authorizationHeader));
+        this.authorizationFields = authorizationFields(headers);
+        this.moduleFields = moduleFields(headers);
+    }
+
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    public long getExpiresOn() {
+        return expiresOn;
+    }
+
+    /**
+     * The module numbers the tokens it issues. A new access token gets the
+     * next generation; a snapshot of the same access token keeps its
+     * generation.
+     * 
+     * @return the generation of this token
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the value of the Authorization header for this token
+     */
+    public String getAuthorizationHeader() {
+        return authorizationHeader;
+    }
+
+    /**
+     * @return the shared AuthorizationFields for this token
+     */
+    AuthorizationFields getAuthorizationFields() {
+        return authorizationFields;
+    }
+
+    /**
+     * @return the shared ModuleFields for this token
+     */
+    ModuleFields getModuleFields() {
+        return moduleFields;
+    }
+
+    /**
+     * @return true if there is an access token
+     */
+    public boolean hasAccessToken() {
+        return accessToken != null && !accessToken.isEmpty();
+    }
+
+    /**
+     * @return true if there is an access token and it has not expired
+     */
+    public boolean isValid() {
+        return hasAccessToken() && OAuth2Tokens.isNotExpiredAt(expiresOn, System.currentTimeMillis());
+    }
+
+    private static AuthorizationFields authorizationFields(List<Pair<String, String>> headers) {
+        AuthorizationFields fields = new AuthorizationFields();
+        fields.setHeaders(headers);
+        fields.setQueryParameters(Collections.<Pair<String, String>>emptyList());
+        return fields;
+    }
+
+    private static ModuleFields moduleFields(List<Pair<String, String>> headers) {
+        ModuleFields fields = new ModuleFields();
+        fields.setHeaders(headers);
+        fields.setQueryParameters(Collections.<Pair<String, String>>emptyList());
+        return fields;
+    }
+
+}
@@ -0,0 +1,51 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2;
+
+import java.net.URL;
+
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.jboss.aerogear.android.pipe.http.HttpException;
+
+/**
+ * A transport sends token requests to the token endpoint of an
+ * authorization server.
+ *
+ * The default transport is {@link HttpURLConnectionTokenTransport}. An
+ * application which already has an HTTP client, for instance one which
+ * speaks HTTP/2, can implement this interface and set it on
+ * {@link OAuth2TokenEngine#setTokenTransport(OAuth2TokenTransport)} or
+ * {@link OAuth2AuthorizationConfiguration#setTokenTransport(OAuth2TokenTransport)}.
+ *
+ * Implementations must be safe to call from several threads at once.
+ */
+public interface OAuth2TokenTransport {
+
+    /**
+     * Posts a form encoded body to a token endpoint.
+     *
+     * @param endpoint the token endpoint
+     * @param formBody an application/x-www-form-urlencoded request body
+     *
+     * @return the headers and body of a 2xx response
+     *
+     * @throws HttpException if the endpoint responds with any other status.
+     *             The exception must carry the response body and headers.
+     */
+    HeaderAndBody post(URL endpoint, byte[] formBody) throws HttpException;
+
+}
@@ -15,12 +15,9 @@
  */
 package org.jboss.aerogear.android.authorization.oauth2;
 
-import android.net.Uri;
-import android.util.Pair;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import static org.jboss.aerogear.android.pipe.util.UrlUtils.appendToBaseURL;
 
@@ -35,37 +32,14 @@ public final class OAuth2Utils {
 
     public static URL buildAuthzURL(OAuth2Properties config, String state) throws UnsupportedEncodingException, MalformedURLException {
         URL authzEndpoint = appendToBaseURL(config.getBaseURL(), config.getAuthzEndpoint());
-        Uri redirectURL = Uri.parse(config.getRedirectURL());
-        
-        ArrayList<String> scopes = new ArrayList<String>(config.getScopes());
-        String clientId = config.getClientId();
-
-        String query = "?scope=%s&redirect_uri=%s&client_id=%s&state=%s&response_type=code";
-        query = String.format(query, formatScopes(scopes),
-                URLEncoder.encode(redirectURL.toString(), "UTF-8"),
-                clientId, state);
-
-        if (config.getAdditionalAuthorizationParams() != null
-                && config.getAdditionalAuthorizationParams().size() > 0) {
-            for (Pair<String, String> param : config.getAdditionalAuthorizationParams()) {
-                query += String.format("&%s=%s", URLEncoder.encode(param.first, "UTF-8"), URLEncoder.encode(param.second, "UTF-8"));
-            }
-        }
-
-        return new URL(authzEndpoint.toString() + query);
+        return OAuth2AuthzURLBuilder.build(authzEndpoint, config.getRedirectURL(), config.getScopes(), config.getClientId(), state,
+                config.getAdditionalAuthorizationParams() == null
+                        ? null
+                        : OAuth2TokenRequestTemplate.entries(config.getAdditionalAuthorizationParams()));
     }
 
     public static String formatScopes(ArrayList<String> scopes) throws UnsupportedEncodingException {
-
-        StringBuilder scopeValue = new StringBuilder();
-        String append = "";
-        for (String scope : scopes) {
-            scopeValue.append(append);
-            scopeValue.append(URLEncoder.encode(scope, "UTF-8"));
-            append = "+";
-        }
-
-        return scopeValue.toString();
+        return OAuth2AuthzURLBuilder.formatScopes(scopes);
     }
 
 }
@@ -16,21 +16,18 @@
 package org.jboss.aerogear.android.authorization.oauth2.intent;
 
 import android.app.Activity;
-import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
-import android.os.IBinder;
 import android.util.Log;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.UUID;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzModule;
-import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzService;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzSession;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2FetchAccess;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2Properties;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2TokenEngine;
 import org.jboss.aerogear.android.authorization.oauth2.OAuth2Utils;
 import org.jboss.aerogear.android.core.Callback;
 
@@ -48,36 +45,38 @@ public class OAuth2IntentAuthzModule extends OAuth2AuthzModule {
     public void requestAccess(final Activity activity, final Callback<String> callback) {
         final String state = UUID.randomUUID().toString();
 
-        final OAuth2AuthzService.AGAuthzServiceConnection connection = new OAuth2AuthzService.AGAuthzServiceConnection() {
+        withEngine(activity, new Callback<OAuth2TokenEngine>() {
 
             @Override
-            public void onServiceConnected(ComponentName className, IBinder iBinder) {
-                super.onServiceConnected(className, iBinder);
-                doRequestAccess(state, activity, callback, this);
+            public void onSuccess(OAuth2TokenEngine connected) {
+                connected.whenSessionStoreReady(new Runnable() {
+                    @Override
+                    public void run() {
+                        doRequestAccess(state, activity, callback);
+                    }
+                });
             }
 
-        };
+            @Override
+            public void onFailure(Exception e) {
+                callback.onFailure(e);
+            }
 
-        activity.bindService(new Intent(activity.getApplicationContext(), OAuth2AuthzService.class
-        ), connection, Context.BIND_AUTO_CREATE
-        );
+        });
     }
 
-    private void doRequestAccess(String state, Activity activity, Callback<String> callback, OAuth2AuthzService.AGAuthzServiceConnection instance) {
-        service = instance.getService();
-
+    private void doRequestAccess(String state, Activity activity, final Callback<String> callback) {
         if (isNullOrEmpty(accountId)) {
             throw new IllegalArgumentException("need to have accountId set");
         }
 
-        if (!service.hasAccount(accountId)) {
+        if (!engine.hasAccount(accountId)) {
             try {
                 
                 if (activity.getIntent() == null ||  activity.getIntent().getData() == null) {
                     URL authzURL = OAuth2Utils.buildAuthzURL(config, state);
                     Intent intent = new Intent(Intent.ACTION_VIEW);
                     intent.setData(Uri.parse(authzURL.toString()));
-                    activity.unbindService(instance);
                     activity.startActivity(intent);
                 } else {
                     
@@ -89,15 +88,21 @@ public class OAuth2IntentAuthzModule extends OAuth2AuthzModule {
                         return;
                     }
                     
-                    OAuth2AuthzSession session = new OAuth2AuthzSession();
-                    session.setAuthorizationCode(code);
-                    session.setAccountId(accountId);
-                    session.setClientId(clientId);
-                    service.addAccount(session);
-                    
-                    OAuth2FetchAccess fetcher = new OAuth2FetchAccess(service);
-                    fetcher.fetchAccessCode(accountId, config, callback);   
-                    account = service.getAccount(accountId);
+                    OAuth2FetchAccess fetcher = new OAuth2FetchAccess(engine, config.getExchangeExecutor());
+                    fetcher.exchangeAuthorizationCode(accountId, clientId, code, config, new Callback<OAuth2AuthzSession>() {
+
+                        @Override
+                        public void onSuccess(OAuth2AuthzSession session) {
+                            setAccount(session);
+                            callback.onSuccess(session.getAccessToken());
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            callback.onFailure(e);
+                        }
+
+                    });
                 }
                 
             } catch (UnsupportedEncodingException ex) {
@@ -109,9 +114,9 @@ public class OAuth2IntentAuthzModule extends OAuth2AuthzModule {
             }
         } else {
 
-            OAuth2FetchAccess fetcher = new OAuth2FetchAccess(service);
+            OAuth2FetchAccess fetcher = new OAuth2FetchAccess(engine, config.getExchangeExecutor());
             fetcher.fetchAccessCode(accountId, config, callback);
-            account = service.getAccount(accountId);
+            setAccount(engine.getAccount(accountId));
         }
     }
 
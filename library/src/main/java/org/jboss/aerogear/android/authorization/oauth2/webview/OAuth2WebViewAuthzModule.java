@@ -18,13 +18,8 @@ package org.jboss.aerogear.android.authorization.oauth2.webview;
 
 import org.jboss.aerogear.android.authorization.oauth2.*;
 import android.app.Activity;
-import android.content.ComponentName;
-import android.content.Context;
-import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.ServiceConnection;
 import android.os.Handler;
-import android.os.IBinder;
 import android.os.Looper;
 import java.util.UUID;
 
@@ -57,67 +52,87 @@ public class OAuth2WebViewAuthzModule extends OAuth2AuthzModule {
 
         final String state = UUID.randomUUID().toString();
 
-        final OAuth2AuthzService.AGAuthzServiceConnection connection = new OAuth2AuthzService.AGAuthzServiceConnection() {
+        withEngine(activity, new Callback<OAuth2TokenEngine>() {
 
             @Override
-            public void onServiceConnected(ComponentName className, IBinder iBinder) {
-                super.onServiceConnected(className, iBinder);
-                doRequestAccess(state, activity, callback, this);
+            public void onSuccess(OAuth2TokenEngine connected) {
+                connected.whenSessionStoreReady(new Runnable() {
+                    @Override
+                    public void run() {
+                        doRequestAccess(state, activity, callback);
+                    }
+                });
             }
 
-        };
+            @Override
+            public void onFailure(Exception e) {
+                callback.onFailure(e);
+            }
 
-        activity.bindService(new Intent(activity.getApplicationContext(), OAuth2AuthzService.class
-                ), connection, Context.BIND_AUTO_CREATE
-                );
+        });
 
     }
 
 
-    private void doRequestAccess(final String state, final Activity activity, final Callback<String> callback, final OAuth2AuthzService.AGAuthzServiceConnection instance) {
-
-        service = instance.getService();
+    private void doRequestAccess(final String state, final Activity activity, final Callback<String> callback) {
 
         if (isNullOrEmpty(accountId)) {
             throw new IllegalArgumentException("need to have accountId set");
         }
 
-        if (!service.hasAccount(accountId)) {
+        if (!engine.hasAccount(accountId)) {
 
             OAuth2WebFragmentFetchAutorization authzFetch = new OAuth2WebFragmentFetchAutorization(activity, state);
-            authzFetch.performAuthorization(config, new OAuth2AuthorizationCallback(activity, callback, instance));
+            authzFetch.performAuthorization(config, new OAuth2AuthorizationCallback(activity, callback));
 
         } else {
 
-            OAuth2FetchAccess fetcher = new OAuth2FetchAccess(service);
-            fetcher.fetchAccessCode(accountId, config, new OAuth2AccessCallback(activity, callback, instance));
+            OAuth2FetchAccess fetcher = new OAuth2FetchAccess(engine, config.getExchangeExecutor());
+            fetcher.fetchAccessCode(accountId, config, new OAuth2AccessCallback(activity, callback));
 
         }
 
     }
 
 
+    /**
+     * @return a Handler for the Looper of the calling thread, or null if the
+     *         thread has none, in which case callbacks are delivered directly
+     */
+    private static Handler handlerForCallingThread() {
+        Looper looper = Looper.myLooper();
+        return looper == null ? null : new Handler(looper);
+    }
+
+    private static void deliver(Handler handler, Runnable delivery) {
+        if (handler == null) {
+            delivery.run();
+        } else {
+            handler.post(delivery);
+        }
+    }
+
     private class OAuth2AccessCallback implements Callback<String> {
 
         private final Activity callingActivity;
         private final Callback<String> originalCallback;
-        private final ServiceConnection serviceConnection;
         private final Handler myHandler;
 
-        public OAuth2AccessCallback(Activity callingActivity, Callback<String> originalCallback, ServiceConnection serviceConnection) {
+        public OAuth2AccessCallback(Activity callingActivity, Callback<String> originalCallback) {
             this.callingActivity = callingActivity;
             this.originalCallback = originalCallback;
-            this.serviceConnection = serviceConnection;
-            myHandler = new Handler(Looper.myLooper());
+            myHandler = handlerForCallingThread();
         }
 
         @Override
         public void onSuccess(final String accessToken) {
-            account = service.getAccount(accountId);
-            try {
-                callingActivity.unbindService(serviceConnection);
-            } catch (IllegalArgumentException ignore) {}
-            myHandler.post(new Runnable() {
+            onSession(engine.getAccount(accountId));
+        }
+
+        private void onSession(OAuth2AuthzSession session) {
+            setAccount(session);
+            final String accessToken = session == null ? null : session.getAccessToken();
+            deliver(myHandler, new Runnable() {
                 @Override
                 public void run() {
                     originalCallback.onSuccess(accessToken);
@@ -127,12 +142,9 @@ public class OAuth2WebViewAuthzModule extends OAuth2AuthzModule {
 
         @Override
         public void onFailure(final Exception e) {
-            myHandler.post(new Runnable() {
+            deliver(myHandler, new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        callingActivity.unbindService(serviceConnection);
-                    } catch (IllegalArgumentException ignore) {}
                     originalCallback.onFailure(e);
                 }
             });
@@ -143,36 +155,39 @@ public class OAuth2WebViewAuthzModule extends OAuth2AuthzModule {
 
         private final Activity callingActivity;
         private final Callback<String> originalCallback;
-        private final ServiceConnection serviceConnection;
         private final Handler myHandler;
 
-        public OAuth2AuthorizationCallback(Activity callingActivity, Callback<String> originalCallback, ServiceConnection serviceConnection) {
+        public OAuth2AuthorizationCallback(Activity callingActivity, Callback<String> originalCallback) {
             this.callingActivity = callingActivity;
             this.originalCallback = originalCallback;
-            this.serviceConnection = serviceConnection;
-            myHandler = new Handler(Looper.myLooper());
+            myHandler = handlerForCallingThread();
         }
 
         @Override
         public void onSuccess(final String code) {
-            OAuth2AuthzSession session = new OAuth2AuthzSession();
-            session.setAuthorizationCode(code);
-            session.setAccountId(accountId);
-            session.setClientId(clientId);
-            service.addAccount(session);
-
-            OAuth2FetchAccess fetcher = new OAuth2FetchAccess(service);
-            fetcher.fetchAccessCode(accountId, config, new OAuth2AccessCallback(callingActivity, originalCallback, serviceConnection));
+            final OAuth2AccessCallback accessCallback = new OAuth2AccessCallback(callingActivity, originalCallback);
+
+            OAuth2FetchAccess fetcher = new OAuth2FetchAccess(engine, config.getExchangeExecutor());
+            fetcher.exchangeAuthorizationCode(accountId, clientId, code, config, new Callback<OAuth2AuthzSession>() {
+
+                @Override
+                public void onSuccess(OAuth2AuthzSession session) {
+                    accessCallback.onSession(session);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    accessCallback.onFailure(e);
+                }
+
+            });
         }
 
         @Override
         public void onFailure(final Exception e) {
-            myHandler.post(new Runnable() {
+            deliver(myHandler, new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        callingActivity.unbindService(serviceConnection);
-                    } catch (IllegalArgumentException ignore) {}
                     originalCallback.onFailure(e);
                 }
             });
@@ -0,0 +1,88 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzSession;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2JournalSessionStore;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2MemorySessionStore;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2SessionStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Token updates written to the session stores which run without a device.
+ * Four accounts take turns, so the journal appends, compacts now and then,
+ * and the cost of compaction is spread over the writes. The SQLite backed
+ * stores are compared with these in OAuth2SessionStoreTest on a device.
+ */
+@State(Scope.Benchmark)
+public class SessionStoreWriteBenchmark {
+
+    @Param({ "memory", "journal" })
+    public String backend;
+
+    private File journal;
+    private OAuth2SessionStore store;
+    private OAuth2AuthzSession[] sessions;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        if ("journal".equals(backend)) {
+            journal = File.createTempFile("sessions", ".journal");
+            journal.delete();
+            store = new OAuth2JournalSessionStore(journal);
+        } else {
+            store = new OAuth2MemorySessionStore();
+        }
+
+        sessions = new OAuth2AuthzSession[4];
+        for (int i = 0; i < sessions.length; i++) {
+            OAuth2AuthzSession session = new OAuth2AuthzSession();
+            session.setAccountId("account" + i);
+            session.setClientId("mobile-client");
+            session.setAccessToken("2YotnFZFEjr1zCsicMWpAA" + i);
+            session.setRefreshToken("tGzv3JOkF0XG5Qx2TlKWIA" + i);
+            session.setExpires_on(System.currentTimeMillis() + 60 * 60 * 1000);
+            sessions[i] = session;
+            store.save(session);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (store instanceof OAuth2JournalSessionStore) {
+            ((OAuth2JournalSessionStore) store).close();
+            journal.delete();
+        }
+    }
+
+    @Benchmark
+    public OAuth2SessionStore saveToken() {
+        OAuth2AuthzSession session = sessions[next++ & 3];
+        store.save(session);
+        return store;
+    }
+
+}
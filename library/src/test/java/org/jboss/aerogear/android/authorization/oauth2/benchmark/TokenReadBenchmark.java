@@ -0,0 +1,86 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authorization.oauth2.benchmark;
+
+import java.net.URI;
+import java.net.URL;
+
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2AuthzSession;
+import org.jboss.aerogear.android.authorization.oauth2.OAuth2Properties;
+import org.jboss.aerogear.android.authorization.oauth2.webview.OAuth2WebViewAuthzModule;
+import org.jboss.aerogear.android.pipe.module.AuthorizationFields;
+import org.jboss.aerogear.android.pipe.module.ModuleFields;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The reads every request makes through a module once a token is in place.
+ * The module is a real OAuth2WebViewAuthzModule holding a published token.
+ * Run with the gc profiler, gc.alloc.rate.norm should stay at zero bytes
+ * per operation.
+ */
+@State(Scope.Benchmark)
+public class TokenReadBenchmark {
+
+    private static final URI REQUEST_URI = URI.create("/api/messages");
+
+    private ReadModule module;
+
+    @Setup
+    public void setUp() throws Exception {
+        OAuth2AuthzSession session = new OAuth2AuthzSession();
+        session.setAccountId("account");
+        session.setAccessToken("2YotnFZFEjr1zCsicMWpAA");
+        session.setExpires_on(System.currentTimeMillis() + 60 * 60 * 1000);
+
+        module = new ReadModule(new OAuth2Properties(new URL("https://example.com"), "benchmark"));
+        module.publish(session);
+    }
+
+    @Benchmark
+    public ModuleFields loadModule() {
+        return module.loadModule(REQUEST_URI, "GET", null);
+    }
+
+    @Benchmark
+    public AuthorizationFields getAuthorizationFields() {
+        return module.getAuthorizationFields(REQUEST_URI, "GET", null);
+    }
+
+    @Benchmark
+    public boolean isAuthorized() {
+        return module.isAuthorized();
+    }
+
+    /**
+     * Publishes a session the way the token engine does when it stores one.
+     */
+    private static final class ReadModule extends OAuth2WebViewAuthzModule {
+
+        private ReadModule(OAuth2Properties config) {
+            super(config);
+        }
+
+        private void publish(OAuth2AuthzSession session) {
+            setAccount(session);
+        }
+
+    }
+
+}